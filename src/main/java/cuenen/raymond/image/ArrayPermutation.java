@@ -0,0 +1,78 @@
+package cuenen.raymond.image;
+
+/**
+ * A {@code Permutation} backed by a gather index, as computed by the
+ * shuffle-algorithm. The inverse is only computed when it is first needed.
+ *
+ * @see RasterCreator#permutation(ScrambleKey, int)
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+final class ArrayPermutation implements Permutation {
+
+    /**
+     * The gather index of the permutation.
+     */
+    private final int[] permutation;
+
+    /**
+     * The scatter index of the permutation, created on first use.
+     */
+    private volatile int[] inverse;
+
+    /**
+     * Creates a new {@code ArrayPermutation}.
+     *
+     * @param permutation The gather index of the permutation.
+     */
+    ArrayPermutation(int[] permutation) {
+        this.permutation = permutation;
+    }
+
+    /**
+     * Returns the gather index of this permutation.
+     *
+     * @return The gather index, not to be modified.
+     */
+    int[] toArray() {
+        return permutation;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return permutation.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int index) {
+        return permutation[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int inverse(int index) {
+        int[] result = inverse;
+        if (result == null) {
+            synchronized (this) {
+                if (inverse == null) {
+                    final int[] scatter = new int[permutation.length];
+                    for (int i = 0; i < permutation.length; i++) {
+                        scatter[permutation[i]] = i;
+                    }
+                    inverse = scatter;
+                }
+                result = inverse;
+            }
+        }
+        return result[index];
+    }
+}
@@ -0,0 +1,265 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Executing class with throughput benchmarks for the scramble algorithms. <br>
+ * The benchmarks use synthetic images, so they only measure the pixel work and
+ * not the encoding and decoding of image files, except for {@code cache}.
+ * <ul>
+ * <li>{@code frames [count]} scrambles a sequence of 1080p frames with a
+ * shared permutation and reports the frames per second against
+ * {@link #TARGET_FPS}.</li>
+ * <li>{@code startup [runs] [archive]} starts the {@code ImageCreator} in a
+ * new JVM on a small image from the standard input, and reports the median
+ * time to its first output and to its exit. With a class data sharing archive
+ * the runs are repeated with the archive, for comparison.</li>
+ * <li>{@code cache <filename>...} opens the given scrambled images twice
+ * through the default {@link DecodeCache}, and reports the time of every open
+ * and the hit rates of the cache.</li>
+ * <li>{@code calibrate} runs the calibration of the {@link ExecutionPlanner}
+ * and prints the measured costs, without replacing the cached calibration.</li>
+ * <li>{@code training} scrambles and de-scrambles a small image through the
+ * command line paths, as training run for the class data sharing archive of
+ * the {@code appcds} build profile.</li>
+ * </ul>
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class Benchmark {
+
+    /**
+     * The throughput target, in frames per second, for scrambling a 1080p
+     * sequence: real-time playback speed.
+     */
+    public static final double TARGET_FPS = 24.0;
+
+    /**
+     * Private constructor so it is not instantiated.
+     */
+    private Benchmark() {
+    }
+
+    /**
+     * Scramble a synthetic 1080p sequence, computing the permutation once and
+     * processing the frames in parallel.
+     *
+     * @param count The number of frames in the sequence.
+     */
+    private static void frames(int count) {
+        final List<BufferedImage> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(randomImage(1920, 1080, i));
+        }
+        /* Warm up */
+        SequenceCreator.apply(SwapDirection.FORWARD, RasterCreator.permutation(
+                new ScrambleKey(1L), 1920, 1080), frames.subList(0, 1));
+
+        final long start = System.nanoTime();
+        final Permutation permutation = RasterCreator.permutation(
+                new ScrambleKey(42L), 1920, 1080);
+        final long permuted = System.nanoTime();
+        SequenceCreator.apply(SwapDirection.FORWARD, permutation, frames);
+        final long end = System.nanoTime();
+
+        final double fps = count / ((end - start) / 1e9);
+        System.out.println(String.format("frames: %d x 1920x1080, permutation %.1f ms, "
+                + "gather %.1f ms, %.1f fps (target %.1f fps: %s)", count,
+                (permuted - start) / 1e6, (end - permuted) / 1e6, fps, TARGET_FPS,
+                fps >= TARGET_FPS ? "met" : "missed"));
+    }
+
+    /**
+     * Start the {@code ImageCreator} on a small image a number of times, and
+     * report the median times.
+     *
+     * @param runs The number of runs.
+     * @param archive The class data sharing archive, or {@code null} to only
+     * run without one.
+     * @throws IOException If the image cannot be written or a JVM cannot be
+     * started.
+     */
+    private static void startup(int runs, String archive) throws IOException, InterruptedException {
+        final File image = File.createTempFile("startup", ".png");
+        image.deleteOnExit();
+        ImageCreator.writeImage(image, randomImage(64, 64, 1L), Collections.emptyMap());
+        startup(runs, image, "-Xshare:auto");
+        if (archive != null) {
+            startup(runs, image, "-XX:SharedArchiveFile=" + archive);
+        }
+    }
+
+    /**
+     * Start the {@code ImageCreator} on an image a number of times, and report
+     * the median times.
+     *
+     * @param runs The number of runs.
+     * @param image The image to scramble.
+     * @param option The class data sharing option of the JVM.
+     * @throws IOException If a JVM cannot be started.
+     */
+    private static void startup(int runs, File image, String option) throws IOException, InterruptedException {
+        final List<String> command = Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(), option,
+                "-Djava.awt.headless=true", "-cp", System.getProperty("java.class.path"),
+                ImageCreator.class.getName(), "--seed", "1", "-");
+        final long[] first = new long[runs];
+        final long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            final long start = System.nanoTime();
+            final Process process = new ProcessBuilder(command).redirectInput(image)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (InputStream out = process.getInputStream()) {
+                if (out.read() == -1) {
+                    throw new IOException("No output from " + command);
+                }
+                first[i] = System.nanoTime() - start;
+                while (out.read(new byte[ImageCreator.STREAM_BUFFER_SIZE]) != -1) {
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("Exit code " + process.exitValue() + " from " + command);
+            }
+            exit[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(first);
+        Arrays.sort(exit);
+        System.out.println(String.format("startup: %s, %d runs, first output %.1f ms, exit %.1f ms",
+                option, runs, first[runs / 2] / 1e6, exit[runs / 2] / 1e6));
+    }
+
+    /**
+     * Scramble and de-scramble a small photo-like and a small palette image in
+     * memory, through the same classes as the command line tools.
+     *
+     * @throws IOException If an image cannot be written or read.
+     */
+    private static void training() throws IOException {
+        final BufferedImage palette = new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < palette.getHeight(); y++) {
+            for (int x = 0; x < palette.getWidth(); x++) {
+                palette.setRGB(x, y, (x / 8 + y / 8) % 2 == 0 ? 0xFFFFFF : 0x203040);
+            }
+        }
+        for (BufferedImage image : Arrays.asList(randomImage(64, 64, 1L), palette)) {
+            final ByteArrayOutputStream source = new ByteArrayOutputStream();
+            ImageCreator.writeImage(Channels.newChannel(source), image, Collections.emptyMap());
+            for (ScrambleKey.Mode mode : ScrambleKey.Mode.values()) {
+                final ScrambleKey key = new ScrambleKey(42L).withMode(mode);
+                final ByteArrayOutputStream scrambled = new ByteArrayOutputStream();
+                ImageCreator.scramble(key, false, Channels.newChannel(
+                        new ByteArrayInputStream(source.toByteArray())), Channels.newChannel(scrambled));
+                final ByteArrayOutputStream descrambled = new ByteArrayOutputStream();
+                ImageConstructor.descramble(null, Channels.newChannel(
+                        new ByteArrayInputStream(scrambled.toByteArray())), Channels.newChannel(descrambled));
+            }
+        }
+        System.out.println("training: done");
+    }
+
+    /**
+     * Creates an {@code INT_ARGB} image filled with random pixels.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param seed The seed for the pixel values.
+     * @return The random image.
+     */
+    private static BufferedImage randomImage(int width, int height, long seed) {
+        final BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final Random random = new Random(seed);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return image;
+    }
+
+    /**
+     * Open the given images twice through the default cache, and report the
+     * time of every open and the hit rates of the cache.
+     *
+     * @param names The filenames of the scrambled images.
+     */
+    private static void cache(List<String> names) {
+        if (names.isEmpty()) {
+            System.out.println("usage: java " + Benchmark.class.getCanonicalName() + " cache <filename>...");
+            return;
+        }
+        final DecodeCache cache = DecodeCache.getDefault();
+        for (int pass = 0; pass < 2; pass++) {
+            for (String name : names) {
+                final long start = System.nanoTime();
+                try {
+                    new DecodeHandle(new File(name).toURI().toURL(), Runnable::run, null, cache)
+                            .getImage().join();
+                    System.out.println(String.format("cache: %s %.1f ms", name, (System.nanoTime() - start) / 1e6));
+                } catch (IOException | RuntimeException ex) {
+                    System.err.println("Error: " + name + ": " + ex.getMessage());
+                }
+            }
+        }
+        System.out.println("cache: " + cache);
+    }
+
+    /**
+     * Runs the benchmark given on the command line.
+     *
+     * @param args The string array containing the benchmark name and its
+     * arguments.
+     */
+    public static void main(String[] args) {
+        final String name = args.length > 0 ? args[0] : "";
+        switch (name) {
+            case "frames":
+                frames(args.length > 1 ? Integer.parseInt(args[1]) : 48);
+                break;
+            case "startup":
+                try {
+                    startup(args.length > 1 ? Integer.parseInt(args[1]) : 10,
+                            args.length > 2 ? args[2] : null);
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case "cache":
+                cache(Arrays.asList(args).subList(1, args.length));
+                break;
+            case "calibrate":
+                new TreeMap<>(ExecutionPlanner.calibrate()).forEach((key, value) ->
+                        System.out.println(key + " = " + value));
+                break;
+            case "training":
+                try {
+                    training();
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                }
+                break;
+            default:
+                System.out.println("usage: java "
+                        + Benchmark.class.getCanonicalName()
+                        + " frames [count] | startup [runs] [archive] | cache <filename>... | calibrate"
+                        + " | training");
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package cuenen.raymond.image;
+
+/**
+ * A permutation that moves square blocks of pixels instead of single pixels, so
+ * the scrambled image keeps the local structure of the source and stays
+ * compressible. <br>
+ * The full blocks are shuffled by the shuffle-algorithm, so the permutation
+ * table only holds one entry per block. The pixels to the right of and below
+ * the full blocks are permuted among each other by an {@link IndexCipher}.
+ * Optionally every block is also flipped and/or transposed, depending on its
+ * scrambled position.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class BlockPermutation implements Permutation {
+
+    /**
+     * Seed modifier for the block transforms.
+     */
+    private static final long TRANSFORM_SEED = 0x5DEECE66DL;
+
+    /**
+     * The size of the image.
+     */
+    private final int width, height;
+
+    /**
+     * The size of a block.
+     */
+    private final int block;
+
+    /**
+     * The number of full blocks in a row and in a column.
+     */
+    private final int columns, rows;
+
+    /**
+     * The width of the pixels to the right of the full blocks.
+     */
+    private final int remainderWidth;
+
+    /**
+     * The permutation of the full blocks.
+     */
+    private final Permutation blocks;
+
+    /**
+     * The permutation of the pixels outside the full blocks.
+     */
+    private final Permutation remainder;
+
+    /**
+     * The generator of the block transforms, {@code null} if blocks are not
+     * transformed.
+     */
+    private final CounterNumberGenerator transforms;
+
+    /**
+     * Creates a new {@code BlockPermutation}.
+     *
+     * @param key The key holding the seed, the random generator, the block size
+     * and whether blocks are transformed.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    public BlockPermutation(ScrambleKey key, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.block = key.getBlockSize();
+        this.columns = width / block;
+        this.rows = height / block;
+        this.remainderWidth = width - columns * block;
+        this.blocks = new ArrayPermutation(RasterCreator.permutation(key, columns * rows));
+        this.remainder = new IndexCipher(key.getSeed(),
+                width * height - columns * rows * block * block);
+        this.transforms = key.isBlockTransform()
+                ? new CounterNumberGenerator(key.getSeed() ^ TRANSFORM_SEED) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return width * height;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int index) {
+        final int x = index % width;
+        final int y = index / width;
+        if (x >= columns * block || y >= rows * block) {
+            return fromRemainder(remainder.get(toRemainder(x, y)));
+        }
+        final int dstBlock = y / block * columns + x / block;
+        final int srcBlock = blocks.get(dstBlock);
+        int u = x % block;
+        int v = y % block;
+        final int transform = transform(dstBlock);
+        if ((transform & 4) != 0) {
+            final int swap = u;
+            u = v;
+            v = swap;
+        }
+        u = (transform & 1) != 0 ? block - 1 - u : u;
+        v = (transform & 2) != 0 ? block - 1 - v : v;
+        return (srcBlock / columns * block + v) * width + srcBlock % columns * block + u;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int inverse(int index) {
+        final int x = index % width;
+        final int y = index / width;
+        if (x >= columns * block || y >= rows * block) {
+            return fromRemainder(remainder.inverse(toRemainder(x, y)));
+        }
+        final int dstBlock = blocks.inverse(y / block * columns + x / block);
+        final int transform = transform(dstBlock);
+        int u = (transform & 1) != 0 ? block - 1 - x % block : x % block;
+        int v = (transform & 2) != 0 ? block - 1 - y % block : y % block;
+        if ((transform & 4) != 0) {
+            final int swap = u;
+            u = v;
+            v = swap;
+        }
+        return (dstBlock / columns * block + v) * width + dstBlock % columns * block + u;
+    }
+
+    /**
+     * Applies this permutation to packed pixels. Blocks that are not
+     * transformed are copied row by row.
+     *
+     * @param forward {@code true} to scramble, {@code false} to de-scramble.
+     * @param src The source pixels.
+     * @param dst The destination pixels.
+     */
+    void apply(boolean forward, int[] src, int[] dst) {
+        for (int dstBlock = 0; dstBlock < columns * rows; dstBlock++) {
+            final int srcBlock = blocks.get(dstBlock);
+            final int dstOffset = dstBlock / columns * block * width + dstBlock % columns * block;
+            final int srcOffset = srcBlock / columns * block * width + srcBlock % columns * block;
+            if (transform(dstBlock) == 0) {
+                for (int v = 0; v < block; v++) {
+                    if (forward) {
+                        System.arraycopy(src, srcOffset + v * width, dst, dstOffset + v * width, block);
+                    } else {
+                        System.arraycopy(src, dstOffset + v * width, dst, srcOffset + v * width, block);
+                    }
+                }
+            } else {
+                for (int v = 0; v < block; v++) {
+                    for (int u = 0; u < block; u++) {
+                        final int index = dstOffset + v * width + u;
+                        if (forward) {
+                            dst[index] = src[get(index)];
+                        } else {
+                            dst[get(index)] = src[index];
+                        }
+                    }
+                }
+            }
+        }
+        for (int r = 0; r < remainder.size(); r++) {
+            final int index = fromRemainder(r);
+            dst[index] = src[forward ? get(index) : inverse(index)];
+        }
+    }
+
+    /**
+     * Returns the transform of a block.
+     *
+     * @param dstBlock The index of the block in the scrambled image.
+     * @return The transform, bit 0 flips horizontally, bit 1 flips vertically
+     * and bit 2 transposes.
+     */
+    private int transform(int dstBlock) {
+        return transforms == null ? 0 : (int) (transforms.randomLong(dstBlock) & 7);
+    }
+
+    /**
+     * Returns the remainder index of a pixel outside the full blocks. The
+     * pixels to the right of the full blocks come first, followed by the rows
+     * below the full blocks.
+     */
+    private int toRemainder(int x, int y) {
+        if (y < rows * block) {
+            return y * remainderWidth + x - columns * block;
+        }
+        return rows * block * remainderWidth + (y - rows * block) * width + x;
+    }
+
+    /**
+     * Returns the pixel index of a remainder index.
+     */
+    private int fromRemainder(int index) {
+        final int right = rows * block * remainderWidth;
+        if (index < right) {
+            return index / remainderWidth * width + columns * block + index % remainderWidth;
+        }
+        return (rows * block) * width + index - right;
+    }
+}
@@ -0,0 +1,483 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two tier cache of de-scrambled images, used by the {@code DecodeHandle} so
+ * reopening an image does not repeat the decode and de-scramble. <br>
+ * Images are identified by the SHA-256 digest of the contents of the scrambled
+ * file, so a renamed or copied file is still found and a changed file is not.
+ * The first tier holds the images that are ready for display in memory, the
+ * least recently used images are evicted when they exceed the memory limit.
+ * The second tier holds the raw {@code ARGB} pixels of de-scrambled images on
+ * disk, which are read back with a memory mapped read; the least recently used
+ * files are deleted when they exceed the disk limit. Since the files hold the
+ * de-scrambled images, the cache directory and its files are only accessible
+ * by their owner, where the file system supports it.
+ * <p>
+ * The {@link #getDefault() default} cache is configured with system
+ * properties: {@code cuenen.raymond.image.cache.dir} holds the directory
+ * (defaults to {@code .image-cache} in the home directory),
+ * {@code cuenen.raymond.image.cache.memory} the memory limit (e.g.
+ * {@code 512m}, defaults to an eighth of the maximum heap) and
+ * {@code cuenen.raymond.image.cache.disk} the disk limit (defaults to
+ * {@code 2g}). A limit of zero disables a tier.
+ *
+ * @see DecodeHandle
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class DecodeCache {
+
+    /**
+     * The name of the system property holding the cache directory.
+     */
+    public static final String DIRECTORY_PROPERTY = "cuenen.raymond.image.cache.dir";
+
+    /**
+     * The name of the system property holding the memory limit.
+     */
+    public static final String MEMORY_PROPERTY = "cuenen.raymond.image.cache.memory";
+
+    /**
+     * The name of the system property holding the disk limit.
+     */
+    public static final String DISK_PROPERTY = "cuenen.raymond.image.cache.disk";
+
+    /**
+     * The magic number at the start of a cached pixel file.
+     */
+    private static final int MAGIC = 0x53435058;
+
+    /**
+     * The size of the header of a cached pixel file: the magic number, width
+     * and height.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The extension of the cached pixel files.
+     */
+    private static final String EXTENSION = ".pix";
+
+    /**
+     * The default disk limit.
+     */
+    private static final long DEFAULT_DISK_LIMIT = 2L << 30;
+
+    /**
+     * The default cache, created on first use.
+     */
+    private static DecodeCache defaultCache;
+
+    /**
+     * The directory of the cached pixel files.
+     */
+    private final Path directory;
+
+    /**
+     * The memory limit, in bytes, of the images ready for display.
+     */
+    private final long memoryLimit;
+
+    /**
+     * The disk limit, in bytes, of the cached pixel files.
+     */
+    private final long diskLimit;
+
+    /**
+     * The images ready for display in least recently used order.
+     */
+    private final Map<String, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of bytes used by the images in memory.
+     */
+    private long used = 0;
+
+    /**
+     * The number of requests found in memory.
+     */
+    private final AtomicLong memoryHits = new AtomicLong();
+
+    /**
+     * The number of requests found on disk.
+     */
+    private final AtomicLong diskHits = new AtomicLong();
+
+    /**
+     * The number of requests that were not found.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the default cache, configured by the system properties.
+     *
+     * @return The default cache.
+     */
+    public static synchronized DecodeCache getDefault() {
+        if (defaultCache == null) {
+            final String directory = System.getProperty(DIRECTORY_PROPERTY);
+            defaultCache = new DecodeCache(directory != null ? Paths.get(directory)
+                    : Paths.get(System.getProperty("user.home"), ".image-cache"),
+                    PixelBufferPool.parseSize(System.getProperty(MEMORY_PROPERTY),
+                            Runtime.getRuntime().maxMemory() / 8),
+                    PixelBufferPool.parseSize(System.getProperty(DISK_PROPERTY), DEFAULT_DISK_LIMIT));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Creates a new {@code DecodeCache}. The directory is created when the
+     * first image is stored.
+     *
+     * @param directory The directory of the cached pixel files.
+     * @param memoryLimit The memory limit, in bytes, of the images ready for
+     * display.
+     * @param diskLimit The disk limit, in bytes, of the cached pixel files.
+     */
+    public DecodeCache(Path directory, long memoryLimit, long diskLimit) {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+    }
+
+    /**
+     * Returns the digest that identifies a scrambled image.
+     *
+     * @param imageFile The URL of the scrambled image.
+     * @return The SHA-256 digest of the contents, as hexadecimal string.
+     * @throws IOException If the image cannot be read.
+     */
+    public String digest(URL imageFile) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        final long start = System.nanoTime();
+        if ("file".equals(imageFile.getProtocol())) {
+            try (FileChannel channel = FileChannel.open(Paths.get(imageFile.toURI()))) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(ImageCreator.STREAM_BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                throw new IOException("Invalid file: " + imageFile, ex);
+            }
+        } else {
+            try (InputStream in = imageFile.openStream()) {
+                final byte[] buffer = new byte[ImageCreator.STREAM_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        Telemetry.getDefault().record("cache.digest", start);
+        return hex.toString();
+    }
+
+    /**
+     * Returns the image ready for display from memory.
+     *
+     * @param digest The digest of the scrambled image.
+     * @return The image, or {@code null} if it is not in memory.
+     */
+    public synchronized BufferedImage getImage(String digest) {
+        final BufferedImage image = images.get(digest);
+        if (image != null) {
+            memoryHits.incrementAndGet();
+        }
+        return image;
+    }
+
+    /**
+     * Stores an image ready for display in memory, evicting the least recently
+     * used images that no longer fit. An image larger than the memory limit is
+     * not stored.
+     *
+     * @param digest The digest of the scrambled image.
+     * @param image The image ready for display.
+     */
+    public synchronized void putImage(String digest, BufferedImage image) {
+        final long bytes = bytes(image);
+        if (bytes > memoryLimit) {
+            return;
+        }
+        final BufferedImage previous = images.put(digest, image);
+        if (previous != null) {
+            used -= bytes(previous);
+        }
+        used += bytes;
+        final Iterator<BufferedImage> eldest = images.values().iterator();
+        while (used > memoryLimit && eldest.hasNext()) {
+            final BufferedImage evicted = eldest.next();
+            if (evicted != image) {
+                used -= bytes(evicted);
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the de-scrambled pixels from disk.
+     *
+     * @param digest The digest of the scrambled image.
+     * @return The de-scrambled {@code ARGB} image, or {@code null} if it is
+     * not on disk. A file that cannot be read is treated as missing.
+     */
+    public BufferedImage readPixels(String digest) {
+        if (diskLimit <= 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Path file = directory.resolve(digest + EXTENSION);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < HEADER_SIZE || mapped.getInt() != MAGIC) {
+                throw new IOException("Invalid cache file: " + file);
+            }
+            final int width = mapped.getInt();
+            final int height = mapped.getInt();
+            if (width < 1 || height < 1 || channel.size() != HEADER_SIZE + 4L * width * height) {
+                throw new IOException("Invalid cache file: " + file);
+            }
+            final BufferedImage image = GraphicsUtilities.createDisplayImage(width, height);
+            final IntBuffer pixels = mapped.asIntBuffer();
+            final int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            pixels.get(data, 0, width * height);
+            /* Mark the file as recently used */
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            diskHits.incrementAndGet();
+            Telemetry.getDefault().record("cache.read", start);
+            return image;
+        } catch (NoSuchFileException ex) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            misses.incrementAndGet();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the de-scrambled pixels to disk, deleting the least recently used
+     * files that no longer fit. The file is written under a temporary name and
+     * moved into place, so a partial file is never read.
+     *
+     * @param digest The digest of the scrambled image.
+     * @param image The de-scrambled image.
+     * @throws IOException If the pixels cannot be written.
+     */
+    public void writePixels(String digest, BufferedImage image) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final long size = HEADER_SIZE + 4L * width * height;
+        if (size > diskLimit) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory, posix ? new FileAttribute<?>[]{
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))}
+                    : new FileAttribute<?>[0]);
+        }
+        final Path temp = posix ? Files.createTempFile(directory, ".pixels", ".part",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(directory, ".pixels", ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(
+                        Math.max(HEADER_SIZE, ImageCreator.STREAM_BUFFER_SIZE));
+                buffer.putInt(MAGIC).putInt(width).putInt(height);
+                final int[] row = new int[width];
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        if (!buffer.hasRemaining()) {
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                channel.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                        buffer.putInt(row[x]);
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            final Path file = directory.resolve(digest + EXTENSION);
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Telemetry.getDefault().record("cache.write", start);
+        evictFiles();
+    }
+
+    /**
+     * Removes all images from memory and all pixel files from disk.
+     *
+     * @throws IOException If a file cannot be deleted.
+     */
+    public void clear() throws IOException {
+        synchronized (this) {
+            images.clear();
+            used = 0;
+        }
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests that were found in memory.
+     *
+     * @return The number of memory hits.
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Returns the number of requests that were found on disk.
+     *
+     * @return The number of disk hits.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the number of requests that were not found in either tier.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of the requests that were found in either tier.
+     *
+     * @return The hit rate, between zero and one, or zero if there were no
+     * requests.
+     */
+    public double getHitRate() {
+        final long hits = memoryHits.get() + diskHits.get();
+        final long total = hits + misses.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        final long memory = memoryHits.get();
+        final long disk = diskHits.get();
+        final long total = memory + disk + misses.get();
+        return String.format("%d requests, %.0f %% hits (memory %d, disk %d), %d misses",
+                total, 100 * getHitRate(), memory, disk, misses.get());
+    }
+
+    /**
+     * Delete the least recently used pixel files until they fit in the disk
+     * limit.
+     *
+     * @throws IOException If the directory cannot be listed.
+     */
+    private void evictFiles() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<>();
+        long total = 0;
+        for (Path file : files) {
+            try {
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+                total += Files.size(file);
+            } catch (NoSuchFileException ex) {
+                /* Evicted by another process */
+            }
+        }
+        files.retainAll(modified.keySet());
+        files.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+        for (Path file : files) {
+            if (total <= diskLimit) {
+                break;
+            }
+            try {
+                total -= Files.size(file);
+                Files.deleteIfExists(file);
+            } catch (NoSuchFileException ex) {
+            }
+        }
+    }
+
+    /**
+     * Returns the approximate memory used by an image.
+     *
+     * @param image The image.
+     * @return The number of bytes used by the pixels of the image.
+     */
+    private static long bytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+}
@@ -0,0 +1,530 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+
+/**
+ * Handle to the de-scrambled version of a scrambled image. <br>
+ * Nothing is read until the image is first requested; the de-scramble then
+ * runs in the background and the result is delivered as a
+ * {@link CompletableFuture}. Both the de-scrambled image and its copy that is
+ * compatible with the screen are kept, so requesting them again is free. A
+ * failure is reported by completing the future exceptionally, and a decode
+ * that is no longer needed can be cancelled; reading stops as soon as
+ * possible and the remaining phases are skipped.
+ * <p>
+ * The progress of the decode is reported to an optional listener, on the
+ * thread that decodes, as a fraction of the total work.
+ * <p>
+ * With a {@link DecodeCache} the image is looked up by the digest of its
+ * contents first: the compatible image in memory, then the de-scrambled pixels
+ * on disk. A decoded image is stored in both tiers.
+ *
+ * @see ImageConstructor
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class DecodeHandle {
+
+    /**
+     * Listener for the progress of a decode.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+
+        /**
+         * Invoked when the decode progressed.
+         *
+         * @param phase The current phase, one of {@code read},
+         * {@code permutation}, {@code descramble}, {@code convert} or
+         * {@code done}.
+         * @param fraction The fraction of the total work that is done, between
+         * zero and one.
+         */
+        void progress(String phase, float fraction);
+    }
+
+    /**
+     * The fraction of the total work spent reading the image.
+     */
+    private static final float READ_WORK = 0.6f;
+
+    /**
+     * The shared pool of decode threads.
+     */
+    private static final Executor DECODERS;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        DECODERS = Executors.newCachedThreadPool((runnable) -> {
+            final Thread thread = new Thread(runnable, "Decoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The URL of the scrambled image.
+     */
+    private final URL imageFile;
+
+    /**
+     * The executor that runs the decode.
+     */
+    private final Executor executor;
+
+    /**
+     * The listener for the progress, may be {@code null}.
+     */
+    private final ProgressListener listener;
+
+    /**
+     * The de-scrambled image, created on first request.
+     */
+    private CompletableFuture<BufferedImage> image;
+
+    /**
+     * The compatible copy of the de-scrambled image, created on first request.
+     */
+    private CompletableFuture<BufferedImage> compatibleImage;
+
+    /**
+     * The cache of decoded images, may be {@code null}.
+     */
+    private final DecodeCache cache;
+
+    /**
+     * The digest of the image in the cache, computed on first use.
+     */
+    private String digest;
+
+    /**
+     * The reader while the image is being read.
+     */
+    private volatile ImageReader reader;
+
+    /**
+     * Flag indicating that the decode is cancelled.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new {@code DecodeHandle} that decodes on the shared decode
+     * threads, without progress reports.
+     *
+     * @param imageFile The URL indicating the image to be de-scrambled.
+     */
+    public DecodeHandle(URL imageFile) {
+        this(imageFile, null);
+    }
+
+    /**
+     * Creates a new {@code DecodeHandle} that decodes on the shared decode
+     * threads.
+     *
+     * @param imageFile The URL indicating the image to be de-scrambled.
+     * @param listener The listener for the progress, may be {@code null}.
+     */
+    public DecodeHandle(URL imageFile, ProgressListener listener) {
+        this(imageFile, DECODERS, listener);
+    }
+
+    /**
+     * Creates a new {@code DecodeHandle} that decodes on the shared decode
+     * threads and looks up the image in a cache.
+     *
+     * @param imageFile The URL indicating the image to be de-scrambled.
+     * @param listener The listener for the progress, may be {@code null}.
+     * @param cache The cache of decoded images, may be {@code null}.
+     */
+    public DecodeHandle(URL imageFile, ProgressListener listener, DecodeCache cache) {
+        this(imageFile, DECODERS, listener, cache);
+    }
+
+    /**
+     * Creates a new {@code DecodeHandle}.
+     *
+     * @param imageFile The URL indicating the image to be de-scrambled.
+     * @param executor The executor that runs the decode.
+     * @param listener The listener for the progress, may be {@code null}.
+     */
+    public DecodeHandle(URL imageFile, Executor executor, ProgressListener listener) {
+        this(imageFile, executor, listener, null);
+    }
+
+    /**
+     * Creates a new {@code DecodeHandle} that looks up the image in a cache.
+     *
+     * @param imageFile The URL indicating the image to be de-scrambled.
+     * @param executor The executor that runs the decode.
+     * @param listener The listener for the progress, may be {@code null}.
+     * @param cache The cache of decoded images, may be {@code null}.
+     */
+    public DecodeHandle(URL imageFile, Executor executor, ProgressListener listener,
+            DecodeCache cache) {
+        this.imageFile = imageFile;
+        this.executor = executor;
+        this.listener = listener;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the URL of the scrambled image.
+     *
+     * @return The URL indicating the image.
+     */
+    public URL getImageFile() {
+        return imageFile;
+    }
+
+    /**
+     * Returns the de-scrambled image, starting the decode on the first call.
+     *
+     * @return The future of the de-scrambled image, completed exceptionally
+     * with an {@link IOException} if the image cannot be read, is not admitted
+     * by the memory budget or has no matching key.
+     */
+    public synchronized CompletableFuture<BufferedImage> getImage() {
+        if (image == null) {
+            final CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+            image = future;
+            if (cancelled) {
+                future.cancel(false);
+            } else {
+                executor.execute(() -> {
+                    try {
+                        future.complete(cache == null ? decode() : load());
+                    } catch (IOException | RuntimeException | Error ex) {
+                        fail(future, ex);
+                    }
+                });
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the de-scrambled image in a format that is compatible with the
+     * screen, starting the decode on the first call. The image is only copied
+     * if its format is not compatible, and at most once.
+     *
+     * @see GraphicsUtilities#toCompatibleImage
+     * @return The future of the compatible image.
+     */
+    public synchronized CompletableFuture<BufferedImage> getCompatibleImage() {
+        if (compatibleImage == null && cache == null) {
+            compatibleImage = getImage().thenApplyAsync(this::convert, executor);
+        } else if (compatibleImage == null) {
+            final CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+            compatibleImage = future;
+            executor.execute(() -> {
+                final String key;
+                try {
+                    checkCancelled();
+                    key = digest();
+                    final BufferedImage shown = cache.getImage(key);
+                    if (shown != null) {
+                        report("done", 1f);
+                        future.complete(shown);
+                        return;
+                    }
+                } catch (IOException | RuntimeException | Error ex) {
+                    fail(future, ex);
+                    return;
+                }
+                getImage().thenApplyAsync(this::convert, executor).whenComplete((compatible, ex) -> {
+                    if (ex != null) {
+                        fail(future, ex instanceof CompletionException ? ex.getCause() : ex);
+                    } else {
+                        cache.putImage(key, compatible);
+                        future.complete(compatible);
+                    }
+                });
+            });
+        }
+        return compatibleImage;
+    }
+
+    /**
+     * Cancels the decode. Reading is aborted and the futures that are not
+     * completed yet are cancelled.
+     *
+     * @return {@code true} if a future was cancelled.
+     */
+    public boolean cancel() {
+        cancelled = true;
+        final ImageReader current = reader;
+        if (current != null) {
+            current.abort();
+        }
+        final CompletableFuture<BufferedImage> decoded;
+        final CompletableFuture<BufferedImage> compatible;
+        synchronized (this) {
+            decoded = image;
+            compatible = compatibleImage;
+        }
+        boolean result = false;
+        if (compatible != null) {
+            result |= compatible.cancel(false);
+        }
+        if (decoded != null) {
+            result |= decoded.cancel(false);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the decode is cancelled.
+     *
+     * @return {@code true} if {@link #cancel()} was invoked.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Convert the de-scrambled image to a format that is compatible with the
+     * screen.
+     *
+     * @param descrambled The de-scrambled image.
+     * @return The compatible image.
+     */
+    private BufferedImage convert(BufferedImage descrambled) {
+        checkCancelled();
+        report("convert", 0.95f);
+        final long start = System.nanoTime();
+        final BufferedImage compatible = GraphicsUtilities.toCompatibleImage(descrambled);
+        Telemetry.getDefault().record("decode.convert", start);
+        report("done", 1f);
+        return compatible;
+    }
+
+    /**
+     * Returns the digest of the image in the cache, computing it once.
+     *
+     * @return The digest of the contents of the image.
+     * @throws IOException If the image cannot be read.
+     */
+    private synchronized String digest() throws IOException {
+        if (digest == null) {
+            digest = cache.digest(imageFile);
+        }
+        return digest;
+    }
+
+    /**
+     * Read the de-scrambled pixels from the cache, or decode the image and
+     * store its pixels in the cache afterwards.
+     *
+     * @return The de-scrambled image.
+     * @throws IOException If the image cannot be read, is not admitted or has
+     * no matching key.
+     */
+    private BufferedImage load() throws IOException {
+        final String key = digest();
+        checkCancelled();
+        final BufferedImage cached = cache.readPixels(key);
+        if (cached != null) {
+            report("convert", 0.9f);
+            return cached;
+        }
+        final BufferedImage descrambled = decode();
+        /* Store the pixels after the image is delivered */
+        executor.execute(() -> {
+            try {
+                cache.writePixels(key, descrambled);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Error: " + imageFile + ": " + ex.getMessage());
+            }
+        });
+        return descrambled;
+    }
+
+    /**
+     * Complete a future with a failure, or cancel it if the decode is
+     * cancelled.
+     *
+     * @param future The future to complete.
+     * @param ex The failure.
+     */
+    private void fail(CompletableFuture<BufferedImage> future, Throwable ex) {
+        if (cancelled) {
+            future.cancel(false);
+        } else {
+            future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Read and de-scramble the image. The header and the key are read before
+     * the memory budget admits the decode.
+     *
+     * @return The de-scrambled image.
+     * @throws IOException If the image cannot be read, is not admitted or has
+     * no matching key.
+     */
+    @SuppressWarnings("try")
+    private BufferedImage decode() throws IOException {
+        final Telemetry telemetry = Telemetry.getDefault();
+        long start = System.nanoTime();
+        final ImageReader imageReader = ImageConstructor.openImage(
+                Channels.newChannel(imageFile.openStream()));
+        try {
+            final Map<String, String> metadata = new HashMap<>();
+            ImageConstructor.readText(imageReader, metadata);
+            final ScrambleKey key = ScrambleKey.fromMetadata(metadata);
+            telemetry.record("decode.key", start);
+            try (MemoryBudget.Lease lease = MemoryBudget.getDefault().admit(
+                    MemoryBudget.estimate(key, SwapDirection.BACKWARD, imageReader, false))) {
+                checkCancelled();
+                start = System.nanoTime();
+                final BufferedImage src = read(imageReader);
+                telemetry.record("decode.read", start);
+                checkCancelled();
+                if (Palette.isIndexed(src)) {
+                    /* Permute the indices, then expand them once */
+                    report("permutation", READ_WORK);
+                    start = System.nanoTime();
+                    final Permutation permutation = RasterCreator.permutation(key,
+                            src.getWidth(), src.getHeight());
+                    /* Reject a wrong key before the full de-scramble */
+                    Fingerprint.verify(metadata, key, permutation, src);
+                    telemetry.record("decode.permutation", start);
+                    checkCancelled();
+                    report("descramble", 0.75f);
+                    start = System.nanoTime();
+                    RasterCreator.applyInPlace(SwapDirection.BACKWARD, permutation, src);
+                    final BufferedImage descrambled = Palette.expand(src);
+                    telemetry.record("decode.descramble", start);
+                    report("convert", 0.9f);
+                    return descrambled;
+                }
+                report("permutation", READ_WORK);
+                start = System.nanoTime();
+                final Permutation permutation = RasterCreator.permutation(key,
+                        src.getWidth(), src.getHeight());
+                /* Reject a wrong key before the full de-scramble */
+                Fingerprint.verify(metadata, key, permutation, src.getRaster());
+                telemetry.record("decode.permutation", start);
+                checkCancelled();
+                report("descramble", 0.75f);
+                start = System.nanoTime();
+                /* Gather straight into the image that is displayed */
+                final BufferedImage descrambled = GraphicsUtilities.createDisplayImage(
+                        src.getWidth(), src.getHeight());
+                RasterCreator.apply(SwapDirection.BACKWARD, permutation,
+                        src.getRaster(), descrambled.getRaster());
+                telemetry.record("decode.descramble", start);
+                report("convert", 0.9f);
+                return descrambled;
+            }
+        } finally {
+            ImageConstructor.closeImage(imageReader);
+        }
+    }
+
+    /**
+     * Read the image, reporting the progress and allowing it to be aborted.
+     * The pixels are returned as packed {@code int}s or interleaved bytes, as
+     * the {@code RasterCreator} reads them directly, or as palette indices.
+     *
+     * @param imageReader The reader of the image.
+     * @return The scrambled image.
+     * @throws IOException If the image cannot be read or the read is aborted.
+     */
+    private BufferedImage read(ImageReader imageReader) throws IOException {
+        imageReader.addIIOReadProgressListener(new IIOReadProgressListener() {
+            @Override
+            public void imageProgress(ImageReader source, float percentageDone) {
+                report("read", READ_WORK * percentageDone / 100f);
+            }
+
+            @Override
+            public void readAborted(ImageReader source) {
+            }
+
+            @Override
+            public void imageStarted(ImageReader source, int imageIndex) {
+            }
+
+            @Override
+            public void imageComplete(ImageReader source) {
+            }
+
+            @Override
+            public void sequenceStarted(ImageReader source, int minIndex) {
+            }
+
+            @Override
+            public void sequenceComplete(ImageReader source) {
+            }
+
+            @Override
+            public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            }
+
+            @Override
+            public void thumbnailProgress(ImageReader source, float percentageDone) {
+            }
+
+            @Override
+            public void thumbnailComplete(ImageReader source) {
+            }
+        });
+        reader = imageReader;
+        final BufferedImage read;
+        try {
+            if (cancelled) {
+                /* Cancelled before the reader could be aborted */
+                throw new InterruptedIOException("Decode cancelled");
+            }
+            read = imageReader.read(0);
+        } finally {
+            reader = null;
+        }
+        checkCancelled();
+        return Palette.isIndexed(read) || RasterCreator.pixelReader(read.getRaster()) != null
+                || read.getRaster().getTransferType() == DataBuffer.TYPE_INT
+                && read.getRaster().getNumDataElements() == 1
+                ? read : GraphicsUtilities.toIntImage(read);
+    }
+
+    /**
+     * Stop the decode if it is cancelled.
+     *
+     * @throws CancellationException If the decode is cancelled.
+     */
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Decode cancelled");
+        }
+    }
+
+    /**
+     * Report the progress to the listener, if any.
+     *
+     * @param phase The current phase.
+     * @param fraction The fraction of the total work that is done.
+     */
+    private void report(String phase, float fraction) {
+        if (listener != null) {
+            listener.progress(phase, fraction);
+        }
+    }
+}
@@ -3,20 +3,26 @@ package cuenen.raymond.image;
 import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Window;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletionException;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.TransferHandler;
@@ -29,13 +35,43 @@ import javax.swing.TransferHandler.TransferSupport;
  * Pressing CTRL + F11 will make the image fully shown, while CTRL + Arrow keys
  * and CTRL + Page Dn/Up control the blend factor. Pressing any other key or
  * combination will immediately hide the image. <br>
- * Images are added to the panel by dragging them onto it for a drop.
+ * Images are added to the panel by dragging them onto it for a drop. Dropping
+ * multiple images shows a contact sheet of (equally hidden) thumbnails; clicking
+ * a thumbnail shows that image and CTRL + G returns to the contact sheet. <br>
+ * CTRL + SHIFT + H toggles an overlay with the frame rate and the recent paint,
+ * compose, scale and decode times; CTRL + SHIFT + D dumps these timings to a
+ * file in the home directory.
  *
  * @version 1.00 Jan 21 2015
  * @author Raymond Cuenen
  */
 public class DisplayPanel extends JPanel {
 
+    /**
+     * The maximum size, in pixels, of a thumbnail on the contact sheet.
+     */
+    private static final int THUMBNAIL_SIZE = 150;
+
+    /**
+     * The size, in pixels, of a cell on the contact sheet.
+     */
+    private static final int CELL_SIZE = THUMBNAIL_SIZE + 20;
+
+    /**
+     * The preferred number of columns of the contact sheet.
+     */
+    private static final int SHEET_COLUMNS = 5;
+
+    /**
+     * The memory budget, in bytes, for the thumbnails of the contact sheet.
+     */
+    private static final long THUMBNAIL_BUDGET = 64L << 20;
+
+    /**
+     * The number of samples averaged for the timings on the overlay.
+     */
+    private static final int HUD_SAMPLES = 30;
+
     /**
      * Image to be displayed.
      */
@@ -56,6 +92,11 @@ public class DisplayPanel extends JPanel {
      */
     private BufferedImage dstImage;
 
+    /**
+     * The second image scaled to the size it is displayed at.
+     */
+    private BufferedImage scaledImage;
+
     /**
      * Position and size information used for moving top image.
      */
@@ -66,6 +107,49 @@ public class DisplayPanel extends JPanel {
      */
     private boolean repaint = false;
 
+    /**
+     * The scrambled images shown on the contact sheet.
+     */
+    private List<URL> imageFiles = Collections.emptyList();
+
+    /**
+     * Flag indicating that the contact sheet is shown.
+     */
+    private boolean contactSheet = false;
+
+    /**
+     * Flag indicating that the timing overlay is shown.
+     */
+    private boolean hud = false;
+
+    /**
+     * The timings of painting, animating and decoding.
+     */
+    private final Telemetry telemetry = Telemetry.getDefault();
+
+    /**
+     * The decode of the image that is about to be shown, {@code null} when no
+     * image is being decoded.
+     */
+    private DecodeHandle decoding;
+
+    /**
+     * The fraction of the current decode that is done.
+     */
+    private volatile float decodeProgress = 1f;
+
+    /**
+     * The cache of de-scrambled images, so reopening an image is fast.
+     */
+    private final DecodeCache cache = DecodeCache.getDefault();
+
+    /**
+     * The de-scrambled thumbnails of the contact sheet.
+     */
+    private final ThumbnailCache thumbnails = new ThumbnailCache(THUMBNAIL_SIZE,
+            THUMBNAIL_BUDGET, Math.max(1, Math.min(4,
+                    Runtime.getRuntime().availableProcessors() - 1)));
+
     /**
      * Creates a new {@code DisplayPanel} for displaying a hidden de-scrambled
      * image.
@@ -85,13 +169,7 @@ public class DisplayPanel extends JPanel {
         srcImage = topImage;
 
         /* Set the initial second image */
-        dstImage = new BufferedImage(srcImage.getWidth(), srcImage.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
-        final Graphics2D g = dstImage.createGraphics();
-        g.setColor(Color.white);
-        g.fillRect(0, 0, srcImage.getWidth(), srcImage.getHeight());
-        g.dispose();
-        dstImage = GraphicsUtilities.toCompatibleImage(dstImage);
+        dstImage = createPlaceholder();
 
         /* Enable DnD support for dropping image files */
         setTransferHandler(new ImageTransferHandler());
@@ -124,6 +202,22 @@ public class DisplayPanel extends JPanel {
                     case KeyEvent.VK_F11:
                         adjust = 100;
                         break;
+                    case KeyEvent.VK_G:
+                        if ((e.getModifiersEx() & KeyEvent.CTRL_DOWN_MASK) != 0) {
+                            showContactSheet();
+                        }
+                        break;
+                    case KeyEvent.VK_H:
+                        if (isChord(e)) {
+                            hud = !hud;
+                            repaint();
+                        }
+                        break;
+                    case KeyEvent.VK_D:
+                        if (isChord(e)) {
+                            dumpTelemetry();
+                        }
+                        break;
                 }
                 if ((e.getModifiersEx() & KeyEvent.CTRL_DOWN_MASK) != 0) {
                     final float f = composite.getAlpha() + adjust / 100f;
@@ -134,7 +228,7 @@ public class DisplayPanel extends JPanel {
             }
         }, KeyEvent.KEY_EVENT_MASK);
         enableEvents(ComponentEvent.COMPONENT_EVENT_MASK
-                | KeyEvent.KEY_EVENT_MASK);
+                | KeyEvent.KEY_EVENT_MASK | MouseEvent.MOUSE_EVENT_MASK);
         setImage(imageFile);
     }
 
@@ -149,21 +243,153 @@ public class DisplayPanel extends JPanel {
         repaint();
     }
 
+    /**
+     * Returns whether the given key event is pressed with CTRL + SHIFT.
+     *
+     * @param e The key event.
+     * @return {@code true} if both CTRL and SHIFT are down.
+     */
+    private static boolean isChord(KeyEvent e) {
+        final int mask = KeyEvent.CTRL_DOWN_MASK | KeyEvent.SHIFT_DOWN_MASK;
+        return (e.getModifiersEx() & mask) == mask;
+    }
+
+    /**
+     * Write the recorded timings to a file in the home directory.
+     */
+    private void dumpTelemetry() {
+        final File file = new File(System.getProperty("user.home"),
+                "telemetry-" + System.currentTimeMillis() + ".csv");
+        try {
+            telemetry.dump(file);
+            System.out.println("Telemetry written to: " + file);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates the white image that is shown when no image is selected.
+     *
+     * @return The placeholder image.
+     */
+    private BufferedImage createPlaceholder() {
+        final BufferedImage placeholder = new BufferedImage(srcImage.getWidth(),
+                srcImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = placeholder.createGraphics();
+        g.setColor(Color.white);
+        g.fillRect(0, 0, srcImage.getWidth(), srcImage.getHeight());
+        g.dispose();
+        return GraphicsUtilities.toCompatibleImage(placeholder);
+    }
+
+    /**
+     * Show the given image once it is de-scrambled in the background. A decode
+     * that is still running for a previous image is cancelled.
+     *
+     * @param imageFile The URL indicating the scrambled image.
+     * @return {@code true} if the image is being decoded.
+     */
     private boolean setImage(URL imageFile) {
         if (imageFile == null) {
             return false;
         }
-        /* Read the file */
+        if (decoding != null) {
+            decoding.cancel();
+        }
+        /* Read the file, or reuse it when it was opened before */
+        final DecodeHandle handle = new DecodeHandle(imageFile, (phase, fraction) -> {
+            decodeProgress = fraction;
+            if (hud) {
+                repaint();
+            }
+        }, cache);
+        decoding = handle;
+        decodeProgress = 0f;
+        handle.getCompatibleImage().whenComplete((decoded, ex) -> SwingUtilities.invokeLater(() -> {
+            if (decoding != handle) {
+                /* Superseded by another image */
+                return;
+            }
+            decoding = null;
+            if (ex != null) {
+                System.err.println("Error: " + imageFile + ": " + (ex instanceof CompletionException
+                        ? ex.getCause().getMessage() : ex.getMessage()));
+                return;
+            }
+            dstImage = decoded;
+            scaledImage = null;
+            contactSheet = false;
+            relayout();
+        }));
+        return true;
+    }
+
+    /**
+     * Show the given images. A single image is shown directly, multiple images
+     * are shown on a contact sheet.
+     *
+     * @param files The URLs indicating the scrambled images.
+     * @return {@code true} if any image is shown.
+     */
+    private boolean setImages(List<URL> files) {
+        if (files.size() < 2) {
+            imageFiles = Collections.emptyList();
+            return setImage(files.isEmpty() ? null : files.get(0));
+        }
+        imageFiles = new ArrayList<>(files);
+        thumbnails.clear();
+        showContactSheet();
+        return true;
+    }
+
+    /**
+     * Show the contact sheet, if multiple images were dropped. Only the
+     * thumbnails are kept in memory while the contact sheet is shown.
+     */
+    private void showContactSheet() {
+        if (imageFiles.size() > 1 && !contactSheet) {
+            contactSheet = true;
+            dstImage = createPlaceholder();
+            scaledImage = null;
+            relayout();
+        }
+    }
+
+    /**
+     * Resize the window to the preferred size and repaint the panel.
+     */
+    private void relayout() {
         final Window window = SwingUtilities.getWindowAncestor(this);
-        final ImageConstructor reader = new ImageConstructor(imageFile);
-        dstImage = reader.getImage();
         repaint = true;
         if (window != null) {
             window.pack();
-        } else {
-            repaint();
         }
-        return true;
+        repaint();
+    }
+
+    /**
+     * Returns the number of columns of the contact sheet.
+     *
+     * @return The number of columns that fit in the panel.
+     */
+    private int getColumns() {
+        return Math.max(1, getWidth() / CELL_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void processMouseEvent(MouseEvent e) {
+        super.processMouseEvent(e);
+        if (contactSheet && e.getID() == MouseEvent.MOUSE_CLICKED) {
+            /* Select the image of the clicked thumbnail */
+            final int index = e.getY() / CELL_SIZE * getColumns() + e.getX() / CELL_SIZE;
+            if (e.getX() / CELL_SIZE < getColumns() && index < imageFiles.size()) {
+                setImage(imageFiles.get(index));
+            }
+        }
     }
 
     /**
@@ -173,8 +399,7 @@ public class DisplayPanel extends JPanel {
     protected void processComponentEvent(ComponentEvent e) {
         super.processComponentEvent(e);
         if (e.getID() == ComponentEvent.COMPONENT_RESIZED) {
-            /* Reset the image */
-            image = null;
+            /* The image is recreated on the next paint */
             repaint = true;
             repaint();
         }
@@ -185,6 +410,12 @@ public class DisplayPanel extends JPanel {
      */
     @Override
     public Dimension getPreferredSize() {
+        if (contactSheet) {
+            /* Preferred size fits the thumbnails in a few columns */
+            final int columns = Math.min(SHEET_COLUMNS, imageFiles.size());
+            final int rows = (imageFiles.size() + columns - 1) / columns;
+            return new Dimension(columns * CELL_SIZE, rows * CELL_SIZE);
+        }
         /* Preferred size is the size of the second image */
         return new Dimension(dstImage.getWidth(), dstImage.getHeight());
     }
@@ -194,41 +425,119 @@ public class DisplayPanel extends JPanel {
      */
     @Override
     protected void paintComponent(Graphics g) {
-        if (image == null) {
-            /* Create the result image */
-            image = new BufferedImage(getWidth(), getHeight(),
-                    BufferedImage.TYPE_INT_ARGB);
+        final long start = System.nanoTime();
+        if (image == null || image.getWidth() != getWidth()
+                || image.getHeight() != getHeight()) {
+            /* Create the result image, reusing the buffer of the previous one */
+            final PixelBufferPool pool = PixelBufferPool.getDefault();
+            pool.release(image);
+            image = pool.acquireImage(getWidth(), getHeight());
             repaint = true;
         }
 
-        if (repaint) {
+        if (repaint && contactSheet) {
+            paintContactSheet();
+        } else if (repaint) {
             /* Update the image */
-            dstWidth = dstImage.getWidth();
-            dstHeight = dstImage.getHeight();
-            final double ratio = (double) getWidth() / (double) getHeight();
-            final double imgRatio = (double) dstWidth / (double) dstHeight;
-            if (ratio > imgRatio) {
-                dstHeight = Math.max(dstHeight, getHeight());
-                dstWidth = (int) (imgRatio * dstHeight);
-            } else {
-                dstWidth = Math.max(dstWidth, getWidth());
-                dstHeight = (int) (dstWidth / imgRatio);
+            final Rectangle bounds = MaskRenderer.fit(dstImage.getWidth(), dstImage.getHeight(),
+                    getWidth(), getHeight());
+            dstX = bounds.x;
+            dstY = bounds.y;
+            dstWidth = bounds.width;
+            dstHeight = bounds.height;
+            if (scaledImage == null || scaledImage.getWidth() != dstWidth
+                    || scaledImage.getHeight() != dstHeight) {
+                /* Only scale the second image when the size changes */
+                final long scale = System.nanoTime();
+                scaledImage = GraphicsUtilities.getAreaAveragedInstance(dstImage,
+                        dstWidth, dstHeight);
+                telemetry.record("scale", scale);
             }
-            dstX = (getWidth() - dstWidth) / 2;
-            dstY = (getHeight() - dstHeight) / 2;
-            final Graphics2D g2 = image.createGraphics();
-            g2.setColor(Color.white);
-            g2.setComposite(AlphaComposite.Src);
-            g2.fillRect(0, 0, getWidth(), getHeight());
-            g2.drawImage(srcImage, srcX, srcY, null);
-            g2.setComposite(composite);
-            g2.drawImage(dstImage, dstX, dstY, dstWidth, dstHeight, null);
-            g2.dispose();
+            final long compose = System.nanoTime();
+            MaskRenderer.compose(image, srcImage, srcX, srcY, scaledImage, dstX, dstY, composite);
+            telemetry.record("compose", compose);
 
             repaint = false;
         }
 
         g.drawImage(image, 0, 0, null);
+        telemetry.record("paint", start);
+        if (hud) {
+            paintHud(g);
+        }
+    }
+
+    /**
+     * Paint the timing overlay in the top left corner of the panel.
+     *
+     * @param g The graphics to paint on.
+     */
+    private void paintHud(Graphics g) {
+        final String[] lines = {
+            String.format("%d fps", telemetry.rate("paint")),
+            String.format("paint      %6.2f ms", telemetry.average("paint", HUD_SAMPLES)),
+            String.format("compose    %6.2f ms", telemetry.average("compose", HUD_SAMPLES)),
+            String.format("scale      %6.2f ms", telemetry.last("scale")),
+            String.format("tick       %6.2f ms", telemetry.average("tick", HUD_SAMPLES)),
+            String.format("read       %6.2f ms", telemetry.last("decode.read")),
+            String.format("key        %6.2f ms", telemetry.last("decode.key")),
+            String.format("permute    %6.2f ms", telemetry.last("decode.permutation")),
+            String.format("descramble %6.2f ms", telemetry.last("decode.descramble")),
+            String.format("convert    %6.2f ms", telemetry.last("decode.convert")),
+            String.format("cache      %6.0f %% (%d memory, %d disk, %d miss)", 100 * cache.getHitRate(),
+                    cache.getMemoryHits(), cache.getDiskHits(), cache.getMisses()),
+            decoding == null ? "" : String.format("decoding   %6.0f %%", 100 * decodeProgress)
+        };
+        g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        final int lineHeight = g.getFontMetrics().getHeight();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, g.getFontMetrics().stringWidth(line));
+        }
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(4, 4, width + 8, lines.length * lineHeight + 8);
+        g.setColor(Color.white);
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], 8, 8 + g.getFontMetrics().getAscent() + i * lineHeight);
+        }
+    }
+
+    /**
+     * Update the image with the thumbnails of the contact sheet. Thumbnails
+     * that are not available yet are requested and painted once ready.
+     */
+    private void paintContactSheet() {
+        final long start = System.nanoTime();
+        dstX = 0;
+        dstY = 0;
+        dstWidth = getWidth();
+        dstHeight = getHeight();
+        final Graphics2D g2 = image.createGraphics();
+        g2.setColor(Color.white);
+        g2.setComposite(AlphaComposite.Src);
+        g2.fillRect(0, 0, getWidth(), getHeight());
+        g2.drawImage(srcImage, srcX, srcY, null);
+        g2.setComposite(composite);
+        final int columns = getColumns();
+        for (int i = 0; i < imageFiles.size(); i++) {
+            final int cellX = i % columns * CELL_SIZE;
+            final int cellY = i / columns * CELL_SIZE;
+            if (cellY > getHeight()) {
+                break;
+            }
+            final BufferedImage thumbnail = thumbnails.get(imageFiles.get(i), () -> {
+                repaint = true;
+                repaint();
+            });
+            if (thumbnail != null) {
+                g2.drawImage(thumbnail, cellX + (CELL_SIZE - thumbnail.getWidth()) / 2,
+                        cellY + (CELL_SIZE - thumbnail.getHeight()) / 2, null);
+            }
+        }
+        g2.dispose();
+        telemetry.record("compose", start);
+
+        repaint = false;
     }
 
     /**
@@ -244,6 +553,7 @@ public class DisplayPanel extends JPanel {
          */
         @Override
         public void run() {
+            final long start = System.nanoTime();
             /*
              * Move the source image, but bounce on the edges of the second
              * image
@@ -270,6 +580,7 @@ public class DisplayPanel extends JPanel {
                     - srcImage.getHeight()));
             repaint = true;
             repaint();
+            telemetry.record("tick", start);
         }
     }
 
@@ -301,20 +612,23 @@ public class DisplayPanel extends JPanel {
             }
 
             final Transferable t = support.getTransferable();
-            URL imageFile = null;
+            final List<URL> imageFiles = new ArrayList<>();
             try {
                 final String fileName = (String) t.getTransferData(DataFlavor.stringFlavor);
-                imageFile = new URL(fileName);
+                imageFiles.add(new URL(fileName));
             } catch (Exception e) {
             }
             try {
                 final List<File> fileList = (List<File>) t.getTransferData(DataFlavor.javaFileListFlavor);
                 if (fileList.size() > 0) {
-                    imageFile = fileList.get(0).toURI().toURL();
+                    imageFiles.clear();
+                    for (File file : fileList) {
+                        imageFiles.add(file.toURI().toURL());
+                    }
                 }
             } catch (Exception e) {
             }
-            return setImage(imageFile);
+            return setImages(imageFiles);
         }
     }
 }
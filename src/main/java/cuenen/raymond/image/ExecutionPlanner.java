@@ -0,0 +1,976 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Chooses how a scramble job is executed on this host, from the image header
+ * and a calibration of the host. <br>
+ * The calibration measures the memory bandwidth, the parallel speedup, the
+ * cost per pixel of every scramble mode and generator, and the speed and
+ * output size of the PNG encoder at the default and at a fast compression
+ * level, on a synthetic scrambled image of {@value #SAMPLE_SIZE} pixels
+ * square. It takes about two seconds, is run on first use and is cached in
+ * {@value #FILE_NAME} in the directory of the {@link DecodeCache}, or in the
+ * file given by the {@code cuenen.raymond.image.calibration} system property.
+ * The host is calibrated again when its processors or Java runtime change.
+ * Images below {@value #PARALLEL_PIXELS} pixels get a fixed sequential plan,
+ * so they never wait for the calibration nor touch its file.
+ * <br>
+ * The calibration measures the steady state, after a warm-up run, and the
+ * fixed overhead of a job on a tiny image. The actual time of every job is fed
+ * back into the overhead and into a correction factor of the per pixel
+ * predictions, which are fitted to the recent jobs. Both are cached with the
+ * calibration, so the predictions learn the costs that the calibration does
+ * not see, like the warm-up of a new process, the file system and images
+ * larger than the cache. The learned values are only written when they change
+ * the predictions by more than {@value #MATERIAL_CHANGE}, and at most every
+ * {@value #STORE_INTERVAL} milliseconds, so a short process rarely writes.
+ * <p>
+ * A {@link Plan} holds:
+ * <ul>
+ * <li>The parallelism: sequential for images below {@value #PARALLEL_PIXELS}
+ * pixels, or when the calibrated speedup is below {@value #MIN_SPEEDUP}.</li>
+ * <li>The compression level: level {@value #FAST_LEVEL} when it encodes
+ * faster than the default level and its output is at most
+ * {@value #SIZE_TOLERANCE} larger. Scrambled images are noise to the PNG
+ * filters, so higher levels rarely pay off.</li>
+ * <li>The capacity of the buffer pool: at most half of the heap that is left
+ * besides the {@link MemoryBudget#estimate estimated memory} of the job.</li>
+ * <li>The predicted time of the fixed overhead, decoding, permuting and
+ * encoding.</li>
+ * </ul>
+ * The tile size is part of the key and is never chosen by the planner.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+final class ExecutionPlanner {
+
+    /**
+     * A job executed by a plan.
+     */
+    @FunctionalInterface
+    interface Job {
+
+        /**
+         * Runs the job.
+         *
+         * @throws IOException If the job fails.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * The name of the system property holding the calibration file.
+     */
+    static final String CALIBRATION_PROPERTY = "cuenen.raymond.image.calibration";
+
+    /**
+     * The name of the calibration file in the cache directory.
+     */
+    private static final String FILE_NAME = "calibration.properties";
+
+    /**
+     * The width and height of the calibration image.
+     */
+    private static final int SAMPLE_SIZE = 512;
+
+    /**
+     * The number of runs of a measurement, of which the fastest counts.
+     */
+    private static final int RUNS = 3;
+
+    /**
+     * The number of pixels from which a job is run in parallel.
+     */
+    private static final int PARALLEL_PIXELS = 1 << 18;
+
+    /**
+     * The parallel speedup from which a job is run in parallel.
+     */
+    private static final double MIN_SPEEDUP = 1.2;
+
+    /**
+     * The fast compression level.
+     */
+    private static final int FAST_LEVEL = 1;
+
+    /**
+     * The fraction the output of the fast compression level may be larger.
+     */
+    private static final double SIZE_TOLERANCE = 0.05;
+
+    /**
+     * The fraction by which the weight of the earlier jobs in the learned
+     * values decays with every job.
+     */
+    private static final double LEARNING_RATE = 0.3;
+
+    /**
+     * The predicted time of the phases, in milliseconds, of the large job that
+     * the calibrated values are taken as observation of, before any job is
+     * learned.
+     */
+    private static final double PRIOR_WORK = 1000;
+
+    /**
+     * The minimum time, in milliseconds, between writes of the learned values
+     * to the calibration file.
+     */
+    private static final long STORE_INTERVAL = 60000L;
+
+    /**
+     * The fraction by which the learned values must change a prediction
+     * before they are written to the calibration file.
+     */
+    private static final double MATERIAL_CHANGE = 0.1;
+
+    /**
+     * The width and height of the image of the overhead calibration.
+     */
+    private static final int TINY_SIZE = 16;
+
+    /**
+     * The calibration key of the host.
+     */
+    private static final String HOST = "host";
+
+    /**
+     * The calibration key of the correction factor of the predictions, per
+     * out of place and in place jobs.
+     */
+    private static final String CORRECTION = "correction";
+
+    /**
+     * The calibration key of the fixed overhead of a job, in milliseconds, per
+     * out of place and in place jobs.
+     */
+    private static final String OVERHEAD = "overhead";
+
+    /**
+     * The calibration key of the weighted sums that the overhead and the
+     * correction factor are fitted from, per out of place and in place jobs.
+     */
+    private static final String FIT = "fit";
+
+    /**
+     * The calibration key suffix of the values learned from in place jobs.
+     */
+    private static final String IN_PLACE = ".inplace";
+
+    /**
+     * The default planner, created on first use.
+     */
+    private static ExecutionPlanner defaultPlanner;
+
+    /**
+     * The calibration of the host.
+     */
+    private final Properties calibration;
+
+    /**
+     * The file the calibration is cached in, or {@code null}.
+     */
+    private final Path file;
+
+    /**
+     * The calibration as it was last read from or written to its file.
+     */
+    private final Properties written;
+
+    /**
+     * The {@link System#nanoTime() time} the learned values were last written,
+     * or {@code null} if they were not written yet.
+     */
+    private Long stored;
+
+    /**
+     * Returns the default planner, with the cached calibration of this host.
+     * The host is calibrated if there is no valid cached calibration.
+     *
+     * @return The default planner.
+     */
+    static synchronized ExecutionPlanner getDefault() {
+        if (defaultPlanner == null) {
+            final String file = System.getProperty(CALIBRATION_PROPERTY);
+            final String directory = System.getProperty(DecodeCache.DIRECTORY_PROPERTY);
+            defaultPlanner = load(file != null ? Paths.get(file) : directory != null
+                    ? Paths.get(directory, FILE_NAME)
+                    : Paths.get(System.getProperty("user.home"), ".image-cache", FILE_NAME));
+        }
+        return defaultPlanner;
+    }
+
+    /**
+     * Creates a new {@code ExecutionPlanner}.
+     *
+     * @param calibration The calibration of the host.
+     * @param file The file to cache the calibration in, or {@code null} to not
+     * cache it.
+     */
+    ExecutionPlanner(Properties calibration, Path file) {
+        this.calibration = calibration;
+        this.file = file;
+        this.written = (Properties) calibration.clone();
+    }
+
+    /**
+     * Loads a planner from a calibration file. If the file cannot be read, is
+     * incomplete or belongs to another host, the host is calibrated and the
+     * file is written.
+     *
+     * @param file The calibration file.
+     * @return The planner.
+     */
+    static ExecutionPlanner load(Path file) {
+        final Properties calibration = new Properties();
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                calibration.load(in);
+            } catch (IOException ex) {
+                calibration.clear();
+            }
+        }
+        if (!host().equals(calibration.getProperty(HOST)) || !isComplete(calibration)) {
+            System.err.println("Calibrating this host for the execution planner");
+            calibration.clear();
+            calibration.putAll(calibrate());
+            final ExecutionPlanner planner = new ExecutionPlanner(calibration, file);
+            planner.store();
+            return planner;
+        }
+        return new ExecutionPlanner(calibration, file);
+    }
+
+    /**
+     * Writes the calibration to its file. If it cannot be written, it is only
+     * kept for this process.
+     */
+    private synchronized void store() {
+        written.clear();
+        written.putAll(calibration);
+        if (file == null) {
+            return;
+        }
+        try {
+            final Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            final Path temp = Files.createTempFile(directory, FILE_NAME, ".part");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                calibration.store(out, "Calibration of the execution planner");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            /* The calibration is only kept for this process */
+        }
+    }
+
+    /**
+     * Feeds the actual time of a job back into the overhead and the correction
+     * factor of the predictions. The actual times are fitted as the overhead
+     * plus the corrected per pixel costs, by least squares of the relative
+     * error, in which the weight of the earlier jobs decays by
+     * {@value #LEARNING_RATE} with every job. The fit starts from the
+     * calibrated values, so the first jobs do not overturn them. The learned
+     * values are written to the calibration file once they change a prediction
+     * materially, at most every {@value #STORE_INTERVAL} milliseconds.
+     *
+     * @param suffix The calibration key suffix of the job.
+     * @param work The predicted time of the phases, without correction, in
+     * milliseconds.
+     * @param predicted The predicted time, in milliseconds.
+     * @param actual The actual time, in milliseconds.
+     */
+    private synchronized void learn(String suffix, double work, double predicted, double actual) {
+        final double ratio = actual / predicted;
+        if (!(ratio > 0) || Double.isInfinite(ratio) || !(work > 0)) {
+            return;
+        }
+        /* Weighted sums of 1, x, y, x * x and x * y, with x the work and y the actual time */
+        double[] sums = fit(suffix);
+        final double overhead = overhead(suffix);
+        final double correction = correction(suffix);
+        /* A single outlier, e.g. a job that waited for the disk, counts at most tenfold */
+        final double bounded = predicted * Math.max(0.1, Math.min(10, ratio));
+        if (sums == null) {
+            /* The current values, as observations of a job without work and of a large job */
+            sums = new double[5];
+            observe(sums, 0, overhead, predicted);
+            final double large = overhead + correction * PRIOR_WORK;
+            observe(sums, PRIOR_WORK, large, large);
+        }
+        for (int k = 0; k < sums.length; k++) {
+            sums[k] *= 1 - LEARNING_RATE;
+        }
+        observe(sums, work, bounded, predicted);
+        final double det = sums[0] * sums[3] - sums[1] * sums[1];
+        double slope = det > 0 ? (sums[0] * sums[4] - sums[1] * sums[2]) / det : correction;
+        double intercept = (sums[2] - slope * sums[1]) / sums[0];
+        if (!(slope > 0) || intercept < 0) {
+            /* Keep the model meaningful: no negative overhead or costs */
+            slope = sums[3] > 0 && sums[4] > 0 ? sums[4] / sums[3] : correction;
+            intercept = 0;
+        }
+        final StringBuilder value = new StringBuilder();
+        for (double sum : sums) {
+            value.append(value.length() > 0 ? "," : "").append(format(sum));
+        }
+        calibration.setProperty(FIT + suffix, value.toString());
+        calibration.setProperty(OVERHEAD + suffix, format(intercept));
+        calibration.setProperty(CORRECTION + suffix, format(slope));
+        final long now = System.nanoTime();
+        if (isMaterial(suffix, work) && (stored == null || now - stored >= STORE_INTERVAL * 1000000L)) {
+            stored = now;
+            store();
+        }
+    }
+
+    /**
+     * Returns whether the learned values predict the given job, or the large
+     * job of the prior, more than {@value #MATERIAL_CHANGE} differently than
+     * the values last written.
+     */
+    private boolean isMaterial(String suffix, double work) {
+        final double overhead = overhead(suffix);
+        final double correction = correction(suffix);
+        final double writtenOverhead = Double.parseDouble(written.getProperty(OVERHEAD + suffix,
+                written.getProperty(OVERHEAD)));
+        final double writtenCorrection = Double.parseDouble(written.getProperty(CORRECTION + suffix, "1"));
+        for (double x : new double[]{work, PRIOR_WORK}) {
+            final double before = writtenOverhead + writtenCorrection * x;
+            if (Math.abs(overhead + correction * x - before) > MATERIAL_CHANGE * before) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an observation to the weighted sums of a fit, weighted by the
+     * inverse square of its predicted time so the relative error is fitted.
+     */
+    private static void observe(double[] sums, double x, double y, double scale) {
+        final double weight = 1 / (scale * scale);
+        sums[0] += weight;
+        sums[1] += weight * x;
+        sums[2] += weight * y;
+        sums[3] += weight * x * x;
+        sums[4] += weight * x * y;
+    }
+
+    /**
+     * Returns the weighted sums of the fit of the learned values, or
+     * {@code null} if nothing was learned yet.
+     */
+    private double[] fit(String suffix) {
+        final String value = calibration.getProperty(FIT + suffix);
+        if (value == null) {
+            return null;
+        }
+        final String[] parts = value.split(",");
+        if (parts.length != 5) {
+            return null;
+        }
+        final double[] sums = new double[parts.length];
+        for (int k = 0; k < parts.length; k++) {
+            try {
+                sums[k] = Double.parseDouble(parts[k]);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Returns a correction factor of the predictions.
+     */
+    private synchronized double correction(String suffix) {
+        return Double.parseDouble(calibration.getProperty(CORRECTION + suffix, "1"));
+    }
+
+    /**
+     * Returns the fixed overhead of a job, in milliseconds. Until it is
+     * learned for in place jobs, it is the calibrated overhead.
+     */
+    private synchronized double overhead(String suffix) {
+        return Double.parseDouble(calibration.getProperty(OVERHEAD + suffix,
+                calibration.getProperty(OVERHEAD)));
+    }
+
+    /**
+     * Returns the calibration of the host.
+     *
+     * @return The calibration, as keys and values.
+     */
+    Properties getCalibration() {
+        return calibration;
+    }
+
+    /**
+     * Plans an out of place job for the given image, from its header only. An
+     * image below {@value #PARALLEL_PIXELS} pixels gets a fixed plan, anything
+     * larger is planned by the default planner.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param type The direction of scrambling.
+     * @param image The URL indicating the image.
+     * @return The plan.
+     * @throws IOException If the header cannot be read.
+     */
+    static Plan plan(ScrambleKey key, SwapDirection type, URL image) throws IOException {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(image.openStream())) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return plan(key, type, reader, false);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Plans a job for the image of the given reader, from its header only. An
+     * image below {@value #PARALLEL_PIXELS} pixels gets a fixed plan, anything
+     * larger is planned by the default planner.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param type The direction of scrambling.
+     * @param reader The reader, with its input set.
+     * @param inPlace {@code true} if the image is permuted in place.
+     * @return The plan.
+     * @throws IOException If the header cannot be read.
+     */
+    static Plan plan(ScrambleKey key, SwapDirection type, ImageReader reader, boolean inPlace)
+            throws IOException {
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        int bytesPerPixel = 4;
+        if (types.hasNext()) {
+            final SampleModel model = types.next().getSampleModel(1, 1);
+            bytesPerPixel = Math.max(1, DataBuffer.getDataTypeSize(model.getDataType()) / 8
+                    * model.getNumDataElements());
+        }
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final long memory = MemoryBudget.estimate(key, type, reader, inPlace);
+        if ((long) width * height < PARALLEL_PIXELS) {
+            return new Plan(key, width, height, memory, poolCapacity(memory));
+        }
+        return getDefault().plan(key, width, height, bytesPerPixel, reader.getFormatName(), inPlace, memory);
+    }
+
+    /**
+     * Plans a job for an image of the given size and format.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param bytesPerPixel The size of a decoded pixel.
+     * @param format The name of the image format, e.g. {@code png}.
+     * @param inPlace {@code true} if the image is permuted in place.
+     * @param memory The estimated memory of the job, in bytes.
+     * @return The plan.
+     */
+    Plan plan(ScrambleKey key, int width, int height, int bytesPerPixel, String format,
+            boolean inPlace, long memory) {
+        final long pixels = (long) width * height;
+        final double speedup = value("speedup");
+        final boolean parallel = pixels >= PARALLEL_PIXELS && speedup >= MIN_SPEEDUP;
+        final int parallelism = parallel ? ForkJoinPool.getCommonPoolParallelism() : 1;
+
+        final double fastEncode = value("encode." + FAST_LEVEL);
+        final double defaultEncode = value("encode.default");
+        final boolean fast = fastEncode < defaultEncode
+                && value("size." + FAST_LEVEL) <= (1 + SIZE_TOLERANCE) * value("size.default");
+        final int level = fast ? FAST_LEVEL : Deflater.DEFAULT_COMPRESSION;
+
+        final long poolCapacity = poolCapacity(memory);
+
+        double permute = value("permute." + key.getMode().getId() + "." + key.getGenerator());
+        if (key.getMode() == ScrambleKey.Mode.SEPARABLE) {
+            permute = permute * key.getRounds() / ScrambleKey.DEFAULT_ROUNDS;
+        }
+        /* The calibration image fits in the cache, reading and writing the image may not */
+        permute += (bytesPerPixel + 4) / value("bandwidth");
+        final boolean bmp = "bmp".equalsIgnoreCase(format);
+        final String suffix = inPlace ? IN_PLACE : "";
+        final double correction = correction(suffix);
+        return new Plan(this, suffix, key, width, height, parallelism, level, memory, poolCapacity,
+                overhead(suffix), correction, pixels * value(bmp ? "decode.bmp" : "decode.png") / 1e6,
+                pixels * permute / (parallel ? speedup : 1.0) / 1e6,
+                pixels * (fast ? fastEncode : defaultEncode) / 1e6);
+    }
+
+    /**
+     * Returns the capacity of the buffer pool that the heap can spare besides
+     * a job.
+     *
+     * @param memory The estimated memory of the job, in bytes.
+     * @return The capacity, in bytes.
+     */
+    private static long poolCapacity(long memory) {
+        final long headroom = Runtime.getRuntime().maxMemory() - memory;
+        return Math.max(0, Math.min(PixelBufferPool.getDefault().getCapacity(), headroom / 2));
+    }
+
+    /**
+     * Returns a calibrated value.
+     *
+     * @param name The name of the value.
+     * @return The value, or zero if it was not calibrated.
+     */
+    private double value(String name) {
+        final String value = calibration.getProperty(name);
+        return value != null ? Double.parseDouble(value) : 0.0;
+    }
+
+    /**
+     * Calibrates the host. Every cost is measured sequentially, in
+     * nanoseconds per pixel of the calibration image.
+     *
+     * @return The calibration, as keys and values.
+     */
+    static Properties calibrate() {
+        final Properties calibration = new Properties();
+        calibration.setProperty(HOST, host());
+        final int size = SAMPLE_SIZE * SAMPLE_SIZE;
+        final double pixels = size;
+        try {
+            run(1, () -> {
+                /* Memory bandwidth, in bytes per nanosecond, beyond the second level cache */
+                final int[] src = new int[4 << 20];
+                final int[] dst = new int[src.length];
+                calibration.setProperty("bandwidth", format(2.0 * 4 * src.length
+                        / time(() -> System.arraycopy(src, 0, dst, 0, src.length))));
+
+                for (ScrambleKey.Mode mode : ScrambleKey.Mode.values()) {
+                    for (String generator : new String[]{RandomNumberGenerator.ALGORITHM,
+                        CounterNumberGenerator.ALGORITHM}) {
+                        final ScrambleKey key = new ScrambleKey(1, generator, mode);
+                        calibration.setProperty("permute." + mode.getId() + "." + generator,
+                                format(time(() -> permute(key, src, dst)) / pixels));
+                    }
+                }
+
+                final BufferedImage sample = sample();
+                final int[] samplePixels = ((DataBufferInt) sample.getRaster().getDataBuffer()).getData();
+                byte[] png = null;
+                for (int level : new int[]{FAST_LEVEL, Deflater.DEFAULT_COMPRESSION}) {
+                    final String name = level == FAST_LEVEL ? String.valueOf(level) : "default";
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream(4 * size);
+                    calibration.setProperty("encode." + name, format(time(() -> {
+                        out.reset();
+                        encode(out, samplePixels, level);
+                    }) / pixels));
+                    calibration.setProperty("size." + name, format(out.size() / pixels));
+                    png = out.toByteArray();
+                }
+                calibration.setProperty("decode.png", format(decode(png) / pixels));
+                final ByteArrayOutputStream bmp = new ByteArrayOutputStream(4 * size);
+                ImageIO.write(sample, "bmp", bmp);
+                calibration.setProperty("decode.bmp", format(decode(bmp.toByteArray()) / pixels));
+
+                /* A job on a tiny image is all overhead: the reader, the permutation and the encoder */
+                final ScrambleKey key = new ScrambleKey(1);
+                final byte[] tiny = tiny();
+                calibration.setProperty(OVERHEAD, format(time(() -> {
+                    try {
+                        final ImageReader reader = ImageConstructor.openImage(
+                                Channels.newChannel(new ByteArrayInputStream(tiny)));
+                        try {
+                            ImageCreator.scramble(key, false, reader, Channels.newChannel(
+                                    new ByteArrayOutputStream(tiny.length)), Deflater.DEFAULT_COMPRESSION);
+                        } finally {
+                            ImageConstructor.closeImage(reader);
+                        }
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }) / 1e6));
+            });
+
+            /* The separable mode is the only one whose passes are all parallel */
+            final int[] src = new int[size];
+            final int[] dst = new int[size];
+            final ScrambleKey key = new ScrambleKey(1, CounterNumberGenerator.ALGORITHM,
+                    ScrambleKey.Mode.SEPARABLE);
+            final SeparablePermutation permutation = new SeparablePermutation(key, SAMPLE_SIZE, SAMPLE_SIZE);
+            final double[] sequential = new double[1];
+            run(1, () -> sequential[0] = time(() -> permutation.apply(true, src, dst)));
+            calibration.setProperty("speedup", format(ForkJoinPool.getCommonPoolParallelism() == 1 ? 1.0
+                    : sequential[0] / time(() -> permutation.apply(true, src, dst))));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return calibration;
+    }
+
+    /**
+     * Creates the permutation of a key for the calibration image and gathers
+     * the pixels, the way the {@code ImageCreator} does.
+     */
+    private static void permute(ScrambleKey key, int[] src, int[] dst) {
+        final Permutation permutation = RasterCreator.permutation(key, SAMPLE_SIZE, SAMPLE_SIZE);
+        if (permutation instanceof SeparablePermutation) {
+            ((SeparablePermutation) permutation).apply(true, src, dst);
+        } else {
+            for (int i = 0; i < permutation.size(); i++) {
+                dst[i] = 0xFF000000 | src[permutation.get(i)];
+            }
+        }
+    }
+
+    /**
+     * Returns the calibration image: a scrambled color gradient, which has the
+     * color distribution of a smooth image and no correlation between
+     * neighbouring pixels.
+     */
+    private static BufferedImage sample() {
+        final BufferedImage image = new BufferedImage(SAMPLE_SIZE, SAMPLE_SIZE, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final int[] permutation = RasterCreator.permutation(new ScrambleKey(1), pixels.length);
+        for (int i = 0; i < pixels.length; i++) {
+            final int x = permutation[i] % SAMPLE_SIZE;
+            final int y = permutation[i] / SAMPLE_SIZE;
+            pixels[i] = (x / 2) << 16 | (y / 2) << 8 | (x + y) / 4;
+        }
+        return image;
+    }
+
+    /**
+     * Returns a tiny PNG image for the overhead calibration.
+     */
+    private static byte[] tiny() {
+        final int[] pixels = new int[TINY_SIZE * TINY_SIZE];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            PngEncoder.write(out, TINY_SIZE, TINY_SIZE, Collections.emptyMap(),
+                    (y, row) -> System.arraycopy(pixels, y * TINY_SIZE, row, 0, TINY_SIZE),
+                    Deflater.DEFAULT_COMPRESSION);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the calibration image with the {@link PngEncoder}.
+     */
+    private static void encode(OutputStream out, int[] pixels, int level) {
+        try {
+            PngEncoder.write(out, SAMPLE_SIZE, SAMPLE_SIZE, Collections.emptyMap(),
+                    (y, row) -> System.arraycopy(pixels, y * SAMPLE_SIZE, row, 0, SAMPLE_SIZE), level);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the time to decode an encoded image, in nanoseconds.
+     */
+    private static double decode(byte[] image) {
+        return time(() -> {
+            try {
+                /* The image is read from memory, the stream is closed by the read */
+                ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(image)));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    /**
+     * Returns the fastest time of {@value #RUNS} runs of a task after a
+     * warm-up run, in nanoseconds.
+     */
+    private static double time(Runnable task) {
+        task.run();
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return Math.max(1, best);
+    }
+
+    /**
+     * Formats a calibrated value.
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.4g", value);
+    }
+
+    /**
+     * Returns the description of this host that a calibration belongs to.
+     *
+     * @return The processors, architecture and Java runtime of the host.
+     */
+    private static String host() {
+        return Runtime.getRuntime().availableProcessors() + " " + System.getProperty("os.arch")
+                + " " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version");
+    }
+
+    /**
+     * Returns whether a calibration holds every value a plan needs.
+     */
+    private static boolean isComplete(Properties calibration) {
+        for (String name : new String[]{"bandwidth", "speedup", OVERHEAD, "encode.default", "encode." + FAST_LEVEL,
+            "size.default", "size." + FAST_LEVEL, "decode.png", "decode.bmp"}) {
+            if (calibration.getProperty(name) == null) {
+                return false;
+            }
+        }
+        for (ScrambleKey.Mode mode : ScrambleKey.Mode.values()) {
+            if (calibration.getProperty("permute." + mode.getId() + "." + RandomNumberGenerator.ALGORITHM) == null
+                    || calibration.getProperty("permute." + mode.getId() + "."
+                            + CounterNumberGenerator.ALGORITHM) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a job on a pool of the given parallelism, which the parallel loops
+     * of the job run on as well.
+     *
+     * @param parallelism The number of threads.
+     * @param job The job.
+     * @throws IOException If the job fails.
+     */
+    static void run(int parallelism, Job job) throws IOException {
+        if (parallelism == ForkJoinPool.getCommonPoolParallelism()) {
+            job.run();
+            return;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final Throwable[] failure = new Throwable[1];
+        try {
+            pool.submit(() -> {
+                try {
+                    job.run();
+                } catch (IOException | RuntimeException | Error ex) {
+                    failure[0] = ex;
+                }
+            }).join();
+        } finally {
+            pool.shutdown();
+        }
+        if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        } else if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+    }
+
+    /**
+     * The execution plan of a job.
+     */
+    static final class Plan {
+
+        /**
+         * The planner that made this plan, or {@code null} for a fixed plan.
+         */
+        private final ExecutionPlanner planner;
+
+        /**
+         * The calibration key suffix of the learned values of this plan.
+         */
+        private final String suffix;
+
+        /**
+         * The key of the job.
+         */
+        private final ScrambleKey key;
+
+        /**
+         * The size of the image.
+         */
+        private final int width, height;
+
+        /**
+         * The number of threads of the parallel loops.
+         */
+        private final int parallelism;
+
+        /**
+         * The compression level of the output.
+         */
+        private final int level;
+
+        /**
+         * The estimated memory of the job, in bytes.
+         */
+        private final long memory;
+
+        /**
+         * The capacity of the buffer pool that the heap can spare.
+         */
+        private final long poolCapacity;
+
+        /**
+         * The predicted time, in milliseconds, of the fixed overhead and every
+         * phase.
+         */
+        private final double overhead, decode, permute, encode;
+
+        /**
+         * The predicted time, in milliseconds, of the phases without
+         * correction.
+         */
+        private final double work;
+
+        /**
+         * Creates a fixed plan: sequential, at the default compression level
+         * and without predictions.
+         */
+        private Plan(ScrambleKey key, int width, int height, long memory, long poolCapacity) {
+            this(null, "", key, width, height, 1, Deflater.DEFAULT_COMPRESSION, memory, poolCapacity,
+                    0, 1, 0, 0, 0);
+        }
+
+        private Plan(ExecutionPlanner planner, String suffix, ScrambleKey key, int width, int height, int parallelism,
+                int level, long memory, long poolCapacity, double overhead, double correction, double decode,
+                double permute, double encode) {
+            this.planner = planner;
+            this.suffix = suffix;
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.parallelism = parallelism;
+            this.level = level;
+            this.memory = memory;
+            this.poolCapacity = poolCapacity;
+            this.overhead = overhead;
+            this.work = decode + permute + encode;
+            this.decode = correction * decode;
+            this.permute = correction * permute;
+            this.encode = correction * encode;
+        }
+
+        /**
+         * Returns the number of threads of the parallel loops.
+         *
+         * @return The parallelism, 1 for a sequential job.
+         */
+        int getParallelism() {
+            return parallelism;
+        }
+
+        /**
+         * Returns the compression level of the output.
+         *
+         * @return The level, from 0 to 9, or
+         * {@link Deflater#DEFAULT_COMPRESSION}.
+         */
+        int getLevel() {
+            return level;
+        }
+
+        /**
+         * Returns the estimated memory of the job, to be admitted by the
+         * {@link MemoryBudget}.
+         *
+         * @return The memory, in bytes.
+         */
+        long getMemory() {
+            return memory;
+        }
+
+        /**
+         * Returns the capacity of the buffer pool that the heap can spare
+         * besides the job.
+         *
+         * @return The capacity, in bytes.
+         */
+        long getPoolCapacity() {
+            return poolCapacity;
+        }
+
+        /**
+         * Returns the predicted time of the job.
+         *
+         * @return The time, in milliseconds.
+         */
+        double getPredicted() {
+            return overhead + decode + permute + encode;
+        }
+
+        /**
+         * Executes a job with the parallelism of this plan, and logs the plan
+         * and the predicted versus actual time. The actual time of a job that
+         * succeeds is fed back into the predictions of the planner. A fixed
+         * plan has no predictions, so it only logs the actual time.
+         *
+         * @param job The job.
+         * @param log The stream to log to.
+         * @throws IOException If the job fails.
+         */
+        void execute(Job job, PrintStream log) throws IOException {
+            log.println("Plan: " + this);
+            final long start = System.nanoTime();
+            run(parallelism, job);
+            final double actual = (System.nanoTime() - start) / 1e6;
+            if (planner == null) {
+                log.println(String.format(Locale.ROOT, "Plan: took %.0f ms", actual));
+                return;
+            }
+            planner.learn(suffix, work, getPredicted(), actual);
+            log.println(String.format(Locale.ROOT, "Plan: took %.0f ms, predicted %.0f ms (%+.0f%%)",
+                    actual, getPredicted(), 100 * (actual / getPredicted() - 1)));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            if (planner == null) {
+                return String.format(Locale.ROOT, "%dx%d %s %s, sequential, deflate level default, "
+                        + "pool %d MB, fixed", width, height, key.getMode().getId(), key.getGenerator(),
+                        poolCapacity >> 20);
+            }
+            return String.format(Locale.ROOT, "%dx%d %s %s, %s, deflate level %s, pool %d MB, "
+                    + "predicted %.0f ms (overhead %.0f, decode %.0f, permute %.0f, encode %.0f)", width, height,
+                    key.getMode().getId(), key.getGenerator(),
+                    parallelism == 1 ? "sequential" : parallelism + " threads",
+                    level == Deflater.DEFAULT_COMPRESSION ? "default" : String.valueOf(level),
+                    poolCapacity >> 20, getPredicted(), overhead, decode, permute, encode);
+        }
+    }
+}
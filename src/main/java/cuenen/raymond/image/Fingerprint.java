@@ -0,0 +1,220 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Utility class for the fingerprint of a scrambled image. <br>
+ * The fingerprint is a hash of a small sample of source pixels, at positions
+ * determined by the seed. It is stored with the scrambled image, so a wrong or
+ * tampered key is detected by locating only the sampled pixels in the scrambled
+ * image, before committing to a full de-scramble.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class Fingerprint {
+
+    /**
+     * The metadata keyword of the fingerprint.
+     */
+    public static final String FINGERPRINT = "fingerprint";
+
+    /**
+     * The number of sampled pixels.
+     */
+    private static final int SAMPLES = 64;
+
+    /**
+     * Seed modifier for the sample positions.
+     */
+    private static final long SAMPLE_SEED = 0x2545F4914F6CDD1DL;
+
+    /**
+     * Private constructor so it is not instantiated.
+     */
+    private Fingerprint() {
+    }
+
+    /**
+     * Computes the fingerprint of a source image.
+     *
+     * @param key The key the image is scrambled with.
+     * @param src The source raster.
+     * @return The fingerprint.
+     */
+    public static String of(ScrambleKey key, Raster src) {
+        final int width = src.getWidth();
+        final int[] positions = positions(key, width * src.getHeight());
+        final int[] pixels = new int[positions.length];
+        for (int k = 0; k < positions.length; k++) {
+            pixels[k] = rgb(src, positions[k] % width, positions[k] / width);
+        }
+        return hash(pixels);
+    }
+
+    /**
+     * Computes the fingerprint of the source image from the scrambled image.
+     * Only the sampled pixels are located in the scrambled image.
+     *
+     * @param key The key the image is scrambled with.
+     * @param permutation The permutation of the key for the size of the image.
+     * @param scrambled The scrambled raster.
+     * @return The fingerprint.
+     */
+    public static String ofScrambled(ScrambleKey key, Permutation permutation, Raster scrambled) {
+        final int width = scrambled.getWidth();
+        final int[] located = locate(key, permutation);
+        final int[] pixels = new int[located.length];
+        for (int k = 0; k < located.length; k++) {
+            pixels[k] = rgb(scrambled, located[k] % width, located[k] / width);
+        }
+        return hash(pixels);
+    }
+
+    /**
+     * Computes the fingerprint of the source image from the scrambled image,
+     * which may hold {@link Palette#isIndexed palette indices}. The sampled
+     * indices are looked up in the palette, so the pixels need not be
+     * expanded first.
+     *
+     * @see #ofScrambled(ScrambleKey, Permutation, Raster)
+     * @param key The key the image is scrambled with.
+     * @param permutation The permutation of the key for the size of the image.
+     * @param scrambled The scrambled image.
+     * @return The fingerprint.
+     */
+    public static String ofScrambled(ScrambleKey key, Permutation permutation, BufferedImage scrambled) {
+        if (!Palette.isIndexed(scrambled)) {
+            return ofScrambled(key, permutation, scrambled.getRaster());
+        }
+        final ColorModel model = scrambled.getColorModel();
+        final Raster raster = scrambled.getRaster();
+        final int width = raster.getWidth();
+        final int[] located = locate(key, permutation);
+        final int[] pixels = new int[located.length];
+        for (int k = 0; k < located.length; k++) {
+            pixels[k] = model.getRGB(raster.getSample(located[k] % width, located[k] / width, 0));
+        }
+        return hash(pixels);
+    }
+
+    /**
+     * Verifies the fingerprint stored with a scrambled image, if any.
+     *
+     * @param metadata The keyword and value pairs stored with the image.
+     * @param key The key read from the metadata.
+     * @param permutation The permutation of the key for the size of the image.
+     * @param scrambled The scrambled raster.
+     * @throws IOException If the fingerprint does not match the key.
+     */
+    public static void verify(Map<String, String> metadata, ScrambleKey key,
+            Permutation permutation, Raster scrambled) throws IOException {
+        final String expected = metadata.get(FINGERPRINT);
+        if (expected != null && !expected.equals(ofScrambled(key, permutation, scrambled))) {
+            throw new IOException("The key does not match the image fingerprint");
+        }
+    }
+
+    /**
+     * Verifies the fingerprint stored with a scrambled image, if any. The image
+     * may hold {@link Palette#isIndexed palette indices}.
+     *
+     * @param metadata The keyword and value pairs stored with the image.
+     * @param key The key read from the metadata.
+     * @param permutation The permutation of the key for the size of the image.
+     * @param scrambled The scrambled image.
+     * @throws IOException If the fingerprint does not match the key.
+     */
+    public static void verify(Map<String, String> metadata, ScrambleKey key,
+            Permutation permutation, BufferedImage scrambled) throws IOException {
+        final String expected = metadata.get(FINGERPRINT);
+        if (expected != null && !expected.equals(ofScrambled(key, permutation, scrambled))) {
+            throw new IOException("The key does not match the image fingerprint");
+        }
+    }
+
+    /**
+     * Returns the sample positions for the given key.
+     *
+     * @param key The key the image is scrambled with.
+     * @param size The number of pixels in the image.
+     * @return The pixel indices of the samples.
+     */
+    private static int[] positions(ScrambleKey key, int size) {
+        final CounterNumberGenerator generator = new CounterNumberGenerator(key.getSeed() ^ SAMPLE_SEED);
+        final int[] positions = new int[size == 0 ? 0 : SAMPLES];
+        for (int k = 0; k < positions.length; k++) {
+            positions[k] = (int) generator.random(k, 0, size);
+        }
+        return positions;
+    }
+
+    /**
+     * Locates the sampled source pixels in the scrambled image.
+     *
+     * @param key The key the image is scrambled with.
+     * @param permutation The permutation of the key for the size of the image.
+     * @return The scrambled pixel indices of the samples.
+     */
+    private static int[] locate(ScrambleKey key, Permutation permutation) {
+        final int[] positions = positions(key, permutation.size());
+        final int[] located = new int[positions.length];
+        if (permutation instanceof ArrayPermutation) {
+            /* Scan the table once, instead of building its inverse */
+            final Map<Integer, Integer> samples = new HashMap<>();
+            for (int k = 0; k < positions.length; k++) {
+                samples.putIfAbsent(positions[k], k);
+            }
+            final int[] table = ((ArrayPermutation) permutation).toArray();
+            for (int i = 0; i < table.length; i++) {
+                final Integer k = samples.get(table[i]);
+                if (k != null) {
+                    for (int l = k; l < positions.length; l++) {
+                        if (positions[l] == table[i]) {
+                            located[l] = i;
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int k = 0; k < positions.length; k++) {
+                located[k] = permutation.inverse(positions[k]);
+            }
+        }
+        return located;
+    }
+
+    /**
+     * Returns the color components of a pixel, packed as RGB. The first three
+     * bands of a raster are red, green and blue, whether it holds packed
+     * pixels or interleaved samples.
+     */
+    private static int rgb(Raster raster, int x, int y) {
+        return raster.getSample(x, y, 0) << 16 | raster.getSample(x, y, 1) << 8
+                | raster.getSample(x, y, 2);
+    }
+
+    /**
+     * Hash the color components of the sampled pixels with 64 bit FNV-1a. The
+     * alpha component is left out, since scrambled images are always fully
+     * opaque.
+     *
+     * @param pixels The sampled pixels.
+     * @return The hash as hexadecimal string.
+     */
+    private static String hash(int[] pixels) {
+        long hash = 0xCBF29CE484222325L;
+        for (int pixel : pixels) {
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                hash ^= (pixel >> shift) & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+        }
+        return String.format("%016x", hash);
+    }
+}
@@ -1,5 +1,6 @@
 package cuenen.raymond.image;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GraphicsConfiguration;
@@ -7,8 +8,16 @@ import java.awt.GraphicsEnvironment;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
 
 /**
@@ -16,6 +25,8 @@ import javax.imageio.ImageIO;
  * <ul>
  * <li> {@link #getFasterScaledInstance} returns a scaled image from the given
  * image.</li>
+ * <li> {@link #getAreaAveragedInstance} returns a scaled image from the given
+ * image, computed on the packed pixels.</li>
  * <li> {@link #loadCompatibleImage} loads the image from the given URL.</li>
  * <li> {@link #toCompatibleImage} copies an image into a hardware optimized
  * image.
@@ -27,11 +38,20 @@ import javax.imageio.ImageIO;
 public class GraphicsUtilities {
 
     /**
-     * The default {@code GraphicsConfiguration} for the systems hardware.
+     * Holder of the default {@code GraphicsConfiguration} for the systems
+     * hardware, so the graphics environment is only initialized when a
+     * compatible image is needed, and not by the scalers or by the command
+     * line tools.
      */
-    private static final GraphicsConfiguration CONFIGURATION = GraphicsEnvironment
-            .getLocalGraphicsEnvironment().getDefaultScreenDevice()
-            .getDefaultConfiguration();
+    private static final class Screen {
+
+        /**
+         * The default configuration, {@code null} when there is no screen.
+         */
+        static final GraphicsConfiguration CONFIGURATION = GraphicsEnvironment.isHeadless()
+                ? null : GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+    }
 
     /**
      * Private constructor so it is not instantiated.
@@ -68,6 +88,7 @@ public class GraphicsUtilities {
                 : BufferedImage.TYPE_INT_ARGB;
         BufferedImage ret = img;
         BufferedImage scratchImage = null;
+        BufferedImage spareImage = null;
         Graphics2D g2 = null;
         int w, h;
         int prevW = ret.getWidth();
@@ -102,12 +123,25 @@ public class GraphicsUtilities {
                 }
             }
 
-            if (scratchImage == null || isTranslucent) {
+            if (scratchImage == null) {
                 // Use a single scratch buffer for all iterations
                 // and then copy to the final, correctly-sized image
                 // before returning
                 scratchImage = new BufferedImage(w, h, type);
                 g2 = scratchImage.createGraphics();
+                g2.setComposite(AlphaComposite.Src);
+            } else if (isTranslucent) {
+                // Drawing a translucent image onto itself would blend the
+                // passes, so alternate between two scratch buffers
+                if (spareImage == null) {
+                    spareImage = new BufferedImage(w, h, type);
+                }
+                final BufferedImage swap = scratchImage;
+                scratchImage = spareImage;
+                spareImage = swap;
+                g2.dispose();
+                g2 = scratchImage.createGraphics();
+                g2.setComposite(AlphaComposite.Src);
             }
             g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hint);
             g2.drawImage(ret, 0, 0, w, h, 0, 0, prevW, prevH, null);
@@ -134,6 +168,80 @@ public class GraphicsUtilities {
         return ret;
     }
 
+    /**
+     * Returns a scaled instance of the provided image, computed on the packed
+     * {@code int} ARGB pixels instead of with {@code Graphics2D} interpolation.
+     * Down-scaling averages the covered source area (box filter), up-scaling
+     * interpolates bilinear; both axes are scaled independently. The work is
+     * done in parallel row bands, with scratch buffers that are reused across
+     * calls through the {@link PixelBufferPool}.
+     *
+     * @param img The original image to be scaled.
+     * @param targetWidth The desired width of the scaled instance, in pixels.
+     * @param targetHeight The desired height of the scaled instance, in pixels.
+     * @return A scaled version of the original image, either of type
+     * {@code INT_RGB} or {@code INT_ARGB}.
+     */
+    public static BufferedImage getAreaAveragedInstance(BufferedImage img,
+            int targetWidth, int targetHeight) {
+        final int type = (img.getTransparency() == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB
+                : BufferedImage.TYPE_INT_ARGB;
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final Kernel horizontal = new Kernel(width, targetWidth);
+        final Kernel vertical = new Kernel(height, targetHeight);
+
+        /* Use the pixels in place when they are packed the way we need them */
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        int[] srcPixels = null;
+        int[] scratch = null;
+        if ((img.getType() == BufferedImage.TYPE_INT_ARGB
+                || img.getType() == BufferedImage.TYPE_INT_RGB)
+                && img.getRaster().getDataBuffer().getNumBanks() == 1
+                && img.getRaster().getParent() == null) {
+            srcPixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        } else {
+            scratch = pool.acquireInts(width * height);
+            srcPixels = img.getRGB(0, 0, width, height, scratch, 0, width);
+        }
+        final boolean opaque = img.getType() == BufferedImage.TYPE_INT_RGB;
+
+        /* Horizontal pass into an intermediate image of targetWidth x height */
+        final int[] src = srcPixels;
+        final int[] tmp = pool.acquireInts(targetWidth * height);
+        inBands(height, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                horizontal.filter(src, y * width, tmp, y * targetWidth, opaque);
+            }
+        });
+        pool.release(scratch);
+
+        /* Vertical pass, straight into the resulting image */
+        final BufferedImage result = new BufferedImage(targetWidth, targetHeight, type);
+        final int[] dst = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        inBands(targetHeight, (from, to) -> {
+            vertical.filterRows(tmp, targetWidth, dst, from, to, opaque);
+        });
+        pool.release(tmp);
+
+        return result;
+    }
+
+    /**
+     * Runs a task over the range {@code [0, count)} split in bands, with the
+     * bands processed in parallel.
+     *
+     * @param count The size of the range.
+     * @param band The task for a band, given the start (inclusive) and end
+     * (exclusive) of the band.
+     */
+    private static void inBands(int count, BandTask band) {
+        final int bands = Math.max(1, Math.min(count,
+                Runtime.getRuntime().availableProcessors() * 4));
+        IntStream.range(0, bands).parallel().forEach((i) -> band.run(
+                (int) ((long) count * i / bands), (int) ((long) count * (i + 1) / bands)));
+    }
+
     /**
      * Returns a new compatible image from a URL. The image is loaded from the
      * specified location and then turned, if necessary into a compatible image.
@@ -150,6 +258,34 @@ public class GraphicsUtilities {
         return toCompatibleImage(image);
     }
 
+    /**
+     * Returns a new opaque image to write packed {@code int} pixels into
+     * directly, which is compatible with the screen if the screen uses packed
+     * {@code RGB} pixels, so it needs no copy by
+     * {@link #toCompatibleImage}. Otherwise, or without a screen, a new
+     * {@code INT_ARGB} image is returned. The image is kept for display and
+     * never released, so it is not taken from the {@link PixelBufferPool}.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The new image, holding one packed {@code int} per pixel.
+     */
+    public static BufferedImage createDisplayImage(int width, int height) {
+        final GraphicsConfiguration configuration = Screen.CONFIGURATION;
+        if (configuration != null && configuration.getColorModel(Transparency.OPAQUE) instanceof DirectColorModel) {
+            final DirectColorModel model = (DirectColorModel) configuration.getColorModel(Transparency.OPAQUE);
+            if (model.getTransferType() == DataBuffer.TYPE_INT && model.getRedMask() == 0x00FF0000
+                    && model.getGreenMask() == 0x0000FF00 && model.getBlueMask() == 0x000000FF
+                    && !model.isAlphaPremultiplied()) {
+                final BufferedImage image = configuration.createCompatibleImage(width, height);
+                if (RasterCreator.hasContiguousLayout(image.getRaster())) {
+                    return image;
+                }
+            }
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
     /**
      * Return a new compatible image that contains a copy of the specified
      * image. This method ensures an image is compatible with the hardware, and
@@ -158,14 +294,20 @@ public class GraphicsUtilities {
      * @see #loadCompatibleImage(java.net.URL)
      * @param image The image to copy into a new compatible image.
      * @return A new compatible copy, with the same width and height and
-     * transparency and content, of <code>image</code>.
+     * transparency and content, of <code>image</code>. Without a screen the
+     * image is returned as {@code INT_ARGB} image.
      */
     public static BufferedImage toCompatibleImage(BufferedImage image) {
-        if (image.getColorModel().equals(CONFIGURATION.getColorModel())) {
+        final GraphicsConfiguration configuration = Screen.CONFIGURATION;
+        if (configuration == null) {
+            return image.getType() == BufferedImage.TYPE_INT_ARGB
+                    ? image : toIntImage(image);
+        }
+        if (image.getColorModel().equals(configuration.getColorModel())) {
             return image;
         }
 
-        BufferedImage compatibleImage = CONFIGURATION.createCompatibleImage(
+        BufferedImage compatibleImage = configuration.createCompatibleImage(
                 image.getWidth(), image.getHeight(), image.getTransparency());
         Graphics g = compatibleImage.getGraphics();
         g.drawImage(image, 0, 0, null);
@@ -173,4 +315,201 @@ public class GraphicsUtilities {
 
         return compatibleImage;
     }
+
+    /**
+     * Return a copy of the given image in the {@code INT_ARGB} layout the
+     * {@link RasterCreator} works on. The {@code BGR} and {@code ABGR} bytes
+     * decoders produce are copied directly, so a command line tool does not
+     * initialize the graphics pipeline for them.
+     *
+     * @param image The image to copy.
+     * @return A new {@code INT_ARGB} copy of the image.
+     */
+    public static BufferedImage toIntImage(BufferedImage image) {
+        final BufferedImage copy = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        final int type = image.getType();
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && RasterCreator.hasContiguousLayout(image.getRaster())) {
+            final byte[] src = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            final int[] dst = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+            if (type == BufferedImage.TYPE_3BYTE_BGR) {
+                for (int i = 0, j = 0; i < dst.length; i++, j += 3) {
+                    dst[i] = 0xFF000000 | (src[j + 2] & 0xFF) << 16 | (src[j + 1] & 0xFF) << 8 | src[j] & 0xFF;
+                }
+            } else {
+                for (int i = 0, j = 0; i < dst.length; i++, j += 4) {
+                    dst[i] = (src[j] & 0xFF) << 24 | (src[j + 3] & 0xFF) << 16 | (src[j + 2] & 0xFF) << 8
+                            | src[j + 1] & 0xFF;
+                }
+            }
+            return copy;
+        }
+        final Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    /**
+     * A task for a band of rows or columns.
+     */
+    private interface BandTask {
+
+        /**
+         * Process a band.
+         *
+         * @param from The start of the band, inclusive.
+         * @param to The end of the band, exclusive.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * The integer weights for scaling one axis of an image. Each destination
+     * pixel is the weighted sum of {@code count} consecutive source pixels,
+     * starting at {@code start}, divided by {@code divisor}.
+     */
+    private static final class Kernel {
+
+        private final int[] start;
+        private final int[] count;
+        private final int[] offset;
+        private final int[] weights;
+        private final int divisor;
+
+        /**
+         * Create the weights for scaling an axis of {@code size} pixels to
+         * {@code target} pixels.
+         *
+         * @param size The number of source pixels.
+         * @param target The number of destination pixels.
+         */
+        private Kernel(int size, int target) {
+            start = new int[target];
+            count = new int[target];
+            offset = new int[target];
+            final List<Integer> list = new ArrayList<>();
+            if (target <= size) {
+                /*
+                 * Area averaging: source pixel i covers [i * target, (i + 1) *
+                 * target) and destination pixel o covers [o * size, (o + 1) *
+                 * size), the weight is the length of the overlap
+                 */
+                divisor = size;
+                for (int o = 0; o < target; o++) {
+                    final long lo = (long) o * size;
+                    final long hi = lo + size;
+                    start[o] = (int) (lo / target);
+                    offset[o] = list.size();
+                    for (int i = start[o]; (long) i * target < hi; i++) {
+                        list.add((int) (Math.min((long) (i + 1) * target, hi)
+                                - Math.max((long) i * target, lo)));
+                    }
+                    count[o] = list.size() - offset[o];
+                }
+            } else {
+                /* Bilinear interpolation with 8 bit fractions */
+                divisor = 256;
+                for (int o = 0; o < target; o++) {
+                    final long center = ((2L * o + 1) * size * 256) / (2L * target) - 128;
+                    final int index = (int) Math.floorDiv(center, 256);
+                    final int fraction = (int) (center - 256L * index);
+                    offset[o] = list.size();
+                    if (index < 0) {
+                        start[o] = 0;
+                        list.add(256);
+                    } else if (index >= size - 1) {
+                        start[o] = size - 1;
+                        list.add(256);
+                    } else {
+                        start[o] = index;
+                        list.add(256 - fraction);
+                        list.add(fraction);
+                    }
+                    count[o] = list.size() - offset[o];
+                }
+            }
+            weights = new int[list.size()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = list.get(i);
+            }
+        }
+
+        /**
+         * Scale a row of packed ARGB pixels.
+         *
+         * @param src The source pixels.
+         * @param srcOffset The index of the first source pixel.
+         * @param dst The destination pixels.
+         * @param dstOffset The index of the first destination pixel.
+         * @param opaque Flag indicating to ignore the alpha channel.
+         */
+        private void filter(int[] src, int srcOffset, int[] dst, int dstOffset,
+                boolean opaque) {
+            final int half = divisor / 2;
+            for (int o = 0; o < start.length; o++) {
+                int a = half, r = half, g = half, b = half;
+                int index = srcOffset + start[o];
+                for (int k = offset[o], end = offset[o] + count[o]; k < end; k++) {
+                    final int pixel = src[index++];
+                    final int weight = weights[k];
+                    a += (pixel >>> 24) * weight;
+                    r += ((pixel >> 16) & 0xFF) * weight;
+                    g += ((pixel >> 8) & 0xFF) * weight;
+                    b += (pixel & 0xFF) * weight;
+                }
+                dst[dstOffset + o] = pack(a, r, g, b, opaque);
+            }
+        }
+
+        /**
+         * Scale whole rows of packed ARGB pixels along the vertical axis. The
+         * source rows are accumulated one after another, so the pixels are
+         * read sequentially.
+         *
+         * @param src The source pixels.
+         * @param width The width of the rows.
+         * @param dst The destination pixels.
+         * @param from The first destination row, inclusive.
+         * @param to The last destination row, exclusive.
+         * @param opaque Flag indicating to ignore the alpha channel.
+         */
+        private void filterRows(int[] src, int width, int[] dst, int from, int to,
+                boolean opaque) {
+            final int[] a = new int[width];
+            final int[] r = new int[width];
+            final int[] g = new int[width];
+            final int[] b = new int[width];
+            for (int o = from; o < to; o++) {
+                Arrays.fill(a, divisor / 2);
+                Arrays.fill(r, divisor / 2);
+                Arrays.fill(g, divisor / 2);
+                Arrays.fill(b, divisor / 2);
+                int row = start[o] * width;
+                for (int k = offset[o], end = offset[o] + count[o]; k < end; k++) {
+                    final int weight = weights[k];
+                    for (int x = 0; x < width; x++) {
+                        final int pixel = src[row + x];
+                        a[x] += (pixel >>> 24) * weight;
+                        r[x] += ((pixel >> 16) & 0xFF) * weight;
+                        g[x] += ((pixel >> 8) & 0xFF) * weight;
+                        b[x] += (pixel & 0xFF) * weight;
+                    }
+                    row += width;
+                }
+                for (int x = 0, index = o * width; x < width; x++) {
+                    dst[index++] = pack(a[x], r[x], g[x], b[x], opaque);
+                }
+            }
+        }
+
+        /**
+         * Pack the accumulated color components into an ARGB pixel.
+         */
+        private int pack(int a, int r, int g, int b, boolean opaque) {
+            return (opaque ? 0xFF000000 : a / divisor << 24)
+                    | r / divisor << 16 | g / divisor << 8 | b / divisor;
+        }
+    }
 }
@@ -4,6 +4,7 @@ import java.awt.Composite;
 import java.awt.CompositeContext;
 import java.awt.RenderingHints;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DirectColorModel;
 import java.awt.image.Raster;
@@ -18,6 +19,12 @@ import java.awt.image.WritableRaster;
  * making the first image semi-transparent. The composite {@link #getInstance}
  * with any opacity value between 0 and 1 will show the two images blend
  * together based on the given value.
+ * <p>
+ * The composite works on the rasters of the images as they are, so they need
+ * not be converted first. Supported are packed {@code int} pixels in
+ * {@code RGB}, {@code ARGB}, premultiplied {@code ARGB} and {@code BGR} order,
+ * and interleaved 8 bit {@code sRGB} samples with or without (premultiplied)
+ * alpha, such as {@code 3BYTE_BGR} and {@code 4BYTE_ABGR}.
  *
  * @version 1.00 Jan 21 2015
  * @author Raymond Cuenen
@@ -68,12 +75,13 @@ public final class HiddenMask implements Composite {
     @Override
     public CompositeContext createContext(ColorModel srcColorModel,
             ColorModel dstColorModel, RenderingHints hints) {
-        if (!checkComponentsOrder(srcColorModel)
-                || !checkComponentsOrder(dstColorModel)) {
+        final Layout srcLayout = Layout.of(srcColorModel);
+        final Layout dstLayout = Layout.of(dstColorModel);
+        if (srcLayout == null || dstLayout == null) {
             throw new RasterFormatException("Incompatible color models");
         }
 
-        return new HidingContext(this);
+        return new HidingContext(this, srcLayout, dstLayout);
     }
 
     /**
@@ -107,25 +115,251 @@ public final class HiddenMask implements Composite {
     }
 
     /**
-     * Checks if the given {@code ColorModel} is usable for this composite.
-     *
-     * @param cm The {@code ColorModel} to be checked.
-     * @return {@code true} if the given {@code ColorModel} is usable for this
-     * composite, {@code false} otherwise.
+     * The pixel layouts the composite reads and writes directly. Every layout
+     * converts a row of data elements from and to {@code ARGB} pixels that are
+     * not premultiplied.
      */
-    private static boolean checkComponentsOrder(ColorModel cm) {
-        if (cm instanceof DirectColorModel
-                && cm.getTransferType() == DataBuffer.TYPE_INT) {
-            final DirectColorModel directCM = (DirectColorModel) cm;
-
-            return directCM.getRedMask() == 0x00FF0000
-                    && directCM.getGreenMask() == 0x0000FF00
-                    && directCM.getBlueMask() == 0x000000FF
-                    && (directCM.getNumComponents() != 4 || directCM
-                    .getAlphaMask() == 0xFF000000);
+    private enum Layout {
+
+        /**
+         * Packed {@code int} pixels in {@code RGB} or {@code ARGB} order.
+         */
+        INT_ARGB {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                System.arraycopy(row, 0, argb, 0, width);
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                System.arraycopy(argb, 0, row, 0, width);
+            }
+        },
+        /**
+         * Packed {@code int} pixels in premultiplied {@code ARGB} order.
+         */
+        INT_ARGB_PRE {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                final int[] pixels = (int[]) row;
+                for (int x = 0; x < width; x++) {
+                    argb[x] = unpremultiply(pixels[x]);
+                }
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                final int[] pixels = (int[]) row;
+                for (int x = 0; x < width; x++) {
+                    pixels[x] = premultiply(argb[x]);
+                }
+            }
+        },
+        /**
+         * Packed {@code int} pixels in {@code BGR} order.
+         */
+        INT_BGR {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                final int[] pixels = (int[]) row;
+                for (int x = 0; x < width; x++) {
+                    final int pixel = pixels[x];
+                    argb[x] = 0xFF000000 | (pixel & 0xFF) << 16 | pixel & 0xFF00 | (pixel >> 16) & 0xFF;
+                }
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                final int[] pixels = (int[]) row;
+                for (int x = 0; x < width; x++) {
+                    final int pixel = argb[x];
+                    pixels[x] = (pixel & 0xFF) << 16 | pixel & 0xFF00 | (pixel >> 16) & 0xFF;
+                }
+            }
+        },
+        /**
+         * Interleaved bytes in {@code R, G, B} band order, whatever their
+         * order in memory, e.g. {@code 3BYTE_BGR}.
+         */
+        BYTE_RGB {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                final byte[] samples = (byte[]) row;
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    argb[x] = 0xFF000000 | (samples[i] & 0xFF) << 16
+                            | (samples[i + 1] & 0xFF) << 8 | samples[i + 2] & 0xFF;
+                }
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                final byte[] samples = (byte[]) row;
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    final int pixel = argb[x];
+                    samples[i] = (byte) (pixel >> 16);
+                    samples[i + 1] = (byte) (pixel >> 8);
+                    samples[i + 2] = (byte) pixel;
+                }
+            }
+        },
+        /**
+         * Interleaved bytes in {@code R, G, B, A} band order, whatever their
+         * order in memory, e.g. {@code 4BYTE_ABGR}.
+         */
+        BYTE_RGBA {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                final byte[] samples = (byte[]) row;
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    argb[x] = (samples[i + 3] & 0xFF) << 24 | (samples[i] & 0xFF) << 16
+                            | (samples[i + 1] & 0xFF) << 8 | samples[i + 2] & 0xFF;
+                }
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                final byte[] samples = (byte[]) row;
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    final int pixel = argb[x];
+                    samples[i] = (byte) (pixel >> 16);
+                    samples[i + 1] = (byte) (pixel >> 8);
+                    samples[i + 2] = (byte) pixel;
+                    samples[i + 3] = (byte) (pixel >>> 24);
+                }
+            }
+        },
+        /**
+         * Interleaved bytes in premultiplied {@code R, G, B, A} band order,
+         * e.g. {@code 4BYTE_ABGR_PRE}.
+         */
+        BYTE_RGBA_PRE {
+            @Override
+            void unpack(Object row, int[] argb, int width) {
+                BYTE_RGBA.unpack(row, argb, width);
+                for (int x = 0; x < width; x++) {
+                    argb[x] = unpremultiply(argb[x]);
+                }
+            }
+
+            @Override
+            void pack(int[] argb, Object row, int width) {
+                final byte[] samples = (byte[]) row;
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    final int pixel = premultiply(argb[x]);
+                    samples[i] = (byte) (pixel >> 16);
+                    samples[i + 1] = (byte) (pixel >> 8);
+                    samples[i + 2] = (byte) pixel;
+                    samples[i + 3] = (byte) (pixel >>> 24);
+                }
+            }
+        };
+
+        /**
+         * Convert a row of data elements to {@code ARGB} pixels.
+         *
+         * @param row The data elements of the row.
+         * @param argb The array to store the pixels in.
+         * @param width The number of pixels in the row.
+         */
+        abstract void unpack(Object row, int[] argb, int width);
+
+        /**
+         * Convert {@code ARGB} pixels to a row of data elements.
+         *
+         * @param argb The pixels.
+         * @param row The array to store the data elements in.
+         * @param width The number of pixels in the row.
+         */
+        abstract void pack(int[] argb, Object row, int width);
+
+        /**
+         * Returns the layout of the given {@code ColorModel}.
+         *
+         * @param cm The {@code ColorModel} to be checked.
+         * @return The layout, or {@code null} if the {@code ColorModel} is not
+         * usable for this composite.
+         */
+        static Layout of(ColorModel cm) {
+            if (cm instanceof DirectColorModel
+                    && cm.getTransferType() == DataBuffer.TYPE_INT) {
+                final DirectColorModel directCM = (DirectColorModel) cm;
+                if (directCM.getNumComponents() == 4 && directCM.getAlphaMask() != 0xFF000000) {
+                    return null;
+                }
+                if (directCM.getRedMask() == 0x00FF0000
+                        && directCM.getGreenMask() == 0x0000FF00
+                        && directCM.getBlueMask() == 0x000000FF) {
+                    return directCM.isAlphaPremultiplied() ? INT_ARGB_PRE : INT_ARGB;
+                }
+                if (directCM.getRedMask() == 0x000000FF
+                        && directCM.getGreenMask() == 0x0000FF00
+                        && directCM.getBlueMask() == 0x00FF0000
+                        && directCM.getNumComponents() == 3) {
+                    return INT_BGR;
+                }
+            } else if (cm instanceof ComponentColorModel
+                    && cm.getTransferType() == DataBuffer.TYPE_BYTE
+                    && cm.getColorSpace().isCS_sRGB()) {
+                for (int size : cm.getComponentSize()) {
+                    if (size != 8) {
+                        return null;
+                    }
+                }
+                if (cm.getNumComponents() == 3) {
+                    return BYTE_RGB;
+                }
+                if (cm.getNumComponents() == 4 && cm.hasAlpha()) {
+                    return cm.isAlphaPremultiplied() ? BYTE_RGBA_PRE : BYTE_RGBA;
+                }
+            }
+            return null;
         }
 
-        return false;
+        /**
+         * Returns the data elements of a row in this layout.
+         *
+         * @param raster The raster to read from.
+         * @param y The row, relative to the raster.
+         * @param width The number of pixels to read.
+         * @param row The array to reuse, may be {@code null}.
+         * @return The data elements of the row.
+         */
+        static Object read(Raster raster, int y, int width, Object row) {
+            return raster.getDataElements(raster.getMinX(), raster.getMinY() + y, width, 1, row);
+        }
+
+        /**
+         * Returns a premultiplied pixel as {@code ARGB} pixel.
+         *
+         * @param pixel The premultiplied pixel.
+         * @return The pixel that is not premultiplied.
+         */
+        static int unpremultiply(int pixel) {
+            final int a = pixel >>> 24;
+            if (a == 0xFF || a == 0) {
+                return a == 0 ? 0 : pixel;
+            }
+            final int half = a / 2;
+            return a << 24 | Math.min(255, (((pixel >> 16) & 0xFF) * 255 + half) / a) << 16
+                    | Math.min(255, (((pixel >> 8) & 0xFF) * 255 + half) / a) << 8
+                    | Math.min(255, ((pixel & 0xFF) * 255 + half) / a);
+        }
+
+        /**
+         * Returns an {@code ARGB} pixel as premultiplied pixel.
+         *
+         * @param pixel The pixel that is not premultiplied.
+         * @return The premultiplied pixel.
+         */
+        static int premultiply(int pixel) {
+            final int a = pixel >>> 24;
+            if (a == 0xFF) {
+                return pixel;
+            }
+            return a << 24 | ((((pixel >> 16) & 0xFF) * a + 127) / 255) << 16
+                    | ((((pixel >> 8) & 0xFF) * a + 127) / 255) << 8
+                    | ((pixel & 0xFF) * a + 127) / 255;
+        }
     }
 
     /**
@@ -140,14 +374,28 @@ public final class HiddenMask implements Composite {
          */
         private final HiddenMask mask;
 
+        /**
+         * The layout of the source pixels.
+         */
+        private final Layout srcLayout;
+
+        /**
+         * The layout of the destination pixels.
+         */
+        private final Layout dstLayout;
+
         /**
          * Create a new {@code CompositeContext} for the given composite.
          *
          * @param mask The {@code HiddenMask} composite to base the pixel
          * composition on.
+         * @param srcLayout The layout of the source pixels.
+         * @param dstLayout The layout of the destination pixels.
          */
-        private HidingContext(HiddenMask mask) {
+        private HidingContext(HiddenMask mask, Layout srcLayout, Layout dstLayout) {
             this.mask = mask;
+            this.srcLayout = srcLayout;
+            this.dstLayout = dstLayout;
         }
 
         /**
@@ -165,10 +413,15 @@ public final class HiddenMask implements Composite {
             final int[] dstPixel = new int[4];
             final int[] srcPixels = new int[width];
             final int[] dstPixels = new int[width];
+            Object srcRow = null;
+            Object dstRow = null;
 
             for (int y = 0; y < height; y++) {
-                src.getDataElements(0, y, width, 1, srcPixels);
-                dstIn.getDataElements(0, y, width, 1, dstPixels);
+                /* Rows are read in the layout of the rasters, no copy of the image */
+                srcRow = Layout.read(src, y, width, srcRow);
+                srcLayout.unpack(srcRow, srcPixels, width);
+                dstRow = Layout.read(dstIn, y, width, dstRow);
+                dstLayout.unpack(dstRow, dstPixels, width);
                 for (int x = 0; x < width; x++) {
                     // pixels are stored as INT_ARGB
                     // our arrays are [R, G, B, A]
@@ -192,7 +445,8 @@ public final class HiddenMask implements Composite {
                             | ((int) (dstPixel[1] + (result[1] - dstPixel[1]) * alpha) & 0xFF) << 8
                             | (int) (dstPixel[2] + (result[2] - dstPixel[2]) * alpha) & 0xFF;
                 }
-                dstOut.setDataElements(0, y, width, 1, dstPixels);
+                dstLayout.pack(dstPixels, dstRow, width);
+                dstOut.setDataElements(dstOut.getMinX(), dstOut.getMinY() + y, width, 1, dstRow);
             }
         }
 
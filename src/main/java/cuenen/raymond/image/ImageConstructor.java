@@ -1,17 +1,35 @@
 package cuenen.raymond.image;
 
+import cuenen.raymond.image.RasterCreator.SwapDirection;
 import java.awt.image.BufferedImage;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.function.UnaryOperator;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -22,6 +40,11 @@ import org.w3c.dom.NodeList;
  * De-scrambling is done by the same shuffle-algorithm as for creating a
  * scrambled image with the {@code ImageCreator}. The seed of the random number
  * generator used for scrambling is used for de-scrambling. the image again.
+ * <br>
+ * From the command line an image is de-scrambled from a file or the standard
+ * input to a file or the standard output, so it fits in a pipeline. The key is
+ * read from the image, or given on the command line when it was stripped from
+ * the image.
  *
  * @see RasterCreator
  * @see ImageCreator
@@ -42,20 +65,17 @@ public class ImageConstructor {
      * dialog.
      *
      * @param imageFile The URL indicating the image to be de-scrambled.
+     * @deprecated The image is de-scrambled on construction and an error
+     * results in a {@code null} image; use a {@link DecodeHandle} instead.
      */
+    @Deprecated
     public ImageConstructor(URL imageFile) {
         BufferedImage dst;
         try {
-            final BufferedImage src = GraphicsUtilities
-                    .loadCompatibleImage(imageFile);
-            final long seed = readSeed(imageFile.openStream());
-            dst = new BufferedImage(src.getWidth(),
-                    src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            /* De-scramble the source image */
-            RasterCreator.descramble(seed, src.getData(), dst.getRaster());
-        } catch (IOException e) {
+            dst = new DecodeHandle(imageFile).getCompatibleImage().join();
+        } catch (CompletionException e) {
             dst = null;
-            System.err.println("Error: " + e.getMessage());
+            System.err.println("Error: " + e.getCause().getMessage());
         }
         image = dst;
     }
@@ -63,27 +83,180 @@ public class ImageConstructor {
     /**
      * Method to retrieve the de-scrambled image.
      *
-     * @return The de-scrambled image in memory.
+     * @return The de-scrambled image in memory, compatible with the screen.
      */
     public BufferedImage getImage() {
-        return GraphicsUtilities.toCompatibleImage(image);
+        return image;
     }
 
     /**
-     * Read the PNG meta-data and extract the seed used for scrambling the
-     * source image.
+     * De-scramble a sequence of frames that were scrambled by the
+     * {@code SequenceCreator}. <br>
+     * The seed is only stored in the first frame, and since all frames share
+     * the same size the permutation is computed once and applied to every frame
+     * in parallel. The number of frames must match the number stored in the
+     * first frame, if any.
+     *
+     * @see SequenceCreator
+     * @param frames The URLs indicating the frames, in order.
+     * @return The de-scrambled frames in memory.
+     * @throws IOException If a frame cannot be read, the seed is not present,
+     * the number of frames does not match, the key does not match the
+     * fingerprint or the frames differ in size.
+     */
+    public static List<BufferedImage> readSequence(List<URL> frames) throws IOException {
+        if (frames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Map<String, String> metadata = readMetadata(frames.get(0).openStream());
+        final ScrambleKey key = ScrambleKey.fromMetadata(metadata);
+        final String count = metadata.get(SequenceCreator.FRAMES);
+        if (count != null && !count.equals(String.valueOf(frames.size()))) {
+            throw new IOException("Expected " + count + " frames, got " + frames.size());
+        }
+        final List<BufferedImage> sources = new ArrayList<>();
+        for (URL frame : frames) {
+            final BufferedImage src = GraphicsUtilities.toIntImage(ImageIO.read(frame));
+            if (!sources.isEmpty() && (src.getWidth() != sources.get(0).getWidth()
+                    || src.getHeight() != sources.get(0).getHeight())) {
+                throw new IOException("Frame size mismatch: " + frame);
+            }
+            sources.add(src);
+        }
+        final Permutation permutation = RasterCreator.permutation(key,
+                sources.get(0).getWidth(), sources.get(0).getHeight());
+        Fingerprint.verify(metadata, key, permutation, sources.get(0).getRaster());
+        return SequenceCreator.apply(SwapDirection.BACKWARD, permutation, sources);
+    }
+
+    /**
+     * De-scramble an image read from a channel and write it as PNG to another
+     * channel. The image is permuted in place, so at most one decoded image is
+     * held in memory. The image is only decoded once the memory budget admits
+     * it, based on its header.
+     *
+     * @see RasterCreator#applyInPlace
+     * @see MemoryBudget
+     * @param key The key to de-scramble with, or {@code null} to use the key
+     * stored with the image.
+     * @param in The channel to read the scrambled image from.
+     * @param out The channel to write the de-scrambled image to.
+     * @throws IOException If the image cannot be read or written, is not
+     * admitted by the memory budget, has no key or does not match the
+     * fingerprint stored with it.
+     */
+    @SuppressWarnings("try")
+    public static void descramble(ScrambleKey key, ReadableByteChannel in,
+            WritableByteChannel out) throws IOException {
+        final ImageReader reader = openImage(in);
+        try {
+            final Map<String, String> metadata = new HashMap<>();
+            readText(reader, metadata);
+            if (key == null) {
+                key = ScrambleKey.fromMetadata(metadata);
+            }
+            try (MemoryBudget.Lease lease = MemoryBudget.getDefault().admit(
+                    MemoryBudget.estimate(key, SwapDirection.BACKWARD, reader, true))) {
+                BufferedImage image = reader.read(0);
+                if (!Palette.isIndexed(image) && !RasterCreator.supportsInPlace(image.getRaster())) {
+                    image = GraphicsUtilities.toIntImage(image);
+                }
+                final Permutation permutation = RasterCreator.permutation(key,
+                        image.getWidth(), image.getHeight());
+                /* Reject a wrong key before the full de-scramble */
+                Fingerprint.verify(metadata, key, permutation, image);
+                RasterCreator.applyInPlace(SwapDirection.BACKWARD, permutation, image);
+                if (Palette.isIndexed(image)) {
+                    /* The indices are permuted, expand them once */
+                    image = Palette.expand(image);
+                }
+                ImageCreator.writeImage(out, image, Collections.emptyMap());
+            }
+        } finally {
+            closeImage(reader);
+        }
+    }
+
+    /**
+     * Open an image read from a channel. Only the header is read, so the size,
+     * pixel format and meta-data are known before the image is decoded. The
+     * channel is read once, in blocks; the encoded image is cached in memory,
+     * never in a temporary file. The channel is not wrapped in a buffered
+     * stream, since that asks file channels on a pipe for their position.
+     *
+     * @param in The channel to read the image from.
+     * @return The reader of the image, to be closed by
+     * {@link #closeImage(ImageReader)}.
+     * @throws IOException If the image cannot be read.
+     */
+    static ImageReader openImage(ReadableByteChannel in) throws IOException {
+        final ImageInputStream stream = new MemoryCacheImageInputStream(Channels.newInputStream(in));
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("Unsupported image");
+        }
+        final ImageReader imageReader = readers.next();
+        imageReader.setInput(stream, true, false);
+        return imageReader;
+    }
+
+    /**
+     * Dispose a reader opened by {@link #openImage(ReadableByteChannel)} and
+     * close its stream.
+     *
+     * @param reader The reader of the image.
+     * @throws IOException If the stream cannot be closed.
+     */
+    static void closeImage(ImageReader reader) throws IOException {
+        final Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream) {
+            ((ImageInputStream) input).close();
+        }
+    }
+
+    /**
+     * Add the meta-data text entries of an opened image to a map.
+     *
+     * @param reader The reader of the image.
+     * @param metadata The map to add the keyword and value pairs stored with
+     * the image to.
+     * @throws IOException If the meta-data cannot be read.
+     */
+    static void readText(ImageReader reader, Map<String, String> metadata)
+            throws IOException {
+        final IIOMetadata meta = reader.getImageMetadata(0);
+        if (meta != null && meta.isStandardMetadataFormatSupported()) {
+            readText(meta, metadata);
+        }
+    }
+
+    /**
+     * Read the PNG meta-data text entries of an image.
      *
      * @param input The {@link java.io.InputStream} to the image.
-     * @return The seed used for scrambling the source image.
-     * @throws java.io.IOException If the image cannot be read, or the seed is
-     * not present.
+     * @return The keyword and value pairs stored with the image.
+     * @throws java.io.IOException If the image cannot be read.
      */
-    private long readSeed(InputStream input) throws IOException {
+    static Map<String, String> readMetadata(InputStream input) throws IOException {
         final Map<String, String> metadata = new HashMap<>();
         final ImageReader imageReader = ImageIO.getImageReadersByFormatName("png").next();
         final ImageInputStream stream = ImageIO.createImageInputStream(input);
         imageReader.setInput(stream, true);
-        final IIOMetadata meta = imageReader.getImageMetadata(0);
+        readText(imageReader.getImageMetadata(0), metadata);
+        imageReader.dispose();
+        input.close();
+        return metadata;
+    }
+
+    /**
+     * Add the text entries of the given meta-data to a map.
+     *
+     * @param meta The image meta-data.
+     * @param metadata The map to add the keyword and value pairs to.
+     */
+    private static void readText(IIOMetadata meta, Map<String, String> metadata) {
         final List<Node> text = new ArrayList<>();
         findNodes(meta.getAsTree("javax_imageio_1.0"), text);
         for (Node node : text) {
@@ -92,15 +265,9 @@ public class ImageConstructor {
             String value = textEntry.getNamedItem("value").getNodeValue();
             metadata.put(key, value);
         }
-        input.close();
-        try {
-            return Long.parseLong(metadata.get("seed"));
-        } catch (NullPointerException | NumberFormatException ex) {
-            throw new IOException(ex);
-        }
     }
 
-    private void findNodes(Node root, List<Node> list) {
+    private static void findNodes(Node root, List<Node> list) {
         if (root.getNodeName().equals("TextEntry")) {
             list.add(root);
         }
@@ -109,4 +276,64 @@ public class ImageConstructor {
             findNodes(children.item(i), list);
         }
     }
+
+    /**
+     * De-scrambles an image file, or the standard input when the filename is
+     * {@code -}, and writes the result as PNG to the output file or the
+     * standard output. Messages are written to the standard error, so the
+     * standard output only holds the image.
+     *
+     * @param args The string array containing the options, the filename and
+     * optionally the output filename.
+     */
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        final long seed;
+        try {
+            options = ImageCreator.parseKeyOptions(args, arguments);
+            seed = ImageCreator.parseSeed(arguments);
+            ImageCreator.parseBudgetOptions(arguments);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        if (arguments.isEmpty()) {
+            System.err.println("usage: java "
+                    + ImageConstructor.class.getCanonicalName() + " "
+                    + ImageCreator.keyOptionsUsage() + " "
+                    + ImageCreator.budgetOptionsUsage() + " [--seed <seed>] <filename | -> [output | -]");
+            return;
+        }
+        final String input = arguments.get(0);
+        final String output = arguments.size() > 1 ? arguments.get(1) : "-";
+        final ScrambleKey key = seed == ImageCreator.RANDOMSEED
+                ? null : options.apply(new ScrambleKey(seed));
+        Path part = null;
+        try (ReadableByteChannel in = input.equals("-")
+                ? new FileInputStream(FileDescriptor.in).getChannel()
+                : FileChannel.open(Paths.get(input))) {
+            if (output.equals("-")) {
+                descramble(key, in, new FileOutputStream(FileDescriptor.out).getChannel());
+            } else {
+                /* Only replace the output once the key is known to match */
+                final Path target = Paths.get(output).toAbsolutePath();
+                part = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".part");
+                try (WritableByteChannel out = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                    descramble(key, in, out);
+                }
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } finally {
+            if (part != null) {
+                try {
+                    Files.deleteIfExists(part);
+                } catch (IOException ex) {
+                    System.err.println("Error: " + ex.getMessage());
+                }
+            }
+        }
+    }
 }
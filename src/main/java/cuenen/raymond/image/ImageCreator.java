@@ -1,27 +1,46 @@
 package cuenen.raymond.image;
 
+import cuenen.raymond.image.RasterCreator.SwapDirection;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageOutputStream;
-import org.w3c.dom.DOMImplementation;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 /**
  * Executing class to create a scrambled image from a given image. <br>
  * Scrambling is done by a simple shuffle-algorithm based on random numbers. The
  * {@code seed} of the random number generator is important for de-scrambling
- * the image again.
+ * the image again. <br>
+ * Given the filename {@code -} the image is read from the standard input and
+ * the scrambled image is written to the standard output, so it fits in a
+ * pipeline. The key can be stripped from the scrambled image, to be passed
+ * out of band instead.
  *
  * @see RasterCreator
  *
@@ -35,6 +54,11 @@ public class ImageCreator {
      */
     public static final int RANDOMSEED = -1;
 
+    /**
+     * The size of the buffers between the image streams and the channels.
+     */
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+
     private static final String METADATA_FORMAT = "javax_imageio_1.0";
 
     /**
@@ -45,94 +69,469 @@ public class ImageCreator {
      * @param seed The seed for the random generator or {@link #RANDOMSEED}.
      */
     public ImageCreator(String imageFile, long seed) {
-        if (seed == RANDOMSEED) {
-            seed = new Random(System.currentTimeMillis()).nextInt(Integer.MAX_VALUE);
-            System.out.println("Using random seed: " + seed);
+        this(imageFile, new ScrambleKey(seed));
+    }
+
+    /**
+     * Perform a scramble action on the image indicated by the given {@code
+     * imageFile} and use the given {@code key} for the scramble algorithm.
+     *
+     * @param imageFile The filename indicating the image to be scrambled.
+     * @param key The key for the scramble algorithm, its seed may be
+     * {@link #RANDOMSEED}.
+     */
+    public ImageCreator(String imageFile, ScrambleKey key) {
+        if (key.getSeed() == RANDOMSEED) {
+            key = key.withSeed(new Random(System.currentTimeMillis()).nextInt(Integer.MAX_VALUE));
+            System.out.println("Using random seed: " + key.getSeed());
         }
         try {
-            System.out.println("Reading source image");
-            final BufferedImage src = GraphicsUtilities.loadCompatibleImage(new File(imageFile).toURI().toURL());
-            final BufferedImage dst = new BufferedImage(src.getWidth(),
-                    src.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            System.out.println("Scramble image");
-            RasterCreator.scramble(seed, src.getData(), dst.getRaster());
-            saveImage(imageFile, seed, dst);
-            System.out.println("Done");
+            final URL url = new File(imageFile).toURI().toURL();
+            scramble(key, imageFile, url);
         } catch (IOException ex) {
             System.err.println("Error: " + ex.getMessage());
         }
     }
 
+    /**
+     * Scramble the image once the memory budget admits it. The scrambled image
+     * is not materialized: its rows are gathered from the decoded source while
+     * they are encoded, so only the source and the permutation are held. In
+     * {@link ScrambleKey.Mode#SEPARABLE} mode the image is permuted in bulk
+     * first, since its passes are faster than a gather per pixel. <br>
+     * The job is executed as planned by the {@link ExecutionPlanner}. This is
+     * the only job of the process, so the buffer pool is limited to what the
+     * heap can spare besides the job.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param imageFile The filename indicating the image to be scrambled.
+     * @param url The URL of the image.
+     * @throws IOException If the image cannot be read or is not admitted.
+     */
+    @SuppressWarnings("try")
+    private void scramble(ScrambleKey key, String imageFile, URL url) throws IOException {
+        final ExecutionPlanner.Plan plan = ExecutionPlanner.plan(key, SwapDirection.FORWARD, url);
+        PixelBufferPool.getDefault().setCapacity(plan.getPoolCapacity());
+        try (MemoryBudget.Lease lease = MemoryBudget.getDefault().admit(plan.getMemory())) {
+            plan.execute(() -> scramble(key, imageFile, url, plan.getLevel()), System.out);
+        }
+    }
+
+    /**
+     * Scramble the image.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param imageFile The filename indicating the image to be scrambled.
+     * @param url The URL of the image.
+     * @param level The compression level of the scrambled image.
+     * @throws IOException If the image cannot be read or written.
+     */
+    private void scramble(ScrambleKey key, String imageFile, URL url, int level) throws IOException {
+        System.out.println("Reading source image");
+        /* The pixels are only permuted, so they need not suit the screen */
+        final BufferedImage read = ImageIO.read(url);
+        if (read == null) {
+            throw new IOException("Unsupported image: " + imageFile);
+        }
+        final BufferedImage src = RasterCreator.pixelReader(read.getRaster()) != null
+                ? read : GraphicsUtilities.toIntImage(read);
+        final Map<String, String> metadata = key.toMetadata();
+        metadata.put(Fingerprint.FINGERPRINT, Fingerprint.of(key, src.getRaster()));
+        final BufferedImage indexed = Palette.toIndexed(src);
+        if (indexed != null) {
+            System.out.println("Scramble palette image");
+            RasterCreator.applyInPlace(SwapDirection.FORWARD, key, indexed);
+            saveImage(imageFile, metadata, indexed, level);
+        } else {
+            System.out.println("Scramble image");
+            final int width = src.getWidth();
+            final Permutation permutation = RasterCreator.permutation(key, width, src.getHeight());
+            final RasterCreator.PixelReader pixels = RasterCreator.pixelReader(src.getRaster());
+            final PngEncoder.RowSource rows;
+            if (permutation instanceof SeparablePermutation) {
+                /* Permute the rows and columns in bulk, not pixel by pixel */
+                final int[] scrambled = new int[permutation.size()];
+                for (int i = 0; i < scrambled.length; i++) {
+                    scrambled[i] = pixels.get(i);
+                }
+                ((SeparablePermutation) permutation).applyInPlace(true, scrambled);
+                rows = (y, row) -> System.arraycopy(scrambled, y * width, row, 0, width);
+            } else {
+                rows = (y, row) -> {
+                    for (int x = 0, i = y * width; x < width; x++, i++) {
+                        row[x] = pixels.get(permutation.get(i));
+                    }
+                };
+            }
+            final File output = outputFile(imageFile);
+            System.out.println("Save image as: " + output);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output),
+                    STREAM_BUFFER_SIZE)) {
+                PngEncoder.write(out, width, src.getHeight(), metadata, rows, level);
+            }
+        }
+        System.out.println("Done");
+    }
+
+    /**
+     * Scramble an image read from a channel and write it as PNG to another
+     * channel. The image is permuted in place, so at most one decoded image is
+     * held in memory, and nothing is written to a file. The image is only
+     * decoded once the memory budget admits it, based on its header. An image
+     * with few colors is scrambled and written as palette image. The job is
+     * executed as planned by the {@link ExecutionPlanner}, which logs to the
+     * standard error.
+     *
+     * @see RasterCreator#applyInPlace
+     * @param key The key for the scramble algorithm.
+     * @param strip {@code true} to leave the key out of the scrambled image, so
+     * it has to be passed out of band to de-scramble the image.
+     * @param in The channel to read the image from.
+     * @param out The channel to write the scrambled image to.
+     * @throws IOException If the image cannot be read or written, or is not
+     * admitted by the memory budget.
+     * @see MemoryBudget
+     */
+    @SuppressWarnings("try")
+    public static void scramble(ScrambleKey key, boolean strip, ReadableByteChannel in,
+            WritableByteChannel out) throws IOException {
+        final ImageReader reader = ImageConstructor.openImage(in);
+        try {
+            final ExecutionPlanner.Plan plan = ExecutionPlanner.plan(key,
+                    SwapDirection.FORWARD, reader, true);
+            try (MemoryBudget.Lease lease = MemoryBudget.getDefault().admit(plan.getMemory())) {
+                plan.execute(() -> scramble(key, strip, reader, out, plan.getLevel()), System.err);
+            }
+        } finally {
+            ImageConstructor.closeImage(reader);
+        }
+    }
+
+    /**
+     * Scramble an image from a reader in place and write it as PNG to a
+     * channel.
+     *
+     * @param key The key for the scramble algorithm.
+     * @param strip {@code true} to leave the key out of the scrambled image.
+     * @param reader The reader, with its input set.
+     * @param out The channel to write the scrambled image to.
+     * @param level The compression level of the scrambled image.
+     * @throws IOException If the image cannot be read or written.
+     */
+    static void scramble(ScrambleKey key, boolean strip, ImageReader reader,
+            WritableByteChannel out, int level) throws IOException {
+        BufferedImage image = reader.read(0);
+        if (!RasterCreator.supportsInPlace(image.getRaster())) {
+            image = GraphicsUtilities.toIntImage(image);
+        }
+        final Map<String, String> metadata = strip ? new LinkedHashMap<>() : key.toMetadata();
+        metadata.put(Fingerprint.FINGERPRINT, Fingerprint.of(key, image.getRaster()));
+        final BufferedImage indexed = Palette.toIndexed(image);
+        if (indexed != null) {
+            image = indexed;
+        }
+        RasterCreator.applyInPlace(SwapDirection.FORWARD, key, image);
+        writeImage(out, image, metadata, level);
+    }
+
     /**
      * Save the scrambled image in memory to a file. <br>
      * The {@code seed} used for scrambling will be included in the filename.
      *
      * @param imgName The name of the image file.
-     * @param seed The seed used to start the random generator.
+     * @param metadata The key used for scrambling and the fingerprint, as
+     * keyword and value pairs.
      * @param image The scrambled image in memory.
+     * @param level The compression level.
      */
-    private void saveImage(String imgName, long seed, BufferedImage image) {
+    private void saveImage(String imgName, Map<String, String> metadata, BufferedImage image,
+            int level) {
         if (image != null) {
-            int index = imgName.lastIndexOf('.');
-            index = index == -1 ? imgName.length() : index;
-            final String type = "png";
-            final String name = imgName.substring(0, index) + "." + type;
-            final File imageFile = new File(name);
-            System.out.println("Save image as: " + name);
+            final File imageFile = outputFile(imgName);
+            System.out.println("Save image as: " + imageFile);
             try {
-                final ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
-                final ImageWriteParam writeParam = writer.getDefaultWriteParam();
-                final IIOMetadata meta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), writeParam);
-                final DOMImplementation dom = DOMImplementationRegistry.newInstance().getDOMImplementation("XML 3.0");
-                final Document doc = dom.createDocument(null, METADATA_FORMAT, null);
-                final Node tree = doc.getDocumentElement();
-                final Node text = doc.createElement("Text");
-                tree.appendChild(text);
-                final Element textEntry = doc.createElement("TextEntry");
-                textEntry.setAttribute("keyword", "seed");
-                textEntry.setAttribute("value", String.valueOf(seed));
-                text.appendChild(textEntry);
-                meta.mergeTree(METADATA_FORMAT, tree);
-                final ImageOutputStream stream = ImageIO.createImageOutputStream(imageFile);
-                writer.setOutput(stream);
-                try {
-                    writer.write(meta, new IIOImage(image, null, meta), writeParam);
-                } finally {
-                    writer.dispose();
-                    stream.flush();
-                    stream.close();
-                }
-            } catch (IOException | ClassNotFoundException |
-                    InstantiationException | IllegalAccessException ex) {
+                writeImage(ImageIO.createImageOutputStream(imageFile), image, metadata, level);
+            } catch (IOException ex) {
                 System.err.println("Error: " + ex.getMessage());
             }
         }
     }
 
+    /**
+     * Returns the file a scrambled image is saved to: the image file with the
+     * {@code png} extension.
+     *
+     * @param imgName The name of the image file.
+     * @return The file to save the scrambled image to.
+     */
+    private static File outputFile(String imgName) {
+        int index = imgName.lastIndexOf('.');
+        index = index == -1 ? imgName.length() : index;
+        final String type = "png";
+        return new File(imgName.substring(0, index) + "." + type);
+    }
+
+    /**
+     * Write an image as PNG to the given file. <br>
+     * The given metadata entries are stored as PNG text entries, so they can be
+     * read back by the {@code ImageConstructor}.
+     *
+     * @param imageFile The file to write the image to.
+     * @param image The image in memory.
+     * @param metadata The keyword and value pairs to store with the image.
+     * @throws IOException If the image cannot be written.
+     */
+    static void writeImage(File imageFile, BufferedImage image,
+            Map<String, String> metadata) throws IOException {
+        writeImage(ImageIO.createImageOutputStream(imageFile), image, metadata,
+                Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Write an image as PNG to the given channel. The encoded image is cached
+     * in memory per chunk, never in a temporary file.
+     *
+     * @param out The channel to write the image to.
+     * @param image The image in memory.
+     * @param metadata The keyword and value pairs to store with the image.
+     * @throws IOException If the image cannot be written.
+     */
+    static void writeImage(WritableByteChannel out, BufferedImage image,
+            Map<String, String> metadata) throws IOException {
+        writeImage(out, image, metadata, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Write an image as PNG to the given channel, with the given compression
+     * level.
+     *
+     * @param out The channel to write the image to.
+     * @param image The image in memory.
+     * @param metadata The keyword and value pairs to store with the image.
+     * @param level The compression level, from 0 to 9, or
+     * {@link Deflater#DEFAULT_COMPRESSION} for the default of the writer.
+     * @throws IOException If the image cannot be written.
+     */
+    static void writeImage(WritableByteChannel out, BufferedImage image,
+            Map<String, String> metadata, int level) throws IOException {
+        final OutputStream buffer = new BufferedOutputStream(Channels.newOutputStream(out),
+                STREAM_BUFFER_SIZE);
+        writeImage(new MemoryCacheImageOutputStream(buffer), image, metadata, level);
+        buffer.flush();
+    }
+
+    /**
+     * Write an image as PNG to the given stream, and close the stream.
+     *
+     * @param stream The stream to write the image to.
+     * @param image The image in memory.
+     * @param metadata The keyword and value pairs to store with the image.
+     * @param level The compression level, from 0 to 9, or
+     * {@link Deflater#DEFAULT_COMPRESSION} for the default of the writer.
+     * @throws IOException If the image cannot be written.
+     */
+    private static void writeImage(ImageOutputStream stream, BufferedImage image,
+            Map<String, String> metadata, int level) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        final ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        if (level != Deflater.DEFAULT_COMPRESSION && writeParam.canWriteCompressed()) {
+            /* The writer deflates with level 9 * (1 - quality), rounded down */
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(Math.max(0f, 1f - (level + 0.5f) / 9f));
+        }
+        final IIOMetadata meta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), writeParam);
+        /* The metadata nodes of ImageIO need no DOM implementation */
+        final IIOMetadataNode tree = new IIOMetadataNode(METADATA_FORMAT);
+        final IIOMetadataNode text = new IIOMetadataNode("Text");
+        tree.appendChild(text);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            final IIOMetadataNode textEntry = new IIOMetadataNode("TextEntry");
+            textEntry.setAttribute("keyword", entry.getKey());
+            textEntry.setAttribute("value", entry.getValue());
+            text.appendChild(textEntry);
+        }
+        try {
+            meta.mergeTree(METADATA_FORMAT, tree);
+        } catch (IIOInvalidTreeException ex) {
+            throw new IOException(ex);
+        }
+        writer.setOutput(stream);
+        try {
+            writer.write(meta, new IIOImage(image, null, meta), writeParam);
+        } finally {
+            writer.dispose();
+            stream.flush();
+            stream.close();
+        }
+    }
+
+    /**
+     * Parse the command line options that select the scramble key. The options
+     * are {@code --generator <algorithm>}, {@code --mode <mode>},
+     * {@code --block <size>}, {@code --transform}, {@code --rounds <count>}
+     * and {@code --tile <size>}.
+     *
+     * @param args The command line arguments.
+     * @param arguments The list to add the arguments to that are not key
+     * options.
+     * @return The function applying the options to a key.
+     * @throws IllegalArgumentException If an option has an invalid value.
+     */
+    static UnaryOperator<ScrambleKey> parseKeyOptions(String[] args, List<String> arguments) {
+        UnaryOperator<ScrambleKey> options = UnaryOperator.identity();
+        for (int i = 0; i < args.length; i++) {
+            final UnaryOperator<ScrambleKey> previous = options;
+            if (args[i].equals("--generator") && i + 1 < args.length) {
+                final String generator = args[++i];
+                NumberGenerator.getInstance(generator, 0);
+                options = (key) -> previous.apply(key).withGenerator(generator);
+            } else if (args[i].equals("--mode") && i + 1 < args.length) {
+                final ScrambleKey.Mode mode = ScrambleKey.Mode.forId(args[++i]);
+                options = (key) -> previous.apply(key).withMode(mode);
+            } else if (args[i].equals("--block") && i + 1 < args.length) {
+                final int blockSize = Integer.parseInt(args[++i]);
+                new ScrambleKey(0).withBlockSize(blockSize);
+                options = (key) -> previous.apply(key).withBlockSize(blockSize);
+            } else if (args[i].equals("--tile") && i + 1 < args.length) {
+                final int tileSize = Integer.parseInt(args[++i]);
+                new ScrambleKey(0).withTileSize(tileSize);
+                options = (key) -> previous.apply(key).withTileSize(tileSize);
+            } else if (args[i].equals("--rounds") && i + 1 < args.length) {
+                final int rounds = Integer.parseInt(args[++i]);
+                new ScrambleKey(0).withRounds(rounds);
+                options = (key) -> previous.apply(key).withRounds(rounds);
+            } else if (args[i].equals("--transform")) {
+                options = (key) -> previous.apply(key).withBlockTransform(true);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Parse the {@code --seed <seed>} command line option, and remove it from
+     * the arguments.
+     *
+     * @param arguments The command line arguments that are not key options.
+     * @return The seed, or {@link #RANDOMSEED} if the option is not given.
+     * @throws IllegalArgumentException If the seed is not a positive number.
+     */
+    static long parseSeed(List<String> arguments) {
+        final int index = arguments.indexOf("--seed");
+        if (index == -1 || index + 1 >= arguments.size()) {
+            return RANDOMSEED;
+        }
+        final long seed = Long.parseLong(arguments.get(index + 1));
+        if (seed < 0) {
+            throw new IllegalArgumentException("Seed must be positive: " + seed);
+        }
+        arguments.subList(index, index + 2).clear();
+        return seed;
+    }
+
+    /**
+     * Parse the command line options of the {@link MemoryBudget#getDefault()
+     * default memory budget}, and remove them from the arguments. The options
+     * are {@code --memory-budget <size>}, with an optional {@code k}, {@code m}
+     * or {@code g} suffix, and {@code --reject} to reject jobs that do not fit
+     * instead of waiting.
+     *
+     * @param arguments The command line arguments that are not key options.
+     * @throws IllegalArgumentException If the budget is not a positive size.
+     */
+    static void parseBudgetOptions(List<String> arguments) {
+        final int index = arguments.indexOf("--memory-budget");
+        if (index != -1 && index + 1 < arguments.size()) {
+            final long capacity = PixelBufferPool.parseSize(arguments.get(index + 1), -1);
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Invalid memory budget: " + arguments.get(index + 1));
+            }
+            MemoryBudget.getDefault().setCapacity(capacity);
+            arguments.subList(index, index + 2).clear();
+        }
+        if (arguments.remove("--reject")) {
+            MemoryBudget.getDefault().setWait(false);
+        }
+    }
+
+    /**
+     * Returns the usage of the command line options of the memory budget.
+     *
+     * @return The usage message of the budget options.
+     */
+    static String budgetOptionsUsage() {
+        return "[--memory-budget <size>] [--reject]";
+    }
+
+    /**
+     * Returns the usage of the command line options that select the scramble
+     * key.
+     *
+     * @return The usage message of the key options.
+     */
+    static String keyOptionsUsage() {
+        final StringBuilder modes = new StringBuilder();
+        for (ScrambleKey.Mode mode : ScrambleKey.Mode.values()) {
+            modes.append(modes.length() > 0 ? "|" : "").append(mode.getId());
+        }
+        return "[--generator " + RandomNumberGenerator.ALGORITHM + "|"
+                + CounterNumberGenerator.ALGORITHM + "] [--mode " + modes
+                + "] [--block <size>] [--transform] [--rounds <count>] [--tile <size>]";
+    }
+
     /**
      * Creates a scrambled image from the given image file.
      *
-     * @param args The string array containing the filename and optionally the
-     * random seed.
+     * @param args The string array containing the options, the filename and
+     * optionally the random seed.
      */
     public static void main(String[] args) {
-        long seed = RANDOMSEED;
+        long seed;
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        try {
+            options = parseKeyOptions(args, arguments);
+            seed = parseSeed(arguments);
+            parseBudgetOptions(arguments);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        final boolean strip = arguments.remove("--strip");
+        args = arguments.toArray(new String[arguments.size()]);
+        final boolean stream = args.length > 0 && args[0].equals("-");
         if (args.length > 1) {
             try {
                 seed = Long.parseLong(args[1]);
                 if (seed < 0) {
                     throw new NumberFormatException();
                 }
-                System.out.println("Seed from command line: " + seed);
+                (stream ? System.err : System.out).println("Seed from command line: " + seed);
             } catch (NumberFormatException ex) {
             }
         }
-        if (args.length > 0) {
-            ImageCreator imageCreator = new ImageCreator(args[0], seed);
+        if (stream) {
+            /* Stream mode, the standard output only holds the image */
+            ScrambleKey key = options.apply(new ScrambleKey(seed));
+            if (seed == RANDOMSEED) {
+                key = key.withSeed(new Random(System.currentTimeMillis()).nextInt(Integer.MAX_VALUE));
+                System.err.println("Using random seed: " + key.getSeed());
+            }
+            try (ReadableByteChannel in = new FileInputStream(FileDescriptor.in).getChannel();
+                    WritableByteChannel out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+                scramble(key, strip, in, out);
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Error: " + ex.getMessage());
+            }
+        } else if (args.length > 0) {
+            ImageCreator imageCreator = new ImageCreator(args[0],
+                    options.apply(new ScrambleKey(seed)));
         } else {
             System.out.println("usage: java "
                     + ImageCreator.class.getCanonicalName()
-                    + " <filename> [seed]");
+                    + " " + keyOptionsUsage() + " " + budgetOptionsUsage()
+                    + " [--strip] [--seed <seed>] <filename | -> [seed]");
         }
     }
 }
@@ -0,0 +1,565 @@
+package cuenen.raymond.image;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Executing class that scrambles the images dropped in a spool directory, as
+ * soon as they are fully written. <br>
+ * A file is considered fully written when it was written as {@code <name>.part}
+ * and renamed to {@code <name>}, or when its size and modification time did
+ * not change for {@link #STABLE_INTERVAL} milliseconds. The scrambled image is
+ * written to the output directory under a temporary name and linked in place
+ * atomically, after which the source file is deleted. An existing output is
+ * never replaced. Files that cannot be scrambled are moved to the
+ * {@code failed} directory in the spool directory.
+ * <p>
+ * The files are scrambled on a bounded pool of workers. When the queue is full
+ * the daemon stops taking new files until a worker is done, so a burst of
+ * files never holds more than the queue capacity in memory. The queue depth,
+ * the number of files processed and the processing latency, from the moment a
+ * file was fully written until its output was in place, are available while
+ * the daemon runs.
+ *
+ * @see ImageCreator#scramble(ScrambleKey, boolean,
+ * java.nio.channels.ReadableByteChannel, java.nio.channels.WritableByteChannel)
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class ImageDaemon implements Runnable {
+
+    /**
+     * The time, in milliseconds, the size of a file must be stable before it
+     * is scrambled.
+     */
+    public static final long STABLE_INTERVAL = 500L;
+
+    /**
+     * The time, in milliseconds, since the last modification of a file during
+     * which a failure is blamed on a writer that paused, rather than on the
+     * file itself.
+     */
+    private static final long RETRY_PERIOD = 10 * STABLE_INTERVAL;
+
+    /**
+     * The suffix of files that are still being written.
+     */
+    private static final String PART = ".part";
+
+    /**
+     * The name of the directory for files that cannot be scrambled.
+     */
+    private static final String FAILED = "failed";
+
+    /**
+     * The spool directory.
+     */
+    private final Path spool;
+
+    /**
+     * The output directory.
+     */
+    private final Path output;
+
+    /**
+     * The key for the scramble algorithm, its seed may be
+     * {@link ImageCreator#RANDOMSEED} for a random seed per file.
+     */
+    private final ScrambleKey key;
+
+    /**
+     * The workers scrambling the files.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The permits for files waiting for or being processed by a worker.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The random generator for the seeds.
+     */
+    private final Random seeds = new Random();
+
+    /**
+     * The files that are not yet fully written, with the size and
+     * modification time last seen, the time they last changed and the time
+     * they were first seen.
+     */
+    private final Map<Path, long[]> candidates = new HashMap<>();
+
+    /**
+     * The {@code .part} files that were seen in the spool directory.
+     */
+    private final Set<Path> partials = new HashSet<>();
+
+    /**
+     * The files that were submitted to the workers and are not done yet.
+     */
+    private final Set<Path> taken = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The files that changed while they were scrambled, to become a candidate
+     * again.
+     */
+    private final Queue<Path> retries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The counters of the daemon.
+     */
+    private final AtomicLong queued = new AtomicLong(), active = new AtomicLong(),
+            processed = new AtomicLong(), failed = new AtomicLong(),
+            totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+    /**
+     * Flag indicating that the daemon should stop.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a new {@code ImageDaemon}.
+     *
+     * @param spool The directory to take the images from.
+     * @param output The directory to write the scrambled images to.
+     * @param key The key for the scramble algorithm, its seed may be
+     * {@link ImageCreator#RANDOMSEED} for a random seed per file.
+     * @param workers The number of workers.
+     * @param capacity The number of files that may wait for a worker.
+     * @throws IOException If the output directory cannot be created.
+     */
+    public ImageDaemon(Path spool, Path output, ScrambleKey key, int workers, int capacity)
+            throws IOException {
+        this.spool = spool;
+        this.output = output;
+        this.key = key;
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.permits = new Semaphore(workers + capacity);
+        Files.createDirectories(output);
+    }
+
+    /**
+     * Watch the spool directory and scramble the images in it, until
+     * {@link #stop()} is called or the spool directory is removed.
+     */
+    @Override
+    public void run() {
+        try (WatchService watcher = spool.getFileSystem().newWatchService()) {
+            spool.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            scan();
+            while (!stopped) {
+                final WatchKey watchKey = watcher.poll(STABLE_INTERVAL, TimeUnit.MILLISECONDS);
+                if (watchKey != null) {
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            /* Events were lost while the queue was full */
+                            scan();
+                        } else {
+                            offer(spool.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!watchKey.reset()) {
+                        System.err.println("Error: Spool directory removed: " + spool);
+                        break;
+                    }
+                }
+                for (Path file = retries.poll(); file != null; file = retries.poll()) {
+                    final long now = System.nanoTime();
+                    candidates.put(file, new long[]{-1L, -1L, now, now});
+                }
+                submitStable();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            /* Finish the files that were taken from the spool directory */
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop taking new files from the spool directory. The files that were
+     * already taken are still scrambled.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the number of files waiting for a worker.
+     *
+     * @return The queue depth.
+     */
+    public long getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of files being scrambled.
+     *
+     * @return The number of busy workers.
+     */
+    public long getActive() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of files scrambled.
+     *
+     * @return The number of files processed.
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Returns the number of files that could not be scrambled.
+     *
+     * @return The number of failed files.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the mean processing latency, from the moment a file was fully
+     * written until its output was in place.
+     *
+     * @return The mean latency in milliseconds.
+     */
+    public double getAverageLatency() {
+        final long count = processed.get();
+        return count == 0 ? 0.0 : totalLatency.get() / 1e6 / count;
+    }
+
+    /**
+     * Returns the maximum processing latency.
+     *
+     * @return The maximum latency in milliseconds.
+     */
+    public double getMaxLatency() {
+        return maxLatency.get() / 1e6;
+    }
+
+    /**
+     * Offer all files that are already in the spool directory.
+     *
+     * @throws IOException If the spool directory cannot be read.
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    private void scan() throws IOException, InterruptedException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool)) {
+            for (Path file : files) {
+                offer(file);
+            }
+        }
+    }
+
+    /**
+     * Offer a file that was created or modified in the spool directory. A file
+     * that replaces its {@code .part} file is submitted directly, other files
+     * become a candidate until their size is stable.
+     *
+     * @param file The file.
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    private void offer(Path file) throws InterruptedException {
+        final String name = file.getFileName().toString();
+        if (name.startsWith(".") || taken.contains(file)) {
+            return;
+        }
+        if (name.endsWith(PART)) {
+            partials.add(file);
+        } else if (!Files.isRegularFile(file)) {
+            return;
+        } else if (partials.remove(file.resolveSibling(name + PART))) {
+            candidates.remove(file);
+            submit(file, System.nanoTime());
+        } else if (!candidates.containsKey(file)) {
+            final long now = System.nanoTime();
+            candidates.put(file, new long[]{-1L, -1L, now, now});
+        }
+    }
+
+    /**
+     * Submit the candidates whose size and modification time did not change
+     * since they were last seen. A candidate was fully written at its last
+     * modification, but not before the daemon first saw it.
+     *
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    private void submitStable() throws InterruptedException {
+        final Map<Path, Long> stable = new LinkedHashMap<>();
+        final long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, long[]>> it = candidates.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Path, long[]> candidate = it.next();
+            final long[] seen = candidate.getValue();
+            final long[] stamp = stamp(candidate.getKey());
+            if (stamp == null) {
+                /* Removed or renamed */
+                it.remove();
+            } else if (stamp[0] == seen[0] && stamp[1] == seen[1]
+                    && now - seen[2] >= TimeUnit.MILLISECONDS.toNanos(STABLE_INTERVAL)) {
+                it.remove();
+                final long age = TimeUnit.MILLISECONDS.toNanos(
+                        Math.max(0L, System.currentTimeMillis() - stamp[1]));
+                stable.put(candidate.getKey(), Math.max(seen[3], now - age));
+            } else if (stamp[0] != seen[0] || stamp[1] != seen[1]) {
+                seen[0] = stamp[0];
+                seen[1] = stamp[1];
+                seen[2] = now;
+            }
+        }
+        for (Map.Entry<Path, Long> file : stable.entrySet()) {
+            submit(file.getKey(), file.getValue());
+        }
+        /* Forget the .part files that were removed without a rename */
+        partials.removeIf((file) -> !Files.exists(file));
+    }
+
+    /**
+     * Returns the size and modification time of a file.
+     *
+     * @param file The file.
+     * @return The size and modification time, or {@code null} if the file
+     * does not exist.
+     */
+    private static long[] stamp(Path file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new long[]{attributes.size(), attributes.lastModifiedTime().toMillis()};
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Submit a fully written file to the workers, waiting while the queue is
+     * full. A file that fails to scramble while it was modified recently, for
+     * example because its writer paused longer than the stable interval,
+     * becomes a candidate again.
+     *
+     * @param file The file to scramble.
+     * @param written The {@link System#nanoTime() time} the file was fully
+     * written.
+     * @throws InterruptedException If interrupted while waiting for a worker.
+     */
+    private void submit(Path file, long written) throws InterruptedException {
+        taken.add(file);
+        permits.acquire();
+        queued.incrementAndGet();
+        workers.execute(() -> {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            boolean retry = false;
+            try {
+                final long seed = scramble(file);
+                final long latency = System.nanoTime() - written;
+                processed.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                maxLatency.accumulateAndGet(latency, Math::max);
+                System.out.println(String.format("Scrambled %s with seed %d in %.1f ms, %s",
+                        file.getFileName(), seed, latency / 1e6, this));
+            } catch (IOException | RuntimeException ex) {
+                final long[] stamp = stamp(file);
+                /* A name taken in the output directory does not resolve itself */
+                retry = stamp != null && !(ex instanceof FileAlreadyExistsException)
+                        && System.currentTimeMillis() - stamp[1] < RETRY_PERIOD;
+                if (retry) {
+                    System.out.println("Retry " + file.getFileName() + ": " + ex.getMessage());
+                } else {
+                    failed.incrementAndGet();
+                    System.err.println("Error: " + file + ": " + ex.getMessage());
+                    moveToFailed(file);
+                }
+            } finally {
+                taken.remove(file);
+                if (retry) {
+                    retries.add(file);
+                }
+                active.decrementAndGet();
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Scramble a file to the output directory and delete it from the spool
+     * directory. The output keeps the name of the file, with {@code .png}
+     * appended unless it already has that extension, so {@code a.jpg} and
+     * {@code a.png} do not share an output. An existing output is never
+     * replaced.
+     *
+     * @param file The file to scramble.
+     * @return The seed the file was scrambled with.
+     * @throws FileAlreadyExistsException If the output already exists.
+     * @throws IOException If the file cannot be read or the output cannot be
+     * written.
+     */
+    private long scramble(Path file) throws IOException {
+        ScrambleKey fileKey = key;
+        if (fileKey.getSeed() == ImageCreator.RANDOMSEED) {
+            synchronized (seeds) {
+                fileKey = fileKey.withSeed(seeds.nextInt(Integer.MAX_VALUE));
+            }
+        }
+        String name = file.getFileName().toString();
+        if (!name.toLowerCase(Locale.ROOT).endsWith(".png")) {
+            name += ".png";
+        }
+        final Path target = output.resolve(name);
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString(), null,
+                    "Output already exists");
+        }
+        /* Workers writing the same output name use their own temporary file */
+        final Path temp = output.resolve("." + name + "." + Thread.currentThread().getId() + PART);
+        try {
+            try (FileChannel in = FileChannel.open(file);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ImageCreator.scramble(fileKey, false, in, out);
+            }
+            /* A link appears atomically and fails if the name is taken */
+            try {
+                Files.createLink(target, temp);
+            } catch (UnsupportedOperationException ex) {
+                Files.move(temp, target);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Files.delete(file);
+        return fileKey.getSeed();
+    }
+
+    /**
+     * Move a file that cannot be scrambled out of the way.
+     *
+     * @param file The file.
+     */
+    private void moveToFailed(Path file) {
+        try {
+            final Path directory = Files.createDirectories(spool.resolve(FAILED));
+            Files.move(file, directory.resolve(file.getFileName()),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException ex) {
+        } catch (IOException ex) {
+            System.err.println("Error: " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("queue=%d, active=%d, processed=%d, failed=%d, "
+                + "latency mean=%.1f ms, max=%.1f ms", getQueueDepth(), getActive(),
+                getProcessed(), getFailed(), getAverageLatency(), getMaxLatency());
+    }
+
+    /**
+     * Scrambles the images dropped in a spool directory until the process is
+     * stopped.
+     *
+     * @param args The string array containing the options, the spool directory
+     * and optionally the output directory.
+     */
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        final long seed;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int capacity = 2 * threads;
+        try {
+            options = ImageCreator.parseKeyOptions(args, arguments);
+            seed = ImageCreator.parseSeed(arguments);
+            ImageCreator.parseBudgetOptions(arguments);
+            int index = arguments.indexOf("--workers");
+            if (index != -1 && index + 1 < arguments.size()) {
+                threads = Integer.parseInt(arguments.remove(index + 1));
+                arguments.remove(index);
+            }
+            index = arguments.indexOf("--queue");
+            if (index != -1 && index + 1 < arguments.size()) {
+                capacity = Integer.parseInt(arguments.remove(index + 1));
+                arguments.remove(index);
+            }
+            if (threads < 1 || capacity < 0) {
+                throw new IllegalArgumentException("Invalid number of workers or queue capacity");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        if (arguments.isEmpty()) {
+            System.out.println("usage: java "
+                    + ImageDaemon.class.getCanonicalName() + " "
+                    + ImageCreator.keyOptionsUsage() + " " + ImageCreator.budgetOptionsUsage()
+                    + " [--seed <seed>] [--workers <n>]"
+                    + " [--queue <n>] <spool directory> [output directory]");
+            return;
+        }
+        final Path spool = Paths.get(arguments.get(0));
+        final Path output = arguments.size() > 1 ? Paths.get(arguments.get(1))
+                : spool.resolveSibling(spool.getFileName() + "-scrambled");
+        try {
+            final ImageDaemon daemon = new ImageDaemon(spool, output,
+                    options.apply(new ScrambleKey(seed)), threads, capacity);
+            final Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                daemon.stop();
+                try {
+                    main.join();
+                } catch (InterruptedException ex) {
+                }
+            }));
+            System.out.println("Watching " + spool + ", writing to " + output);
+            daemon.run();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+
+/**
+ * Executing class to re-key scrambled images: an image scrambled with one key
+ * is rewritten as if it was scrambled with another key, without a full
+ * de-scramble and scramble round trip. <br>
+ * The pixels are moved exactly once, from the decoded old scrambled image to
+ * the new one, and the new key replaces the old one in the metadata. A palette
+ * image stays a palette image with the same palette. Given a directory
+ * all PNG images in it are re-keyed. Every file is replaced atomically, so an
+ * interrupted batch never leaves a half written image behind.
+ *
+ * @see RasterCreator#rekey
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class ImageRekeyer {
+
+    /**
+     * Re-key the image, or all PNG images in the directory, indicated by the
+     * given {@code input}.
+     *
+     * @param input The filename of a scrambled image, or the name of a
+     * directory holding scrambled images.
+     * @param options The function creating the new key from the old key.
+     */
+    public ImageRekeyer(String input, UnaryOperator<ScrambleKey> options) {
+        final File source = new File(input);
+        final List<File> files = new ArrayList<>();
+        if (source.isDirectory()) {
+            final File[] list = source.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+            if (list != null) {
+                Arrays.sort(list);
+                files.addAll(Arrays.asList(list));
+            }
+        } else {
+            files.add(source);
+        }
+        int failed = 0;
+        for (File file : files) {
+            try {
+                rekey(file, options);
+            } catch (IOException | RuntimeException ex) {
+                failed++;
+                System.err.println("Error: " + file + ": " + ex.getMessage());
+            }
+        }
+        System.out.println("Done: " + (files.size() - failed) + " re-keyed, "
+                + failed + " failed");
+    }
+
+    /**
+     * Re-key a single scrambled image.
+     *
+     * @param file The scrambled image file.
+     * @param options The function creating the new key from the old key.
+     * @throws IOException If the image cannot be read or written, or has no
+     * key.
+     */
+    private void rekey(File file, UnaryOperator<ScrambleKey> options) throws IOException {
+        final Map<String, String> metadata = ImageConstructor.readMetadata(new FileInputStream(file));
+        final ScrambleKey oldKey = ScrambleKey.fromMetadata(metadata);
+        final ScrambleKey newKey = options.apply(oldKey);
+        final BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image");
+        }
+        /* Palette indices are re-keyed as indices, other pixels are read in place */
+        final boolean indexed = Palette.isIndexed(image);
+        final BufferedImage src = indexed || RasterCreator.pixelReader(image.getRaster()) != null
+                ? image : GraphicsUtilities.toIntImage(image);
+        final Permutation oldPermutation = RasterCreator.permutation(oldKey,
+                src.getWidth(), src.getHeight());
+        Fingerprint.verify(metadata, oldKey, oldPermutation, src);
+        final Permutation newPermutation = RasterCreator.permutation(newKey,
+                src.getWidth(), src.getHeight());
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        final BufferedImage dst = indexed ? new BufferedImage(src.getWidth(), src.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED, (IndexColorModel) src.getColorModel())
+                : pool.acquireImage(src.getWidth(), src.getHeight());
+        RasterCreator.rekey(oldPermutation, newPermutation, src.getRaster(), dst.getRaster());
+
+        /* Keep the other metadata entries */
+        metadata.keySet().removeAll(oldKey.toMetadata().keySet());
+        metadata.putAll(newKey.toMetadata());
+        if (metadata.containsKey(Fingerprint.FINGERPRINT)) {
+            metadata.put(Fingerprint.FINGERPRINT,
+                    Fingerprint.ofScrambled(newKey, newPermutation, dst));
+        }
+        final File temp = File.createTempFile(".rekey", ".png", file.getAbsoluteFile().getParentFile());
+        try {
+            ImageCreator.writeImage(temp, dst, metadata);
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+            if (!indexed) {
+                pool.release(dst);
+            }
+        }
+        System.out.println("Re-keyed " + file + ": " + oldKey.getSeed() + " -> " + newKey.getSeed());
+    }
+
+    /**
+     * Re-keys the given scrambled image or directory of scrambled images.
+     *
+     * @param args The string array containing the key options, the filename
+     * or directory and the new seed.
+     */
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        try {
+            options = ImageCreator.parseKeyOptions(args, arguments);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        long seed = -1;
+        if (arguments.size() > 1) {
+            try {
+                seed = Long.parseLong(arguments.get(1));
+            } catch (NumberFormatException ex) {
+            }
+        }
+        if (seed >= 0) {
+            final long newSeed = seed;
+            ImageRekeyer imageRekeyer = new ImageRekeyer(arguments.get(0),
+                    (key) -> options.apply(key.withSeed(newSeed)));
+        } else {
+            System.out.println("usage: java "
+                    + ImageRekeyer.class.getCanonicalName() + " "
+                    + ImageCreator.keyOptionsUsage() + " <filename | directory> <seed>");
+        }
+    }
+}
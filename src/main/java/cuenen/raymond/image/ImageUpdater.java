@@ -0,0 +1,181 @@
+package cuenen.raymond.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Executing class to update a scrambled image for changed regions of its
+ * source, such as a dashboard or map of which only a part changes between
+ * revisions. <br>
+ * Only the changed regions of the new source are decoded, and only the
+ * scrambled pixels they map to are rewritten, so there is no de-scramble and
+ * scramble round trip and the new source is never decoded as a whole. The
+ * scrambled image itself is still decoded and encoded as a whole: the pixels
+ * of a changed region are spread over all of its rows. An update therefore
+ * costs about as much as reading and writing the scrambled image, plus the
+ * permutation, which is built for the whole image in
+ * {@link ScrambleKey.Mode#SWAP} mode. The key is read from the scrambled
+ * image, or given on the command line when it was stripped, and is checked
+ * against the fingerprint of the image before anything is changed. The
+ * updated image replaces the scrambled image atomically.
+ *
+ * @see RasterCreator#update(Permutation, java.awt.image.Raster,
+ * java.awt.image.WritableRaster)
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class ImageUpdater {
+
+    /**
+     * Update the scrambled image for the changed regions of the source. The
+     * scrambled image is decoded and encoded as a whole, only the changed
+     * regions of the source are decoded.
+     *
+     * @param scrambled The scrambled image file, updated in place.
+     * @param source The new source image file.
+     * @param regions The changed regions of the source.
+     * @param key The key the image was scrambled with, or {@code null} to use
+     * the key stored with the image.
+     * @throws IOException If an image cannot be read or written, or the key
+     * does not match the image.
+     */
+    public static void update(File scrambled, File source, List<Rectangle> regions,
+            ScrambleKey key) throws IOException {
+        final long start = System.nanoTime();
+        final Map<String, String> metadata = ImageConstructor.readMetadata(new FileInputStream(scrambled));
+        if (key == null) {
+            key = ScrambleKey.fromMetadata(metadata);
+        }
+        final BufferedImage image = ImageIO.read(scrambled);
+        if (image == null) {
+            throw new IOException("Unsupported image: " + scrambled);
+        }
+        final BufferedImage dst = GraphicsUtilities.toIntImage(image);
+        final Permutation permutation = RasterCreator.permutation(key, dst.getWidth(), dst.getHeight());
+        Fingerprint.verify(metadata, key, permutation, dst.getRaster());
+
+        long pixels = 0;
+        try (ImageInputStream stream = ImageIO.createImageInputStream(source)) {
+            final Iterator<ImageReader> readers = stream == null
+                    ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image: " + source);
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                if (reader.getWidth(0) != dst.getWidth() || reader.getHeight(0) != dst.getHeight()) {
+                    throw new IOException("Source size does not match the scrambled image");
+                }
+                for (Rectangle region : regions) {
+                    /* Decode only the changed region */
+                    final ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(region);
+                    final BufferedImage changed = GraphicsUtilities.toIntImage(reader.read(0, param));
+                    RasterCreator.update(permutation, changed.getRaster()
+                            .createTranslatedChild(region.x, region.y), dst.getRaster());
+                    pixels += (long) region.width * region.height;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        if (metadata.containsKey(Fingerprint.FINGERPRINT)) {
+            metadata.put(Fingerprint.FINGERPRINT, Fingerprint.ofScrambled(key, permutation, dst.getRaster()));
+        }
+        /* Keep a palette image a palette image, if the new colors fit */
+        BufferedImage output = dst;
+        if (Palette.isIndexed(image)) {
+            final BufferedImage indexed = Palette.toIndexed(dst);
+            output = indexed != null ? indexed : dst;
+        }
+        final File temp = File.createTempFile(".update", ".png", scrambled.getAbsoluteFile().getParentFile());
+        try {
+            ImageCreator.writeImage(temp, output, metadata);
+            try {
+                Files.move(temp.toPath(), scrambled.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp.toPath(), scrambled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        System.out.println(String.format("Updated %s: %d of %d pixels in %.1f ms", scrambled, pixels,
+                (long) dst.getWidth() * dst.getHeight(), (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Parse a region given as {@code x,y,width,height}.
+     *
+     * @param value The region on the command line.
+     * @return The region.
+     * @throws IllegalArgumentException If the region is not valid.
+     */
+    private static Rectangle parseRegion(String value) {
+        final String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid region: " + value);
+        }
+        final Rectangle region = new Rectangle(Integer.parseInt(parts[0].trim()),
+                Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()),
+                Integer.parseInt(parts[3].trim()));
+        if (region.x < 0 || region.y < 0 || region.width < 1 || region.height < 1) {
+            throw new IllegalArgumentException("Invalid region: " + value);
+        }
+        return region;
+    }
+
+    /**
+     * Updates a scrambled image for the changed regions of its source.
+     *
+     * @param args The string array containing the key options, the scrambled
+     * filename, the source filename and the changed regions.
+     */
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        final long seed;
+        final List<Rectangle> regions = new ArrayList<>();
+        try {
+            options = ImageCreator.parseKeyOptions(args, arguments);
+            seed = ImageCreator.parseSeed(arguments);
+            for (String region : arguments.subList(Math.min(2, arguments.size()), arguments.size())) {
+                regions.add(parseRegion(region));
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        if (regions.isEmpty()) {
+            System.out.println("usage: java "
+                    + ImageUpdater.class.getCanonicalName() + " "
+                    + ImageCreator.keyOptionsUsage() + " [--seed <seed>] <scrambled> <source>"
+                    + " <x,y,width,height>...");
+            return;
+        }
+        try {
+            update(new File(arguments.get(0)), new File(arguments.get(1)), regions,
+                    seed == ImageCreator.RANDOMSEED ? null : options.apply(new ScrambleKey(seed)));
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
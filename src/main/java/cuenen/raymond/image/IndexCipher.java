@@ -0,0 +1,138 @@
+package cuenen.raymond.image;
+
+/**
+ * A keyed bijection on the pixel indices {@code [0, N)}, computed per index
+ * without any tables. <br>
+ * The index is encrypted by a balanced Feistel network on the smallest even
+ * number of bits that can hold {@code N - 1}; results outside {@code [0, N)}
+ * are encrypted again until they fall inside (cycle-walking). Since the domain
+ * of the network is less than four times {@code N}, this takes less than four
+ * rounds on average. The round keys are derived from the seed, so the position
+ * of any pixel is known in constant time and constant memory.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class IndexCipher implements Permutation {
+
+    /**
+     * The number of rounds of the Feistel network.
+     */
+    public static final int ROUNDS = 6;
+
+    /**
+     * The number of indices that are permuted.
+     */
+    private final int size;
+
+    /**
+     * The number of bits in half a block.
+     */
+    private final int half;
+
+    /**
+     * The mask for half a block.
+     */
+    private final long mask;
+
+    /**
+     * The round keys.
+     */
+    private final long[] keys = new long[ROUNDS];
+
+    /**
+     * Creates a new {@code IndexCipher}.
+     *
+     * @param seed The key of the cipher.
+     * @param size The number of indices that are permuted.
+     */
+    public IndexCipher(long seed, int size) {
+        this.size = size;
+        final int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1)));
+        this.half = (bits + 1) / 2;
+        this.mask = (1L << half) - 1;
+        final CounterNumberGenerator generator = new CounterNumberGenerator(seed);
+        for (int round = 0; round < ROUNDS; round++) {
+            keys[round] = generator.randomLong(round);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int index) {
+        long value = index;
+        do {
+            value = encrypt(value);
+        } while (value >= size);
+        return (int) value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int inverse(int index) {
+        long value = index;
+        do {
+            value = decrypt(value);
+        } while (value >= size);
+        return (int) value;
+    }
+
+    /**
+     * Encrypt a block with the Feistel network.
+     *
+     * @param value The block.
+     * @return The encrypted block.
+     */
+    private long encrypt(long value) {
+        long left = value >>> half;
+        long right = value & mask;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long next = left ^ round(round, right);
+            left = right;
+            right = next;
+        }
+        return left << half | right;
+    }
+
+    /**
+     * Decrypt a block with the Feistel network.
+     *
+     * @param value The encrypted block.
+     * @return The block.
+     */
+    private long decrypt(long value) {
+        long left = value >>> half;
+        long right = value & mask;
+        for (int round = ROUNDS - 1; round >= 0; round--) {
+            final long previous = right ^ round(round, left);
+            right = left;
+            left = previous;
+        }
+        return left << half | right;
+    }
+
+    /**
+     * The round function of the Feistel network.
+     *
+     * @param round The round number.
+     * @param value Half a block.
+     * @return The value to mix into the other half of the block.
+     */
+    private long round(int round, long value) {
+        long z = (value + keys[round]) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 31)) * 0x94D049BB133111EBL;
+        return (z ^ (z >>> 29)) & mask;
+    }
+}
@@ -0,0 +1,384 @@
+package cuenen.raymond.image;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Executing class to render a preview clip of a scrambled image that is
+ * revealed through the {@link HiddenMask} blend, without a display. <br>
+ * Every frame is composed like the {@code DisplayPanel} paints: a white
+ * background, the 'turtle' image at the overlay position and the de-scrambled
+ * image blended on top with the alpha value of the frame. The alpha values and
+ * overlay positions are read from a script with a line {@code alpha x y} per
+ * frame, or default to a reveal from hidden to shown while the turtle bounces
+ * like in the viewer. <br>
+ * The frames are rendered in parallel on a pool of worker threads, each
+ * composing a frame into a pooled buffer and writing it to a numbered PNG
+ * sequence, after which the frames per second are reported.
+ *
+ * @see DisplayPanel
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class MaskRenderer {
+
+    /**
+     * The default number of frames of a reveal.
+     */
+    private static final int DEFAULT_FRAMES = 48;
+
+    /**
+     * The alpha value and overlay position of a frame.
+     */
+    static final class Frame {
+
+        /**
+         * The opacity of the de-scrambled image.
+         */
+        final float alpha;
+
+        /**
+         * The position of the overlay.
+         */
+        final int x, y;
+
+        /**
+         * Creates a new {@code Frame}.
+         *
+         * @param alpha The opacity of the de-scrambled image, between 0 and 1.
+         * @param x The horizontal position of the overlay.
+         * @param y The vertical position of the overlay.
+         */
+        Frame(float alpha, int x, int y) {
+            this.alpha = alpha;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * Render the frames of a scrambled image to a numbered PNG sequence in the
+     * given directory.
+     *
+     * @param imageFile The filename of the scrambled image.
+     * @param directory The directory to write the frames to.
+     * @param script The script with the alpha values and overlay positions, or
+     * {@code null} for a reveal of {@code count} frames.
+     * @param count The number of frames of a reveal.
+     * @param width The width of the frames, or zero for that of the image.
+     * @param height The height of the frames, or zero for that of the image.
+     * @param threads The number of worker threads.
+     */
+    public MaskRenderer(String imageFile, File directory, File script, int count, int width,
+            int height, int threads) {
+        try {
+            System.out.println("Reading scrambled image");
+            final BufferedImage image;
+            try {
+                image = new DecodeHandle(new File(imageFile).toURI().toURL()).getCompatibleImage().join();
+            } catch (CompletionException ex) {
+                throw new IOException(ex.getCause().getMessage(), ex.getCause());
+            }
+            final BufferedImage overlay = loadOverlay();
+            width = width > 0 ? width : image.getWidth();
+            height = height > 0 ? height : image.getHeight();
+            final Rectangle bounds = fit(image.getWidth(), image.getHeight(), width, height);
+            final BufferedImage scaled = bounds.width == image.getWidth() && bounds.height == image.getHeight()
+                    ? image : GraphicsUtilities.getAreaAveragedInstance(image, bounds.width, bounds.height);
+            final List<Frame> frames = script != null ? readScript(script)
+                    : reveal(count, overlay, bounds);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            System.out.println("Render " + frames.size() + " frames in: " + directory);
+            final long start = System.nanoTime();
+            render(frames, overlay, scaled, bounds, width, height, directory, threads);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Rendered %d frames in %.2f s: %.1f fps, compose %.2f ms per frame",
+                    frames.size(), seconds, frames.size() / seconds,
+                    Telemetry.getDefault().average("render.compose", frames.size())));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Render frames in parallel and write them as {@code frame-0000.png} and
+     * so on. Every worker composes a frame into a pooled buffer and encodes it
+     * directly.
+     *
+     * @param frames The alpha values and overlay positions of the frames.
+     * @param overlay The overlay image.
+     * @param image The de-scrambled image, scaled to its bounds.
+     * @param bounds The bounds of the de-scrambled image in a frame.
+     * @param width The width of a frame.
+     * @param height The height of a frame.
+     * @param directory The directory to write the frames to.
+     * @param threads The number of worker threads.
+     * @throws IOException If a frame cannot be written.
+     */
+    static void render(List<Frame> frames, BufferedImage overlay, BufferedImage image,
+            Rectangle bounds, int width, int height, File directory, int threads) throws IOException {
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        final Telemetry telemetry = Telemetry.getDefault();
+        try {
+            final List<Future<?>> rendered = new ArrayList<>(frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                final Frame frame = frames.get(i);
+                final File file = new File(directory, String.format("frame-%04d.png", i));
+                rendered.add(workers.submit(() -> {
+                    final BufferedImage target = pool.acquireImage(width, height);
+                    try {
+                        final long compose = System.nanoTime();
+                        compose(target, overlay, frame.x, frame.y, image, bounds.x, bounds.y,
+                                HiddenMask.getInstance(frame.alpha));
+                        telemetry.record("render.compose", compose);
+                        final RasterCreator.PixelReader pixels = RasterCreator.pixelReader(target.getRaster());
+                        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+                                ImageCreator.STREAM_BUFFER_SIZE)) {
+                            PngEncoder.write(out, width, height, Collections.emptyMap(), (y, row) -> {
+                                for (int x = 0, index = y * width; x < width; x++, index++) {
+                                    row[x] = pixels.get(index);
+                                }
+                            }, Deflater.DEFAULT_COMPRESSION);
+                        }
+                    } finally {
+                        pool.release(target);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> frame : rendered) {
+                frame.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Compose a frame the way the viewer shows a hidden image: a white
+     * background, the overlay, and the image blended on top.
+     *
+     * @param frame The image to compose into.
+     * @param overlay The overlay image.
+     * @param overlayX The horizontal position of the overlay.
+     * @param overlayY The vertical position of the overlay.
+     * @param image The de-scrambled image.
+     * @param x The horizontal position of the image.
+     * @param y The vertical position of the image.
+     * @param mask The composite blending the image.
+     */
+    static void compose(BufferedImage frame, BufferedImage overlay, int overlayX, int overlayY,
+            BufferedImage image, int x, int y, HiddenMask mask) {
+        final Graphics2D g2 = frame.createGraphics();
+        g2.setColor(Color.white);
+        g2.setComposite(AlphaComposite.Src);
+        g2.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+        g2.drawImage(overlay, overlayX, overlayY, null);
+        g2.setComposite(mask);
+        g2.drawImage(image, x, y, null);
+        g2.dispose();
+    }
+
+    /**
+     * Returns the bounds of an image shown in a frame, the way the viewer
+     * fits it: with the aspect ratio of the image, at least as large as the
+     * image and as the frame along the side that limits it, and centered.
+     *
+     * @param imageWidth The width of the image.
+     * @param imageHeight The height of the image.
+     * @param width The width of the frame.
+     * @param height The height of the frame.
+     * @return The bounds of the image in the frame.
+     */
+    static Rectangle fit(int imageWidth, int imageHeight, int width, int height) {
+        final double ratio = (double) width / (double) height;
+        final double imgRatio = (double) imageWidth / (double) imageHeight;
+        int dstWidth = imageWidth;
+        int dstHeight = imageHeight;
+        if (ratio > imgRatio) {
+            dstHeight = Math.max(dstHeight, height);
+            dstWidth = (int) (imgRatio * dstHeight);
+        } else {
+            dstWidth = Math.max(dstWidth, width);
+            dstHeight = (int) (dstWidth / imgRatio);
+        }
+        return new Rectangle((width - dstWidth) / 2, (height - dstHeight) / 2, dstWidth, dstHeight);
+    }
+
+    /**
+     * Returns the frames of a reveal: the alpha value rises from hidden to
+     * shown, while the overlay moves and bounces on the edges of the image
+     * like in the viewer.
+     *
+     * @param count The number of frames.
+     * @param overlay The overlay image.
+     * @param bounds The bounds of the image in a frame.
+     * @return The frames.
+     */
+    static List<Frame> reveal(int count, BufferedImage overlay, Rectangle bounds) {
+        final List<Frame> frames = new ArrayList<>(count);
+        int x = bounds.x;
+        int y = bounds.y;
+        double dirX = 1;
+        double dirY = -1;
+        for (int i = 0; i < count; i++) {
+            frames.add(new Frame(count > 1 ? (float) i / (count - 1) : 1f, x, y));
+            final int targetX = (int) (x + dirX);
+            final int targetY = (int) (y + dirY);
+            if (targetX + overlay.getWidth() > bounds.x + bounds.width || targetX < bounds.x) {
+                dirX = -Math.signum(dirX);
+            } else {
+                x = targetX;
+                dirX += Math.signum(dirX) / 2;
+            }
+            if (targetY + overlay.getHeight() > bounds.y + bounds.height || targetY < bounds.y) {
+                dirY = -Math.signum(dirY);
+            } else {
+                y = targetY;
+                dirY += Math.signum(dirY) / 2;
+            }
+            x = Math.max(bounds.x, Math.min(x, bounds.x + bounds.width - overlay.getWidth()));
+            y = Math.max(bounds.y, Math.min(y, bounds.y + bounds.height - overlay.getHeight()));
+        }
+        return frames;
+    }
+
+    /**
+     * Read a script with a line {@code alpha x y} per frame. Empty lines and
+     * lines starting with {@code #} are skipped.
+     *
+     * @param script The script file.
+     * @return The frames.
+     * @throws IOException If the script cannot be read or has an invalid
+     * line.
+     */
+    static List<Frame> readScript(File script) throws IOException {
+        final List<Frame> frames = new ArrayList<>();
+        int number = 0;
+        for (String line : Files.readAllLines(script.toPath(), StandardCharsets.UTF_8)) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("[\\s,]+");
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException();
+                }
+                final float alpha = Float.parseFloat(fields[0]);
+                if (alpha < 0f || alpha > 1f) {
+                    throw new NumberFormatException();
+                }
+                frames.add(new Frame(alpha, Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid frame at " + script + ":" + number + ": " + line);
+            }
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("No frames in " + script);
+        }
+        return frames;
+    }
+
+    /**
+     * Load the 'turtle' image that the viewer hides the image behind.
+     *
+     * @return The overlay image.
+     * @throws IOException If the image cannot be read.
+     */
+    static BufferedImage loadOverlay() throws IOException {
+        final URL resource = DisplayPanel.class.getResource("resources/tortoise.jpg");
+        if (resource == null) {
+            throw new IOException("Missing overlay image");
+        }
+        return GraphicsUtilities.loadCompatibleImage(resource);
+    }
+
+    /**
+     * Renders a preview clip of the given scrambled image.
+     *
+     * @param args The string array containing the options, the filename and
+     * optionally the output directory.
+     */
+    public static void main(String[] args) {
+        File script = null;
+        int count = DEFAULT_FRAMES;
+        int width = 0;
+        int height = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        final List<String> arguments = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--script") && i + 1 < args.length) {
+                    script = new File(args[++i]);
+                } else if (args[i].equals("--frames") && i + 1 < args.length) {
+                    count = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--size") && i + 1 < args.length) {
+                    final String[] size = args[++i].split("x");
+                    if (size.length != 2) {
+                        throw new NumberFormatException(args[i]);
+                    }
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else {
+                    arguments.add(args[i]);
+                }
+            }
+            if (count <= 0 || width < 0 || height < 0 || threads <= 0) {
+                throw new NumberFormatException("Must be positive");
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Error: Invalid option: " + ex.getMessage());
+            return;
+        }
+        if (!arguments.isEmpty()) {
+            final String imageFile = arguments.get(0);
+            final int index = imageFile.lastIndexOf('.');
+            final File directory = new File(arguments.size() > 1 ? arguments.get(1)
+                    : (index > imageFile.lastIndexOf(File.separatorChar)
+                    ? imageFile.substring(0, index) : imageFile) + "-frames");
+            MaskRenderer maskRenderer = new MaskRenderer(imageFile, directory, script, count,
+                    width, height, threads);
+        } else {
+            System.out.println("usage: java "
+                    + MaskRenderer.class.getCanonicalName()
+                    + " [--frames <count> | --script <file>] [--size <width>x<height>]"
+                    + " [--threads <count>] <filename> [directory]");
+        }
+    }
+}
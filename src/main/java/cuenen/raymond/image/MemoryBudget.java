@@ -0,0 +1,338 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Admission control for scramble and de-scramble jobs, based on the memory
+ * they need. <br>
+ * The memory of a job is estimated up front from the size and pixel format in
+ * the image header, the scramble mode and whether the job permutes the image
+ * in place. A job is admitted when its estimate fits in the remaining budget;
+ * otherwise it waits until earlier jobs are done, or is rejected, depending on
+ * the policy of the budget. Waiting jobs are admitted in order, so a large job
+ * is not starved by smaller ones. A job that needs more than the whole budget
+ * is always rejected.
+ * <p>
+ * The capacity of the {@link #getDefault() default} budget is read from the
+ * {@code cuenen.raymond.image.budget} system property (e.g. {@code 2g}) and
+ * defaults to three quarters of the maximum heap.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class MemoryBudget {
+
+    /**
+     * The name of the system property holding the capacity of the default
+     * budget.
+     */
+    public static final String CAPACITY_PROPERTY = "cuenen.raymond.image.budget";
+
+    /**
+     * The number of bytes in a megabyte, for messages.
+     */
+    private static final double MEGABYTE = 1 << 20;
+
+    /**
+     * The default budget.
+     */
+    private static final MemoryBudget DEFAULT = new MemoryBudget(
+            PixelBufferPool.parseSize(System.getProperty(CAPACITY_PROPERTY),
+                    Runtime.getRuntime().maxMemory() / 4 * 3));
+
+    /**
+     * The number of bytes that may be admitted.
+     */
+    private long capacity;
+
+    /**
+     * The number of bytes admitted.
+     */
+    private long used = 0;
+
+    /**
+     * Flag indicating to wait for room, instead of rejecting a job.
+     */
+    private boolean wait = true;
+
+    /**
+     * The tickets of the waiting jobs, in order of arrival.
+     */
+    private final Deque<Object> waiting = new ArrayDeque<>();
+
+    /**
+     * Returns the default budget, shared by all jobs in the JVM.
+     *
+     * @return The default budget.
+     */
+    public static MemoryBudget getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new {@code MemoryBudget} that waits for room.
+     *
+     * @param capacity The number of bytes that may be admitted.
+     */
+    public MemoryBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the number of bytes that may be admitted.
+     *
+     * @param capacity The capacity, in bytes.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes that may be admitted.
+     *
+     * @return The capacity, in bytes.
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets whether a job that does not fit waits for room or is rejected.
+     *
+     * @param wait {@code true} to wait, {@code false} to reject.
+     */
+    public synchronized void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
+    /**
+     * Returns the number of bytes admitted.
+     *
+     * @return The bytes in use.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the number of jobs waiting for room.
+     *
+     * @return The number of waiting jobs.
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Admit a job. The returned lease must be closed when the job is done.
+     *
+     * @param bytes The estimated memory of the job.
+     * @return The lease of the admitted bytes.
+     * @throws IOException If the job needs more than the capacity, or does not
+     * fit and the budget rejects jobs, or the thread is interrupted while
+     * waiting.
+     */
+    public synchronized Lease admit(long bytes) throws IOException {
+        if (bytes > capacity) {
+            throw new IOException(String.format("Job needs %.1f MB, more than the memory budget of %.1f MB",
+                    bytes / MEGABYTE, capacity / MEGABYTE));
+        }
+        if (waiting.isEmpty() && used + bytes <= capacity) {
+            used += bytes;
+            return new Lease(bytes);
+        }
+        if (!wait) {
+            throw new IOException(String.format("Job needs %.1f MB, only %.1f MB of the memory budget is free",
+                    bytes / MEGABYTE, (capacity - used) / MEGABYTE));
+        }
+        final Object ticket = new Object();
+        waiting.addLast(ticket);
+        try {
+            while (waiting.peekFirst() != ticket || used + bytes > capacity) {
+                if (bytes > capacity) {
+                    throw new IOException("Job no longer fits in the memory budget");
+                }
+                wait();
+            }
+            used += bytes;
+            return new Lease(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        } finally {
+            waiting.remove(ticket);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Estimates the memory a job needs for an image of the given size and
+     * pixel format.
+     * <ul>
+     * <li>The decoded image takes {@code bytesPerPixel} per pixel.</li>
+     * <li>Out of place, the result is a new image of an {@code int} per
+     * pixel, that the pixels are gathered into directly.</li>
+     * <li>The permutation takes an {@code int} per pixel in
+     * {@link ScrambleKey.Mode#SWAP} mode, an {@code int} per block in
+     * {@link ScrambleKey.Mode#BLOCK} mode and nothing in
+     * {@link ScrambleKey.Mode#CIPHER} and {@link ScrambleKey.Mode#SEPARABLE}
+     * mode. In place, only scrambling without tiles does without the table of
+     * the swap mode; de-scrambling builds it to verify the key first.</li>
+     * <li>Following the cycles in place takes a bit per pixel. The separable
+     * mode only follows cycles on interleaved samples, but is estimated the
+     * same.</li>
+     * </ul>
+     *
+     * @param key The key holding the generator and the mode.
+     * @param type The direction of scrambling.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param bytesPerPixel The size of a decoded pixel.
+     * @param inPlace {@code true} if the image is permuted in place.
+     * @return The estimated memory, in bytes.
+     */
+    public static long estimate(ScrambleKey key, SwapDirection type, int width, int height,
+            int bytesPerPixel, boolean inPlace) {
+        final long pixels = (long) width * height;
+        final long blocks = (long) (width / key.getBlockSize()) * (height / key.getBlockSize());
+        final boolean counter = CounterNumberGenerator.ALGORITHM.equals(key.getGenerator());
+        long bytes = pixels * bytesPerPixel;
+        if (inPlace) {
+            switch (key.getMode()) {
+                case SWAP:
+                    if (type == SwapDirection.BACKWARD || key.getTileSize() > 0) {
+                        bytes += 4 * pixels + pixels / 8;
+                    }
+                    break;
+                case BLOCK:
+                    bytes += 4 * blocks + pixels / 8;
+                    break;
+                default:
+                    bytes += pixels / 8;
+            }
+        } else {
+            bytes += 4 * pixels;
+            switch (key.getMode()) {
+                case SWAP:
+                    bytes += (counter ? 8 : 4) * pixels;
+                    break;
+                case BLOCK:
+                    bytes += (counter ? 8 : 4) * blocks;
+                    break;
+                default:
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the memory a job needs for the image of the given reader, from
+     * the image header only. An image that cannot be permuted in place, or
+     * read directly, is first converted to {@code INT_ARGB}.
+     *
+     * @see #estimate(ScrambleKey, SwapDirection, int, int, int, boolean)
+     * @param key The key holding the generator and the mode.
+     * @param type The direction of scrambling.
+     * @param reader The reader, with its input set.
+     * @param inPlace {@code true} if the image is permuted in place.
+     * @return The estimated memory, in bytes.
+     * @throws IOException If the header cannot be read.
+     */
+    public static long estimate(ScrambleKey key, SwapDirection type, ImageReader reader,
+            boolean inPlace) throws IOException {
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        int bytesPerPixel = 4;
+        boolean convert = false;
+        if (types.hasNext()) {
+            final SampleModel model = types.next().getSampleModel(1, 1);
+            bytesPerPixel = Math.max(1, DataBuffer.getDataTypeSize(model.getDataType()) / 8
+                    * model.getNumDataElements());
+            convert = !RasterCreator.supportsInPlace(Raster.createWritableRaster(model, null));
+        }
+        final long bytes = estimate(key, type, width, height, convert ? 4 : bytesPerPixel, inPlace);
+        return convert ? bytes + (long) width * height * bytesPerPixel : bytes;
+    }
+
+    /**
+     * Estimates the memory an out of place job needs for the given image, from
+     * the image header only. This also covers a job that encodes the result
+     * while it is gathered, which holds no result image at all.
+     *
+     * @see #estimate(ScrambleKey, SwapDirection, int, int, int, boolean)
+     * @param key The key holding the generator and the mode.
+     * @param type The direction of scrambling.
+     * @param image The URL indicating the image.
+     * @return The estimated memory, in bytes.
+     * @throws IOException If the header cannot be read.
+     */
+    public static long estimate(ScrambleKey key, SwapDirection type, URL image) throws IOException {
+        try (ImageInputStream stream = new MemoryCacheImageInputStream(image.openStream())) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return estimate(key, type, reader, false);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The memory admitted to a job, returned to the budget when closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        /**
+         * The number of bytes admitted, zero once closed.
+         */
+        private long bytes;
+
+        private Lease(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the number of bytes admitted to the job.
+         *
+         * @return The bytes, or zero if the lease is closed.
+         */
+        public long getBytes() {
+            synchronized (MemoryBudget.this) {
+                return bytes;
+            }
+        }
+
+        /**
+         * Return the admitted bytes to the budget.
+         */
+        @Override
+        public void close() {
+            synchronized (MemoryBudget.this) {
+                used -= bytes;
+                bytes = 0;
+                MemoryBudget.this.notifyAll();
+            }
+        }
+    }
+}
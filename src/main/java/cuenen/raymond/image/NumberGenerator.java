@@ -0,0 +1,98 @@
+package cuenen.raymond.image;
+
+import java.util.ServiceLoader;
+
+/**
+ * A pseudorandom number generator used by the {@code RasterCreator} to choose
+ * the swap indices of the shuffle-algorithm. <br>
+ * Generators are identified by their algorithm name, which is stored with a
+ * scrambled image so that it is de-scrambled with the same generator. The
+ * built-in algorithms are {@value RandomNumberGenerator#ALGORITHM} (the default)
+ * and {@value CounterNumberGenerator#ALGORITHM}; other algorithms can be added
+ * by registering a {@link Provider} through the {@link ServiceLoader}
+ * mechanism.
+ *
+ * @see RandomNumberGenerator
+ * @see CounterNumberGenerator
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public interface NumberGenerator {
+
+    /**
+     * Generate the next random number between x and y.
+     *
+     * @param x The lower bound.
+     * @param y The upper bound.
+     * @return The generated pseudorandom number.
+     */
+    double random(double x, double y);
+
+    /**
+     * Generate the next random number between 0 and 1.
+     *
+     * @return The generated pseudorandom number.
+     */
+    default double random() {
+        return random(0, 1);
+    }
+
+    /**
+     * Returns the current seed of this generator.
+     *
+     * @return The current seed.
+     */
+    long seed();
+
+    /**
+     * Returns the name of the algorithm of this generator.
+     *
+     * @return The algorithm name.
+     */
+    String getAlgorithm();
+
+    /**
+     * Creates a new generator for the given algorithm.
+     *
+     * @param algorithm The name of the algorithm.
+     * @param seed The initial seed value.
+     * @return The new generator.
+     * @throws IllegalArgumentException If the algorithm is unknown.
+     */
+    static NumberGenerator getInstance(String algorithm, long seed) {
+        if (RandomNumberGenerator.ALGORITHM.equals(algorithm)) {
+            return new RandomNumberGenerator(seed);
+        }
+        if (CounterNumberGenerator.ALGORITHM.equals(algorithm)) {
+            return new CounterNumberGenerator(seed);
+        }
+        for (Provider provider : ServiceLoader.load(Provider.class)) {
+            if (provider.getAlgorithm().equals(algorithm)) {
+                return provider.newGenerator(seed);
+            }
+        }
+        throw new IllegalArgumentException("Unknown generator: " + algorithm);
+    }
+
+    /**
+     * Service provider interface for adding generator algorithms.
+     */
+    interface Provider {
+
+        /**
+         * Returns the name of the algorithm of the provided generators.
+         *
+         * @return The algorithm name.
+         */
+        String getAlgorithm();
+
+        /**
+         * Creates a new generator.
+         *
+         * @param seed The initial seed value.
+         * @return The new generator.
+         */
+        NumberGenerator newGenerator(long seed);
+    }
+}
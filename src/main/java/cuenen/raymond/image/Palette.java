@@ -0,0 +1,148 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+/**
+ * Utility class for storing scrambled images with few colors as palette
+ * indices. <br>
+ * A permutation of the pixels does not change the colors of an image, so a
+ * source with at most {@value #MAX_COLORS} colors, such as a diagram, a
+ * screenshot or scanned text, is scrambled as an image of one byte indices into
+ * a palette that is built once. This moves a quarter of the bytes while
+ * scrambling and writes an indexed PNG. Since scrambled images are always
+ * fully opaque, the palette only holds opaque colors.
+ *
+ * @see RasterCreator#applyInPlace(RasterCreator.SwapDirection, ScrambleKey,
+ * BufferedImage)
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class Palette {
+
+    /**
+     * The maximum number of colors of a palette.
+     */
+    public static final int MAX_COLORS = 256;
+
+    /**
+     * The number of slots of the color hash table, a power of two well above
+     * the maximum number of colors.
+     */
+    private static final int SLOTS = 4 * MAX_COLORS;
+
+    /**
+     * Private constructor so it is not instantiated.
+     */
+    private Palette() {
+    }
+
+    /**
+     * Returns the image as palette indices, if it has few enough colors. The
+     * alpha component is ignored.
+     *
+     * @param image The source image.
+     * @return The image of one byte indices into an opaque palette, or
+     * {@code null} if the image has more than {@value #MAX_COLORS} colors.
+     */
+    public static BufferedImage toIndexed(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        /* Open addressing table from color to palette index */
+        final int[] keys = new int[SLOTS];
+        final int[] values = new int[SLOTS];
+        Arrays.fill(values, -1);
+        final int[] colors = new int[MAX_COLORS];
+        int count = 0;
+        final int[] row = new int[width];
+        /* Count the colors first, so a photo bails out without the indices */
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                final int color = row[x] & 0xFFFFFF;
+                final int slot = slot(keys, values, color);
+                if (values[slot] == -1) {
+                    if (count == MAX_COLORS) {
+                        return null;
+                    }
+                    keys[slot] = color;
+                    values[slot] = count;
+                    colors[count++] = color;
+                }
+            }
+        }
+        final byte[] indices = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                indices[y * width + x] = (byte) values[slot(keys, values, row[x] & 0xFFFFFF)];
+            }
+        }
+        final IndexColorModel model = new IndexColorModel(8, Math.max(1, count),
+                colors, 0, false, -1, DataBuffer.TYPE_BYTE);
+        final BufferedImage indexed = new BufferedImage(width, height,
+                BufferedImage.TYPE_BYTE_INDEXED, model);
+        indexed.getRaster().setDataElements(0, 0, width, height, indices);
+        return indexed;
+    }
+
+    /**
+     * Returns the slot of a color in the color hash table: the slot holding
+     * the color, or the free slot to add it to.
+     *
+     * @param keys The colors of the slots.
+     * @param values The palette indices of the slots, {@code -1} if free.
+     * @param color The color, without alpha.
+     * @return The slot of the color.
+     */
+    private static int slot(int[] keys, int[] values, int color) {
+        int slot = (color * 0x9E3779B1 >>> 22) & (SLOTS - 1);
+        while (values[slot] != -1 && keys[slot] != color) {
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns whether the image holds one byte palette indices per pixel, which
+     * can be permuted in place.
+     *
+     * @param image The image to check.
+     * @return {@code true} if the image is indexed.
+     */
+    public static boolean isIndexed(BufferedImage image) {
+        return image.getColorModel() instanceof IndexColorModel
+                && image.getRaster().getNumBands() == 1
+                && RasterCreator.hasContiguousLayout(image.getRaster());
+    }
+
+    /**
+     * Expands palette indices to {@code ARGB} pixels.
+     *
+     * @param indexed The indexed image.
+     * @return The image with the colors of the palette.
+     * @throws IllegalArgumentException If the image is not
+     * {@link #isIndexed indexed}.
+     */
+    public static BufferedImage expand(BufferedImage indexed) {
+        if (!isIndexed(indexed)) {
+            throw new IllegalArgumentException("Image is not indexed");
+        }
+        /* Indices beyond the palette are black */
+        final int[] colors = new int[MAX_COLORS];
+        ((IndexColorModel) indexed.getColorModel()).getRGBs(colors);
+        final byte[] indices = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+        final BufferedImage expanded = new BufferedImage(indexed.getWidth(), indexed.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) expanded.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = colors[indices[i] & 0xFF];
+        }
+        return expanded;
+    }
+}
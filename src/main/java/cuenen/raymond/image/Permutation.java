@@ -0,0 +1,39 @@
+package cuenen.raymond.image;
+
+/**
+ * A permutation of the pixel indices of an image, as applied by the
+ * {@code RasterCreator}. <br>
+ * The scrambled pixel at index {@code i} is the source pixel at index
+ * {@link #get get(i)}; the source pixel at index {@code j} ends up at index
+ * {@link #inverse inverse(j)} of the scrambled image.
+ *
+ * @see RasterCreator#permutation(ScrambleKey, int, int)
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public interface Permutation {
+
+    /**
+     * Returns the number of indices that are permuted.
+     *
+     * @return The size of the permutation.
+     */
+    int size();
+
+    /**
+     * Returns the source index of a scrambled index.
+     *
+     * @param index The index in the scrambled image.
+     * @return The index in the source image.
+     */
+    int get(int index);
+
+    /**
+     * Returns the scrambled index of a source index.
+     *
+     * @param index The index in the source image.
+     * @return The index in the scrambled image.
+     */
+    int inverse(int index);
+}
@@ -0,0 +1,411 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pixel buffers that are reused across scramble and de-scramble
+ * operations, instead of allocating new image sized arrays for every
+ * operation. <br>
+ * Buffers are kept in size classes of a quarter octave, so an acquired buffer
+ * may be up to 19% longer than requested. A buffer that is acquired must be
+ * released exactly once, after which it must no longer be used; buffers that
+ * are not released are simply garbage collected. Released buffers are only
+ * kept as long as the total size of the idle buffers stays within the capacity
+ * of the pool.
+ * <p>
+ * The capacity of the {@link #getDefault() default} pool is read from the
+ * {@code cuenen.raymond.image.pool} system property (e.g. {@code 512m}) and
+ * defaults to a quarter of the maximum heap.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class PixelBufferPool {
+
+    /**
+     * The name of the system property holding the capacity of the default
+     * pool.
+     */
+    public static final String CAPACITY_PROPERTY = "cuenen.raymond.image.pool";
+
+    /**
+     * The smallest buffer length that is pooled. Smaller buffers are cheap to
+     * allocate and are not kept.
+     */
+    private static final int MIN_LENGTH = 4096;
+
+    /**
+     * The default pool.
+     */
+    private static final PixelBufferPool DEFAULT = new PixelBufferPool(
+            parseSize(System.getProperty(CAPACITY_PROPERTY),
+                    Runtime.getRuntime().maxMemory() / 4));
+
+    /**
+     * The color model of the pooled images, equal to that of
+     * {@code BufferedImage.TYPE_INT_ARGB}.
+     */
+    private static final DirectColorModel ARGB = (DirectColorModel) ColorModel.getRGBdefault();
+
+    /**
+     * The maximum number of bytes kept in idle buffers.
+     */
+    private long capacity;
+
+    /**
+     * The idle {@code int} buffers per size class.
+     */
+    private final Map<Integer, Deque<int[]>> intBuffers = new HashMap<>();
+
+    /**
+     * The idle {@code byte} buffers per size class.
+     */
+    private final Map<Integer, Deque<byte[]>> byteBuffers = new HashMap<>();
+
+    /**
+     * All idle buffers, used to detect buffers that are released twice.
+     */
+    private final Set<Object> idle = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * The number of bytes kept in idle buffers.
+     */
+    private long retained;
+
+    /**
+     * The statistics of this pool.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * Returns the pool shared by the scramble and de-scramble operations.
+     *
+     * @return The default pool.
+     */
+    public static PixelBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new {@code PixelBufferPool}.
+     *
+     * @param capacity The maximum number of bytes kept in idle buffers.
+     */
+    public PixelBufferPool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the maximum number of bytes kept in idle buffers.
+     *
+     * @return The capacity, in bytes.
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in idle buffers. If the pool
+     * retains more, all idle buffers are dropped.
+     *
+     * @param capacity The capacity, in bytes; zero to keep no buffers.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        if (retained > capacity) {
+            intBuffers.clear();
+            byteBuffers.clear();
+            discards.addAndGet(idle.size());
+            idle.clear();
+            retained = 0;
+        }
+    }
+
+    /**
+     * Acquire an {@code int} buffer of at least the given length. The content
+     * of the buffer is undefined.
+     *
+     * @param length The minimum length of the buffer.
+     * @return The buffer.
+     */
+    public int[] acquireInts(int length) {
+        if (length < MIN_LENGTH) {
+            return new int[length];
+        }
+        final int sizeClass = sizeClass(length);
+        synchronized (this) {
+            final Deque<int[]> buffers = intBuffers.get(sizeClass);
+            if (buffers != null && !buffers.isEmpty()) {
+                final int[] buffer = buffers.pop();
+                idle.remove(buffer);
+                retained -= 4L * buffer.length;
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return new int[classLength(sizeClass)];
+    }
+
+    /**
+     * Acquire a {@code byte} buffer of at least the given length. The content
+     * of the buffer is undefined.
+     *
+     * @param length The minimum length of the buffer.
+     * @return The buffer.
+     */
+    public byte[] acquireBytes(int length) {
+        if (length < MIN_LENGTH) {
+            return new byte[length];
+        }
+        final int sizeClass = sizeClass(length);
+        synchronized (this) {
+            final Deque<byte[]> buffers = byteBuffers.get(sizeClass);
+            if (buffers != null && !buffers.isEmpty()) {
+                final byte[] buffer = buffers.pop();
+                idle.remove(buffer);
+                retained -= buffer.length;
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return new byte[classLength(sizeClass)];
+    }
+
+    /**
+     * Acquire a raster of packed {@code INT_ARGB} pixels, backed by a pooled
+     * buffer. The content of the raster is undefined.
+     *
+     * @param width The width of the raster.
+     * @param height The height of the raster.
+     * @return The raster.
+     */
+    public WritableRaster acquireRaster(int width, int height) {
+        final DataBuffer buffer = new DataBufferInt(acquireInts(width * height), width * height);
+        return Raster.createPackedRaster(buffer, width, height, width,
+                ARGB.getMasks(), null);
+    }
+
+    /**
+     * Acquire an image equivalent to a {@code BufferedImage.TYPE_INT_ARGB}
+     * image, backed by a pooled buffer. The content of the image is undefined.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The image.
+     */
+    public BufferedImage acquireImage(int width, int height) {
+        return new BufferedImage(ARGB, acquireRaster(width, height), false, null);
+    }
+
+    /**
+     * Release an {@code int} buffer to the pool.
+     *
+     * @param buffer The buffer, may be {@code null}.
+     * @throws IllegalStateException If the buffer was already released.
+     */
+    public void release(int[] buffer) {
+        if (buffer == null || buffer.length < MIN_LENGTH) {
+            return;
+        }
+        final int sizeClass = sizeClass(buffer.length);
+        if (classLength(sizeClass) != buffer.length) {
+            /* Not one of ours */
+            return;
+        }
+        synchronized (this) {
+            if (!idle.add(buffer)) {
+                throw new IllegalStateException("Buffer is released twice");
+            }
+            if (retained + 4L * buffer.length > capacity) {
+                idle.remove(buffer);
+                discards.incrementAndGet();
+                return;
+            }
+            retained += 4L * buffer.length;
+            intBuffers.computeIfAbsent(sizeClass, (c) -> new ArrayDeque<>()).push(buffer);
+        }
+    }
+
+    /**
+     * Release a {@code byte} buffer to the pool.
+     *
+     * @param buffer The buffer, may be {@code null}.
+     * @throws IllegalStateException If the buffer was already released.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_LENGTH) {
+            return;
+        }
+        final int sizeClass = sizeClass(buffer.length);
+        if (classLength(sizeClass) != buffer.length) {
+            /* Not one of ours */
+            return;
+        }
+        synchronized (this) {
+            if (!idle.add(buffer)) {
+                throw new IllegalStateException("Buffer is released twice");
+            }
+            if (retained + buffer.length > capacity) {
+                idle.remove(buffer);
+                discards.incrementAndGet();
+                return;
+            }
+            retained += buffer.length;
+            byteBuffers.computeIfAbsent(sizeClass, (c) -> new ArrayDeque<>()).push(buffer);
+        }
+    }
+
+    /**
+     * Release the buffer of a raster to the pool. Rasters that are not backed
+     * by a single {@code int} buffer are ignored.
+     *
+     * @param raster The raster, may be {@code null}.
+     */
+    public void release(WritableRaster raster) {
+        if (raster != null && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1) {
+            release(((DataBufferInt) raster.getDataBuffer()).getData());
+        }
+    }
+
+    /**
+     * Release the buffer of an image to the pool.
+     *
+     * @see #release(WritableRaster)
+     * @param image The image, may be {@code null}.
+     */
+    public void release(BufferedImage image) {
+        if (image != null) {
+            release(image.getRaster());
+        }
+    }
+
+    /**
+     * Returns the number of acquired buffers that were taken from the pool.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of acquired buffers that had to be allocated.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of acquired buffers that were taken from the pool.
+     *
+     * @return The hit rate, between 0 and 1.
+     */
+    public double getHitRate() {
+        final long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    /**
+     * Returns the number of bytes kept in idle buffers.
+     *
+     * @return The retained number of bytes.
+     */
+    public synchronized long getRetained() {
+        return retained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("PixelBufferPool[hits=%d, misses=%d, hit rate=%.1f%%, "
+                + "discarded=%d, retained=%d/%d bytes]", hits.get(), misses.get(),
+                100 * getHitRate(), discards.get(), getRetained(), getCapacity());
+    }
+
+    /**
+     * Returns the size class for a buffer length. Size classes are a quarter
+     * octave apart.
+     *
+     * @param length The buffer length.
+     * @return The size class.
+     */
+    private static int sizeClass(int length) {
+        int sizeClass = 4 * (31 - Integer.numberOfLeadingZeros(length - 1));
+        while (classLength(sizeClass) < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Returns the buffer length of a size class.
+     *
+     * @param sizeClass The size class.
+     * @return The buffer length, {@code 2^(sizeClass / 4)} rounded up.
+     */
+    private static int classLength(int sizeClass) {
+        return (int) Math.min(Integer.MAX_VALUE - 8,
+                (long) Math.ceil(Math.pow(2.0, sizeClass / 4.0)));
+    }
+
+    /**
+     * Parse a size in bytes, with an optional {@code k}, {@code m} or
+     * {@code g} suffix.
+     *
+     * @param value The size to parse, may be {@code null}.
+     * @param defaultValue The size to use when the value is missing or
+     * invalid.
+     * @return The size in bytes.
+     */
+    public static long parseSize(String value, long defaultValue) {
+        String number = value == null ? "" : value.trim().toLowerCase();
+        if (number.isEmpty()) {
+            return defaultValue;
+        }
+        long multiplier;
+        switch (number.charAt(number.length() - 1)) {
+            case 'g':
+                multiplier = 1L << 30;
+                break;
+            case 'm':
+                multiplier = 1L << 20;
+                break;
+            case 'k':
+                multiplier = 1L << 10;
+                break;
+            default:
+                multiplier = 1;
+        }
+        if (multiplier > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return Long.parseLong(number) * multiplier;
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package cuenen.raymond.image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Utility class that encodes an opaque image as 8 bit {@code RGB} PNG from
+ * rows that are generated on demand. <br>
+ * Only the current and the previous row are held, so an image can be written
+ * without materializing it; the {@code ImageCreator} gathers the scrambled
+ * rows from the source image while they are encoded. Every row is filtered
+ * with the filter type that gives the smallest sum of absolute differences,
+ * as the PNG specification recommends, and deflated into {@code IDAT} chunks
+ * of at most {@value #CHUNK_SIZE} bytes. The metadata is written as
+ * {@code tEXt} chunks, which the {@code ImageConstructor} reads like the text
+ * entries of the image writer.
+ *
+ * @see ImageCreator
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+final class PngEncoder {
+
+    /**
+     * Generator of the rows of an image.
+     */
+    @FunctionalInterface
+    interface RowSource {
+
+        /**
+         * Fills a row of the image.
+         *
+         * @param y The index of the row.
+         * @param pixels The array to store the {@code RGB} pixels of the row
+         * in; the alpha component is ignored.
+         */
+        void row(int y, int[] pixels);
+    }
+
+    /**
+     * The PNG file signature.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * The maximum size of an {@code IDAT} chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The number of bytes of a pixel: red, green and blue.
+     */
+    private static final int BYTES_PER_PIXEL = 3;
+
+    /**
+     * Private constructor so it is not instantiated.
+     */
+    private PngEncoder() {
+    }
+
+    /**
+     * Write an image to the given stream. The stream is flushed, not closed.
+     *
+     * @param out The stream to write to.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param metadata The keyword and value pairs to store with the image, as
+     * Latin-1 text.
+     * @param rows The generator of the rows.
+     * @param level The compression level, from 0 to 9, or
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     * @throws IOException If the image cannot be written.
+     */
+    static void write(OutputStream out, int width, int height, Map<String, String> metadata,
+            RowSource rows, int level) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        final DataOutputStream fields = new DataOutputStream(header);
+        fields.writeInt(width);
+        fields.writeInt(height);
+        fields.writeByte(8);    // bit depth
+        fields.writeByte(2);    // color type: RGB
+        fields.writeByte(0);    // compression method: deflate
+        fields.writeByte(0);    // filter method: adaptive
+        fields.writeByte(0);    // interlace method: none
+        writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            final byte[] keyword = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] value = entry.getValue().getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] text = new byte[keyword.length + 1 + value.length];
+            System.arraycopy(keyword, 0, text, 0, keyword.length);
+            System.arraycopy(value, 0, text, keyword.length + 1, value.length);
+            writeChunk(data, "tEXt", text, text.length);
+        }
+
+        final Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream deflated = new DeflaterOutputStream(new IdatStream(data),
+                deflater, ImageCreator.STREAM_BUFFER_SIZE)) {
+            final int stride = width * BYTES_PER_PIXEL;
+            final int[] pixels = new int[width];
+            byte[] previous = new byte[stride];
+            byte[] current = new byte[stride];
+            final byte[][] filtered = new byte[5][stride + 1];
+            for (int y = 0; y < height; y++) {
+                rows.row(y, pixels);
+                for (int x = 0, i = 0; x < width; x++, i += BYTES_PER_PIXEL) {
+                    current[i] = (byte) (pixels[x] >> 16);
+                    current[i + 1] = (byte) (pixels[x] >> 8);
+                    current[i + 2] = (byte) pixels[x];
+                }
+                deflated.write(filter(current, previous, filtered));
+                final byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            deflater.end();
+        }
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    /**
+     * Filter a row with every filter type and return the one with the
+     * smallest sum of absolute differences.
+     *
+     * @param row The bytes of the row.
+     * @param previous The bytes of the previous row, all zero for the first.
+     * @param filtered The arrays to filter into, one per filter type.
+     * @return The filter type byte followed by the filtered row.
+     */
+    private static byte[] filter(byte[] row, byte[] previous, byte[][] filtered) {
+        final int bpp = BYTES_PER_PIXEL;
+        final long[] sums = new long[filtered.length];
+        for (int type = 0; type < filtered.length; type++) {
+            filtered[type][0] = (byte) type;
+        }
+        for (int i = 0; i < row.length; i++) {
+            final int x = row[i] & 0xFF;
+            final int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            final int b = previous[i] & 0xFF;
+            final int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+            final int p = a + b - c;
+            final int pa = Math.abs(p - a);
+            final int pb = Math.abs(p - b);
+            final int pc = Math.abs(p - c);
+            final int paeth = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+            filtered[0][i + 1] = (byte) x;
+            filtered[1][i + 1] = (byte) (x - a);
+            filtered[2][i + 1] = (byte) (x - b);
+            filtered[3][i + 1] = (byte) (x - (a + b) / 2);
+            filtered[4][i + 1] = (byte) (x - paeth);
+            for (int type = 0; type < filtered.length; type++) {
+                /* The sum of the bytes as signed values */
+                sums[type] += Math.abs(filtered[type][i + 1]);
+            }
+        }
+        int best = 0;
+        for (int type = 1; type < sums.length; type++) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        return filtered[best];
+    }
+
+    /**
+     * Write a chunk with its length and checksum.
+     *
+     * @param out The stream to write to.
+     * @param type The chunk type.
+     * @param data The chunk data.
+     * @param length The number of bytes of the data.
+     * @throws IOException If the chunk cannot be written.
+     */
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length)
+            throws IOException {
+        final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Stream that writes the deflated image data as {@code IDAT} chunks.
+     */
+    private static final class IdatStream extends OutputStream {
+
+        /**
+         * The stream to write the chunks to.
+         */
+        private final DataOutputStream out;
+
+        /**
+         * The data of the current chunk.
+         */
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * The number of bytes in the current chunk.
+         */
+        private int length = 0;
+
+        /**
+         * Creates a new {@code IdatStream}.
+         *
+         * @param out The stream to write the chunks to.
+         */
+        IdatStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(len, CHUNK_SIZE - length);
+                System.arraycopy(b, off, chunk, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == CHUNK_SIZE) {
+                    flushChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        /**
+         * Write the current chunk, if it holds any data.
+         *
+         * @throws IOException If the chunk cannot be written.
+         */
+        private void flushChunk() throws IOException {
+            if (length > 0) {
+                writeChunk(out, "IDAT", chunk, length);
+                length = 0;
+            }
+        }
+    }
+}
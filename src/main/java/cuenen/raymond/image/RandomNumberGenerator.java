@@ -10,7 +10,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * @version 1.00 Jan 21 2015
  * @author Raymond Cuenen
  */
-public class RandomNumberGenerator {
+public class RandomNumberGenerator implements NumberGenerator {
+
+    /**
+     * The name of the algorithm.
+     */
+    public static final String ALGORITHM = "MINSTD";
 
     /**
      * The Euclidean algorithm to determine the greatest common divisor (GCD)
@@ -80,6 +85,7 @@ public class RandomNumberGenerator {
      * @param y The upper bound.
      * @return The generated pseudorandom number.
      */
+    @Override
     public double random(double x, double y) {
         final long l = seed.get() / QL;
         final long s = seed.updateAndGet((c) -> {
@@ -94,6 +100,7 @@ public class RandomNumberGenerator {
      *
      * @return The generated pseudorandom number.
      */
+    @Override
     public double random() {
         return random(0, 1);
     }
@@ -103,7 +110,16 @@ public class RandomNumberGenerator {
      *
      * @return The current seed.
      */
+    @Override
     public long seed() {
         return seed.get();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAlgorithm() {
+        return ALGORITHM;
+    }
 }
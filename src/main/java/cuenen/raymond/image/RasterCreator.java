@@ -1,9 +1,16 @@
 package cuenen.raymond.image;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.BitSet;
+import java.util.stream.IntStream;
 
 /**
  * Utility class for scrambling and de-scrambling images. <br>
@@ -12,7 +19,8 @@ import java.util.List;
  * <li>An enumeration indicating the swap direction;
  * {@link SwapDirection#FORWARD} for scrambling an image and
  * {@linkplain SwapDirection#BACKWARD} for de-scrambling.</li>
- * <li>An integer representing the seed for the random generator.</li>
+ * <li>An integer representing the seed for the random generator, or a
+ * {@link ScrambleKey} for using another random generator.</li>
  * <li>The source {@link Raster} representing the image.</li>
  * <li>The destination {@link WritableRaster} to write the result into.</li>
  * </ul>
@@ -38,6 +46,23 @@ public class RasterCreator {
         BACKWARD;
     }
 
+    /**
+     * Reads the {@code RGB} value of a pixel directly from the data buffer of
+     * a raster.
+     */
+    @FunctionalInterface
+    interface PixelReader {
+
+        /**
+         * Returns the pixel at the given index.
+         *
+         * @param index The index of the pixel, {@code y * width + x}.
+         * @return The pixel as packed {@code int}; the alpha component is
+         * undefined.
+         */
+        int get(int index);
+    }
+
     /**
      * Private constructor so it is not instantiated.
      */
@@ -68,6 +93,30 @@ public class RasterCreator {
         create(SwapDirection.BACKWARD, seed, src, dstOut);
     }
 
+    /**
+     * Convenience method to scramble an image.
+     *
+     * @see #create
+     * @param key The key holding the seed and the random generator.
+     * @param src The source raster.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void scramble(ScrambleKey key, Raster src, WritableRaster dstOut) {
+        create(SwapDirection.FORWARD, key, src, dstOut);
+    }
+
+    /**
+     * Convenience method to de-scramble an image.
+     *
+     * @see #create
+     * @param key The key holding the seed and the random generator.
+     * @param src The source raster.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void descramble(ScrambleKey key, Raster src, WritableRaster dstOut) {
+        create(SwapDirection.BACKWARD, key, src, dstOut);
+    }
+
     /**
      * Creates a scrambled raster from the given source, using the given seed
      * for the random generator and the given direction. The scrambled raster is
@@ -81,89 +130,743 @@ public class RasterCreator {
      * @param dstOut The destination raster to write to.
      */
     public static void create(SwapDirection type, long seed, Raster src, WritableRaster dstOut) {
-        final List<RasterElement> imageList = new ArrayList<>();
+        create(type, new ScrambleKey(seed), src, dstOut);
+    }
+
+    /**
+     * Creates a scrambled raster from the given source, using the random
+     * generator of the given key and the given direction. The scrambled raster
+     * is written to the given destination.
+     *
+     * @param type The direction of scrambling, one of
+     * {@link SwapDirection#FORWARD} (scrambling) or
+     * {@link SwapDirection#BACKWARD} (de-scrambling).
+     * @param key The key holding the seed and the random generator.
+     * @param src The source raster.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void create(SwapDirection type, ScrambleKey key, Raster src, WritableRaster dstOut) {
+        apply(type, permutation(key, src.getWidth(), src.getHeight()), src, dstOut);
+    }
+
+    /**
+     * Returns the permutation the mode of the given key produces for an image
+     * of the given size. A key with a tile size permutes every tile on its
+     * own.
+     *
+     * @param key The key holding the seed, the random generator and the mode.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The permutation of the pixel indices.
+     */
+    public static Permutation permutation(ScrambleKey key, int width, int height) {
+        if (key.getTileSize() > 0) {
+            return new TiledPermutation(key, width, height);
+        }
+        switch (key.getMode()) {
+            case CIPHER:
+                return new IndexCipher(key.getSeed(), width * height);
+            case BLOCK:
+                return new BlockPermutation(key, width, height);
+            case SEPARABLE:
+                return new SeparablePermutation(key, width, height);
+            case SWAP:
+            default:
+                return new ArrayPermutation(permutation(key, width * height));
+        }
+    }
+
+    /**
+     * Computes the permutation the shuffle-algorithm produces for an image of
+     * {@code size} pixels. The permutation is returned as a flat gather index:
+     * the scrambled pixel at index {@code i} is the source pixel at index
+     * {@code permutation[i]}. <br>
+     * The permutation only depends on the seed and the number of pixels, so it
+     * can be computed once and applied to any number of equally sized images.
+     *
+     * @param seed The start seed for the random generator.
+     * @param size The number of pixels in the image.
+     * @return The gather index of the permutation.
+     */
+    public static int[] permutation(long seed, int size) {
+        return permutation(new ScrambleKey(seed), size);
+    }
+
+    /**
+     * Computes the permutation the shuffle-algorithm produces for an image of
+     * {@code size} pixels, using the random generator of the given key. <br>
+     * With a {@link CounterNumberGenerator} the swap indices are generated in
+     * parallel, only the swaps themselves are performed in order.
+     *
+     * @see #permutation(long, int)
+     * @param key The key holding the seed and the random generator.
+     * @param size The number of pixels in the image.
+     * @return The gather index of the permutation.
+     */
+    public static int[] permutation(ScrambleKey key, int size) {
+        final int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        final NumberGenerator rand = key.newGenerator();
+        if (rand instanceof CounterNumberGenerator) {
+            final CounterNumberGenerator counter = (CounterNumberGenerator) rand;
+            final PixelBufferPool pool = PixelBufferPool.getDefault();
+            final int[] rightIndices = pool.acquireInts(size);
+            IntStream.range(0, size).parallel().forEach((leftIndex) -> {
+                rightIndices[leftIndex] = leftIndex
+                        + (int) counter.random(leftIndex, 0, size - leftIndex);
+            });
+            for (int leftIndex = 0; leftIndex < size; leftIndex++) {
+                swap(leftIndex, rightIndices[leftIndex], permutation);
+            }
+            pool.release(rightIndices);
+        } else {
+            for (int leftIndex = 0; leftIndex < size; leftIndex++) {
+                /* Choose a random index, where leftIndex < rightIndex < N */
+                final int rightIndex = leftIndex + (int) rand.random(0, size - leftIndex);
+                swap(leftIndex, rightIndex, permutation);
+            }
+        }
+        return permutation;
+    }
+
+    /**
+     * Applies a permutation, as computed by {@link #permutation}, to the given
+     * source and writes the result to the given destination. Scrambling gathers
+     * the destination pixels from the source, de-scrambling scatters the source
+     * pixels back to their original position.
+     *
+     * @param type The direction of scrambling, one of
+     * {@link SwapDirection#FORWARD} (scrambling) or
+     * {@link SwapDirection#BACKWARD} (de-scrambling).
+     * @param permutation The gather index of the permutation.
+     * @param src The source raster.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void apply(SwapDirection type, int[] permutation, Raster src, WritableRaster dstOut) {
         final int width = src.getWidth();
         final int height = src.getHeight();
-        final int[] srcPixels = new int[width];
+        if (permutation.length != width * height) {
+            throw new IllegalArgumentException("Permutation does not match the raster size");
+        }
+        final PixelReader pixels = pixelReader(src);
+        if (pixels != null && isDirect(dstOut, width, height)) {
+            /* Move the pixels between the data buffers, without copies */
+            final int[] dst = ((DataBufferInt) dstOut.getDataBuffer()).getData();
+            if (type == SwapDirection.FORWARD) {
+                IntStream.range(0, height).parallel().forEach((y) -> {
+                    for (int i = y * width, end = i + width; i < end; i++) {
+                        dst[i] = 0xFF000000 | pixels.get(permutation[i]);
+                    }
+                });
+            } else {
+                for (int i = 0; i < permutation.length; i++) {
+                    dst[permutation[i]] = 0xFF000000 | pixels.get(i);
+                }
+            }
+            return;
+        }
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        final int[] srcPixels = pool.acquireInts(width * height);
+        final int[] dstPixels = pool.acquireInts(width * height);
 
         /* Read the image */
-        for (int y = 0; y < height; y++) {
-            src.getDataElements(0, y, width, 1, srcPixels);
-            for (int x = 0; x < width; x++) {
-                /* pixels are stored as INT_ARGB our arrays are [R, G, B, A] */
-                final int pixel = srcPixels[x];
-                final RasterElement elem = new RasterElement();
-                elem.pixel[0] = (pixel >> 16) & 0xFF;
-                elem.pixel[1] = (pixel >> 8) & 0xFF;
-                elem.pixel[2] = (pixel) & 0xFF;
-                elem.pixel[3] = (pixel >> 24) & 0xFF;
-                imageList.add(elem);
+        src.getDataElements(0, 0, width, height, srcPixels);
+
+        /* Move the pixels, the result is always fully opaque */
+        if (type == SwapDirection.FORWARD) {
+            for (int i = 0; i < permutation.length; i++) {
+                dstPixels[i] = 0xFF000000 | srcPixels[permutation[i]];
+            }
+        } else {
+            for (int i = 0; i < permutation.length; i++) {
+                dstPixels[permutation[i]] = 0xFF000000 | srcPixels[i];
             }
         }
 
-        final List<SwapElement> swapList = new ArrayList<>();
-        final RandomNumberGenerator rand = new RandomNumberGenerator(seed);
-        int N = imageList.size();
-        for (int leftIndex = 0; leftIndex < N; leftIndex++) {
-            /* Choose a random index, where leftIndex < rightIndex < N */
-            final int rightIndex = leftIndex + (int) rand.random(0, N - leftIndex);
-            final SwapElement elem = new SwapElement();
-            elem.leftIndex = leftIndex;
-            elem.rightIndex = rightIndex;
-            swapList.add(elem);
+        /* Create the image */
+        dstOut.setDataElements(0, 0, width, height, dstPixels);
+        pool.release(srcPixels);
+        pool.release(dstPixels);
+    }
+
+    /**
+     * Applies a permutation to the given source and writes the result to the
+     * given destination. Both directions gather the destination pixels from the
+     * source, so rows are processed in parallel. The permutations of the
+     * {@link ScrambleKey.Mode#BLOCK} and {@link ScrambleKey.Mode#SEPARABLE}
+     * modes move whole runs of pixels at once, on packed {@code int} pixels.
+     *
+     * @param type The direction of scrambling, one of
+     * {@link SwapDirection#FORWARD} (scrambling) or
+     * {@link SwapDirection#BACKWARD} (de-scrambling).
+     * @param permutation The permutation of the pixel indices.
+     * @param src The source raster.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void apply(SwapDirection type, Permutation permutation, Raster src, WritableRaster dstOut) {
+        if (permutation instanceof ArrayPermutation) {
+            apply(type, ((ArrayPermutation) permutation).toArray(), src, dstOut);
+            return;
+        }
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        if (permutation.size() != width * height) {
+            throw new IllegalArgumentException("Permutation does not match the raster size");
+        }
+        final boolean forward = type == SwapDirection.FORWARD;
+        final PixelReader pixels = pixelReader(src);
+        final boolean bulk = permutation instanceof BlockPermutation
+                || permutation instanceof SeparablePermutation;
+        if (pixels != null && isDirect(dstOut, width, height)
+                && !(permutation instanceof SeparablePermutation)
+                && !(permutation instanceof BlockPermutation && src.getDataBuffer() instanceof DataBufferInt)) {
+            /* Gather between the data buffers, without copies */
+            final int[] dst = ((DataBufferInt) dstOut.getDataBuffer()).getData();
+            IntStream.range(0, height).parallel().forEach((y) -> {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    dst[i] = 0xFF000000 | pixels.get(forward ? permutation.get(i) : permutation.inverse(i));
+                }
+            });
+            return;
+        }
+        if (bulk && pixels != null && src.getDataBuffer() instanceof DataBufferInt
+                && isDirect(dstOut, width, height)) {
+            /* Move the runs between the data buffers */
+            final int[] dst = ((DataBufferInt) dstOut.getDataBuffer()).getData();
+            applyBulk(forward, permutation, ((DataBufferInt) src.getDataBuffer()).getData(), dst);
+            return;
+        }
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        final int[] srcPixels = pool.acquireInts(width * height);
+        final int[] dstPixels = pool.acquireInts(width * height);
+
+        /* Read the image */
+        if (pixels != null) {
+            IntStream.range(0, height).parallel().forEach((y) -> {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    srcPixels[i] = pixels.get(i);
+                }
+            });
+        } else {
+            src.getDataElements(0, 0, width, height, srcPixels);
         }
 
-        /* Perform the swaps */
-        int index;
-        for (int i = 0; i < N; i++) {
-            index = type == SwapDirection.FORWARD ? i : N - i - 1;
-            final SwapElement elem = swapList.get(index);
-            swap(elem.leftIndex, elem.rightIndex, imageList);
+        /* Move the pixels, the result is always fully opaque */
+        if (bulk) {
+            applyBulk(forward, permutation, srcPixels, dstPixels);
+        } else {
+            IntStream.range(0, height).parallel().forEach((y) -> {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    dstPixels[i] = 0xFF000000 | srcPixels[forward
+                            ? permutation.get(i) : permutation.inverse(i)];
+                }
+            });
         }
 
         /* Create the image */
-        index = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                final RasterElement elem = imageList.get(index++);
-                srcPixels[x] = (255 & 0xFF) << 24
-                        | (elem.pixel[0] & 0xFF) << 16
-                        | (elem.pixel[1] & 0xFF) << 8 | elem.pixel[2] & 0xFF;
+        dstOut.setDataElements(0, 0, width, height, dstPixels);
+        pool.release(srcPixels);
+        pool.release(dstPixels);
+    }
+
+    /**
+     * Applies a {@link BlockPermutation} or {@link SeparablePermutation} to
+     * packed pixels, and makes the result fully opaque.
+     *
+     * @param forward {@code true} to scramble, {@code false} to de-scramble.
+     * @param permutation The permutation of the pixel indices.
+     * @param src The source pixels.
+     * @param dst The destination pixels.
+     */
+    private static void applyBulk(boolean forward, Permutation permutation, int[] src, int[] dst) {
+        if (permutation instanceof BlockPermutation) {
+            ((BlockPermutation) permutation).apply(forward, src, dst);
+        } else {
+            ((SeparablePermutation) permutation).apply(forward, src, dst);
+        }
+        final int size = permutation.size();
+        for (int i = 0; i < size; i++) {
+            dst[i] |= 0xFF000000;
+        }
+    }
+
+    /**
+     * Returns whether the pixels of the given raster can be permuted in place.
+     * Supported are rasters with at least three color bands, that hold one
+     * packed {@code int} per pixel or interleaved {@code byte} samples, without
+     * padding between the rows.
+     *
+     * @see #applyInPlace
+     * @param raster The raster to check.
+     * @return {@code true} if the raster can be permuted in place.
+     */
+    public static boolean supportsInPlace(Raster raster) {
+        return raster.getNumBands() >= 3 && hasContiguousLayout(raster);
+    }
+
+    /**
+     * Returns a reader of the pixels in the data buffer of the given raster,
+     * if it holds one packed {@code int} or the interleaved 8 bit
+     * {@code R, G, B} samples of every pixel, without padding.
+     *
+     * @param raster The raster to read.
+     * @return The reader, or {@code null} if the raster has another layout.
+     */
+    static PixelReader pixelReader(Raster raster) {
+        if (!hasContiguousLayout(raster)) {
+            return null;
+        }
+        final DataBuffer buffer = raster.getDataBuffer();
+        if (buffer instanceof DataBufferInt) {
+            final int[] data = ((DataBufferInt) buffer).getData();
+            return (index) -> data[index];
+        }
+        if (raster.getNumBands() < 3) {
+            return null;
+        }
+        final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+        final byte[] data = ((DataBufferByte) buffer).getData();
+        final int stride = model.getPixelStride();
+        final int red = model.getBandOffsets()[0];
+        final int green = model.getBandOffsets()[1];
+        final int blue = model.getBandOffsets()[2];
+        return (index) -> {
+            final int offset = index * stride;
+            return (data[offset + red] & 0xFF) << 16 | (data[offset + green] & 0xFF) << 8
+                    | data[offset + blue] & 0xFF;
+        };
+    }
+
+    /**
+     * Returns whether the given raster holds one byte per pixel, such as the
+     * palette indices of a {@link Palette#isIndexed palette image}, without
+     * padding.
+     *
+     * @param raster The raster to check.
+     * @return {@code true} if the raster holds contiguous one byte samples.
+     */
+    private static boolean isIndices(Raster raster) {
+        return raster.getNumBands() == 1 && raster.getDataBuffer() instanceof DataBufferByte
+                && hasContiguousLayout(raster);
+    }
+
+    /**
+     * Returns whether pixels can be written to the data buffer of the given
+     * raster directly, as one packed {@code int} per pixel.
+     *
+     * @param raster The destination raster.
+     * @param width The width of the source.
+     * @param height The height of the source.
+     * @return {@code true} if the raster can be written directly.
+     */
+    private static boolean isDirect(WritableRaster raster, int width, int height) {
+        return raster.getDataBuffer() instanceof DataBufferInt && hasContiguousLayout(raster)
+                && raster.getWidth() == width && raster.getHeight() == height;
+    }
+
+    /**
+     * Returns whether the given raster holds one packed {@code int} or the
+     * interleaved 8 bit samples of every pixel, without padding between the
+     * rows, whatever the number of bands.
+     *
+     * @param raster The raster to check.
+     * @return {@code true} if the pixels can be swapped in the data buffer.
+     */
+    static boolean hasContiguousLayout(Raster raster) {
+        final SampleModel model = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return false;
+        }
+        if (buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) model).getScanlineStride() == raster.getWidth();
+        }
+        if (buffer instanceof DataBufferByte && model instanceof PixelInterleavedSampleModel) {
+            final PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+            for (int size : interleaved.getSampleSize()) {
+                if (size != 8) {
+                    return false;
+                }
             }
-            dstOut.setDataElements(0, y, width, 1, srcPixels);
+            return interleaved.getScanlineStride() == raster.getWidth() * interleaved.getPixelStride();
         }
+        return false;
     }
 
     /**
-     * Method to perform a swap in the {@code imageList}.
+     * Applies the permutation of the given key to the pixels of a raster in
+     * place, so no second image sized buffer is needed. The result is the same
+     * as that of {@link #create(SwapDirection, ScrambleKey, Raster, WritableRaster)}.
+     * <br>
+     * In {@link ScrambleKey.Mode#SWAP} mode the swaps are performed on the
+     * pixels directly. Only de-scrambling with a sequential random generator
+     * needs the permutation table, since its swaps must be undone in reverse
+     * order. In {@link ScrambleKey.Mode#SEPARABLE} mode packed pixels are
+     * permuted by strips of rows and columns. The other modes follow the
+     * cycles of the permutation, marking the visited pixels in a bit set, as
+     * do keys with a tile size.
      *
-     * @param leftIndex The left index to be swapped with the right index.
-     * @param rightIndex The right index to be swapped with the left index.
-     * @param imageList The list of {@code RasterElement}s representing the
-     * image in memory.
+     * @param type The direction of scrambling, one of
+     * {@link SwapDirection#FORWARD} (scrambling) or
+     * {@link SwapDirection#BACKWARD} (de-scrambling).
+     * @param key The key holding the seed, the random generator and the mode.
+     * @param raster The raster to permute.
+     * @throws IllegalArgumentException If the layout of the raster is not
+     * supported.
+     * @see #supportsInPlace
+     */
+    public static void applyInPlace(SwapDirection type, ScrambleKey key, WritableRaster raster) {
+        if (!supportsInPlace(raster)) {
+            throw new IllegalArgumentException("Raster cannot be permuted in place");
+        }
+        permuteInPlace(type, key, raster);
+    }
+
+    /**
+     * Applies the permutation of the given key to the pixels of an image in
+     * place. Besides the rasters supported by
+     * {@link #applyInPlace(SwapDirection, ScrambleKey, WritableRaster)}, this
+     * permutes the one byte indices of a {@link Palette#isIndexed palette
+     * image}.
+     *
+     * @param type The direction of scrambling, one of
+     * {@link SwapDirection#FORWARD} (scrambling) or
+     * {@link SwapDirection#BACKWARD} (de-scrambling).
+     * @param key The key holding the seed, the random generator and the mode.
+     * @param image The image to permute.
+     * @throws IllegalArgumentException If the layout of the image is not
+     * supported.
+     */
+    public static void applyInPlace(SwapDirection type, ScrambleKey key, BufferedImage image) {
+        if (Palette.isIndexed(image)) {
+            permuteInPlace(type, key, image.getRaster());
+        } else {
+            applyInPlace(type, key, image.getRaster());
+        }
+    }
+
+    /**
+     * Applies a permutation that was already computed for the size of the
+     * image in place, as
+     * {@link #applyInPlace(SwapDirection, ScrambleKey, BufferedImage)} does.
+     * This lets a caller verify the key on the scrambled pixels before they
+     * are moved.
+     *
+     * @param type The direction of scrambling.
+     * @param permutation The permutation of the pixel indices.
+     * @param image The image to permute.
+     * @throws IllegalArgumentException If the layout of the image is not
+     * supported.
+     */
+    public static void applyInPlace(SwapDirection type, Permutation permutation, BufferedImage image) {
+        final WritableRaster raster = image.getRaster();
+        if (!Palette.isIndexed(image) && !supportsInPlace(raster)) {
+            throw new IllegalArgumentException("Raster cannot be permuted in place");
+        }
+        final PixelSwapper pixels = new PixelSwapper(raster);
+        final boolean forward = type == SwapDirection.FORWARD;
+        if (permutation instanceof SeparablePermutation && pixels.ints != null) {
+            ((SeparablePermutation) permutation).applyInPlace(forward, pixels.ints);
+        } else {
+            applyCycles(forward, permutation, pixels);
+        }
+        pixels.opaque();
+    }
+
+    /**
+     * Applies the permutation of the given key to a raster in place.
+     *
+     * @param type The direction of scrambling.
+     * @param key The key holding the seed, the random generator and the mode.
+     * @param raster The raster to permute, with a contiguous layout.
+     */
+    private static void permuteInPlace(SwapDirection type, ScrambleKey key, WritableRaster raster) {
+        final PixelSwapper pixels = new PixelSwapper(raster);
+        final int size = raster.getWidth() * raster.getHeight();
+        final boolean forward = type == SwapDirection.FORWARD;
+        if (key.getMode() == ScrambleKey.Mode.SWAP && key.getTileSize() == 0) {
+            final NumberGenerator rand = key.newGenerator();
+            if (rand instanceof CounterNumberGenerator) {
+                final CounterNumberGenerator counter = (CounterNumberGenerator) rand;
+                for (int i = 0; i < size; i++) {
+                    final int leftIndex = forward ? i : size - 1 - i;
+                    pixels.swap(leftIndex, leftIndex
+                            + (int) counter.random(leftIndex, 0, size - leftIndex));
+                }
+            } else if (forward) {
+                for (int leftIndex = 0; leftIndex < size; leftIndex++) {
+                    pixels.swap(leftIndex, leftIndex + (int) rand.random(0, size - leftIndex));
+                }
+            } else {
+                applyCycles(false, new ArrayPermutation(permutation(key, size)), pixels);
+            }
+        } else if (key.getMode() == ScrambleKey.Mode.SEPARABLE && key.getTileSize() == 0
+                && pixels.ints != null) {
+            /* The passes over the rows and columns need no bit set */
+            new SeparablePermutation(key, raster.getWidth(), raster.getHeight())
+                    .applyInPlace(forward, pixels.ints);
+        } else {
+            applyCycles(forward, permutation(key, raster.getWidth(), raster.getHeight()), pixels);
+        }
+        pixels.opaque();
+    }
+
+    /**
+     * Applies a permutation in place by following its cycles. Every cycle is
+     * rotated by swapping its pixels along the cycle.
+     *
+     * @param forward {@code true} to gather (scramble), {@code false} to
+     * scatter (de-scramble).
+     * @param permutation The permutation of the pixel indices.
+     * @param pixels The pixels to permute.
+     */
+    private static void applyCycles(boolean forward, Permutation permutation, PixelSwapper pixels) {
+        final int size = permutation.size();
+        final BitSet visited = new BitSet(size);
+        for (int start = visited.nextClearBit(0); start < size;
+                start = visited.nextClearBit(start + 1)) {
+            visited.set(start);
+            if (forward) {
+                /* Pixel j receives pixel get(j) */
+                int index = start;
+                for (int next = permutation.get(index); next != start; next = permutation.get(next)) {
+                    pixels.swap(index, next);
+                    visited.set(next);
+                    index = next;
+                }
+            } else {
+                /* Pixel j is sent to get(j) */
+                for (int next = permutation.get(start); next != start; next = permutation.get(next)) {
+                    pixels.swap(start, next);
+                    visited.set(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-keys a scrambled raster: the raster scrambled with {@code oldKey} is
+     * written to the destination as if the source image was scrambled with
+     * {@code newKey}. <br>
+     * The inverse of the old permutation and the new permutation are composed
+     * per index, so every pixel is moved exactly once and the source image is
+     * never materialized. Pixels are gathered between the data buffers when
+     * the source holds packed or interleaved pixels and the destination packed
+     * pixels, and one byte palette indices are gathered as indices.
+     *
+     * @param oldKey The key the source raster was scrambled with.
+     * @param newKey The key to scramble the destination raster with.
+     * @param src The source raster, scrambled with the old key.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void rekey(ScrambleKey oldKey, ScrambleKey newKey, Raster src, WritableRaster dstOut) {
+        rekey(permutation(oldKey, src.getWidth(), src.getHeight()),
+                permutation(newKey, src.getWidth(), src.getHeight()), src, dstOut);
+    }
+
+    /**
+     * Re-keys a scrambled raster with permutations that were already computed
+     * for the size of the raster.
+     *
+     * @see #rekey(ScrambleKey, ScrambleKey, Raster, WritableRaster)
+     * @param oldPermutation The permutation the source raster was scrambled
+     * with.
+     * @param newPermutation The permutation to scramble the destination raster
+     * with.
+     * @param src The source raster, scrambled with the old permutation.
+     * @param dstOut The destination raster to write to.
+     */
+    public static void rekey(Permutation oldPermutation, Permutation newPermutation,
+            Raster src, WritableRaster dstOut) {
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        if (isIndices(src) && isIndices(dstOut)
+                && dstOut.getWidth() == width && dstOut.getHeight() == height) {
+            /* Gather the palette indices, the palette is unchanged */
+            final byte[] srcIndices = ((DataBufferByte) src.getDataBuffer()).getData();
+            final byte[] dstIndices = ((DataBufferByte) dstOut.getDataBuffer()).getData();
+            IntStream.range(0, height).parallel().forEach((y) -> {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    dstIndices[i] = srcIndices[oldPermutation.inverse(newPermutation.get(i))];
+                }
+            });
+            return;
+        }
+        final PixelReader pixels = pixelReader(src);
+        if (pixels != null && isDirect(dstOut, width, height)) {
+            /* Gather between the data buffers, without copies */
+            final int[] dst = ((DataBufferInt) dstOut.getDataBuffer()).getData();
+            IntStream.range(0, height).parallel().forEach((y) -> {
+                for (int i = y * width, end = i + width; i < end; i++) {
+                    dst[i] = 0xFF000000 | pixels.get(oldPermutation.inverse(newPermutation.get(i)));
+                }
+            });
+            return;
+        }
+        final PixelBufferPool pool = PixelBufferPool.getDefault();
+        final int[] srcPixels = pool.acquireInts(width * height);
+        final int[] dstPixels = pool.acquireInts(width * height);
+
+        /* Read the image */
+        src.getDataElements(0, 0, width, height, srcPixels);
+
+        /* The new scrambled pixel i is source pixel newPermutation.get(i) */
+        IntStream.range(0, height).parallel().forEach((y) -> {
+            for (int i = y * width, end = i + width; i < end; i++) {
+                dstPixels[i] = 0xFF000000 | srcPixels[oldPermutation.inverse(newPermutation.get(i))];
+            }
+        });
+
+        /* Create the image */
+        dstOut.setDataElements(0, 0, width, height, dstPixels);
+        pool.release(srcPixels);
+        pool.release(dstPixels);
+    }
+
+    /**
+     * Updates a scrambled raster for a changed region of the source image.
+     *
+     * @see #update(Permutation, Raster, WritableRaster)
+     * @param key The key the raster was scrambled with.
+     * @param src The changed source pixels, located at the changed region.
+     * @param dstOut The scrambled raster to update.
      */
-    private static void swap(int leftIndex, int rightIndex, List<RasterElement> imageList) {
-        final RasterElement leftElement = imageList.get(leftIndex);
-        final RasterElement rightElement = imageList.get(rightIndex);
-        imageList.set(rightIndex, leftElement);
-        imageList.set(leftIndex, rightElement);
+    public static void update(ScrambleKey key, Raster src, WritableRaster dstOut) {
+        update(permutation(key, dstOut.getWidth(), dstOut.getHeight()), src, dstOut);
     }
 
     /**
-     * Convenience class that holds an integer array indicating the four pixel
-     * color components.
+     * Updates a scrambled raster for a changed region of the source image.
+     * Only the scrambled pixels the changed source pixels map to are written,
+     * so moving the pixels scales with the area of the region rather than the
+     * size of the image. Building the permutation does depend on the size of
+     * the image in {@link ScrambleKey.Mode#SWAP} mode, or on the touched tiles
+     * for a key with a tile size, but not in the other modes. Decoding and
+     * encoding the scrambled image is up to the caller.
+     *
+     * @param permutation The permutation the raster was scrambled with.
+     * @param src The changed source pixels, as a raster located at the changed
+     * region of the image, e.g. a child raster.
+     * @param dstOut The scrambled raster to update.
+     * @throws IllegalArgumentException If the region is outside the image.
      */
-    private static class RasterElement {
+    public static void update(Permutation permutation, Raster src, WritableRaster dstOut) {
+        final int width = dstOut.getWidth();
+        final int minX = src.getMinX();
+        final int minY = src.getMinY();
+        if (minX < 0 || minY < 0 || minX + src.getWidth() > width
+                || minY + src.getHeight() > dstOut.getHeight()) {
+            throw new IllegalArgumentException("Region is outside the image");
+        }
+        /* Write the pixels to the data buffer directly, if it allows */
+        final int[] dst = isDirect(dstOut, width, dstOut.getHeight())
+                ? ((DataBufferInt) dstOut.getDataBuffer()).getData() : null;
+        final int[] row = new int[src.getWidth()];
+        final int[] pixel = new int[1];
+        for (int y = minY; y < minY + src.getHeight(); y++) {
+            src.getDataElements(minX, y, row.length, 1, row);
+            for (int i = 0; i < row.length; i++) {
+                /* The source pixel ends up at the inverse of its index */
+                final int index = permutation.inverse(y * width + minX + i);
+                if (dst != null) {
+                    dst[index] = 0xFF000000 | row[i];
+                } else {
+                    pixel[0] = 0xFF000000 | row[i];
+                    dstOut.setDataElements(index % width, index / width, pixel);
+                }
+            }
+        }
+    }
 
-        public final int[] pixel = new int[4];
+    /**
+     * Method to perform a swap in the {@code permutation}.
+     *
+     * @param leftIndex The left index to be swapped with the right index.
+     * @param rightIndex The right index to be swapped with the left index.
+     * @param permutation The array of pixel indices representing the image in
+     * memory.
+     */
+    private static void swap(int leftIndex, int rightIndex, int[] permutation) {
+        final int leftElement = permutation[leftIndex];
+        permutation[leftIndex] = permutation[rightIndex];
+        permutation[rightIndex] = leftElement;
     }
 
     /**
-     * Convenience class that holds two integers indicating the left and right
-     * index to be swapped.
+     * Swaps the pixels of a raster that is permuted in place.
      */
-    private static class SwapElement {
+    private static final class PixelSwapper {
+
+        /**
+         * The packed pixels, or {@code null} for interleaved samples.
+         */
+        private final int[] ints;
+
+        /**
+         * The interleaved samples, or {@code null} for packed pixels.
+         */
+        private final byte[] bytes;
+
+        /**
+         * The number of samples per pixel.
+         */
+        private final int stride;
 
-        public int leftIndex, rightIndex;
+        /**
+         * The alpha mask of a packed pixel, or the offset of the alpha sample
+         * of an interleaved pixel; {@code -1} if there is no alpha.
+         */
+        private final int alpha;
+
+        PixelSwapper(WritableRaster raster) {
+            final SampleModel model = raster.getSampleModel();
+            final boolean hasAlpha = raster.getNumBands() > 3;
+            if (raster.getDataBuffer() instanceof DataBufferInt) {
+                ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+                bytes = null;
+                stride = 1;
+                alpha = hasAlpha ? ((SinglePixelPackedSampleModel) model).getBitMasks()[3] : -1;
+            } else {
+                ints = null;
+                bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+                stride = ((PixelInterleavedSampleModel) model).getPixelStride();
+                alpha = hasAlpha ? ((PixelInterleavedSampleModel) model).getBandOffsets()[3] : -1;
+            }
+        }
+
+        void swap(int i, int j) {
+            if (ints != null) {
+                final int pixel = ints[i];
+                ints[i] = ints[j];
+                ints[j] = pixel;
+            } else {
+                for (int x = i * stride, y = j * stride, end = x + stride; x < end; x++, y++) {
+                    final byte sample = bytes[x];
+                    bytes[x] = bytes[y];
+                    bytes[y] = sample;
+                }
+            }
+        }
+
+        /**
+         * Make all pixels fully opaque, like the result of a scramble.
+         */
+        void opaque() {
+            if (alpha == -1) {
+                return;
+            }
+            if (ints != null) {
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] |= alpha;
+                }
+            } else {
+                for (int x = alpha; x < bytes.length; x += stride) {
+                    bytes[x] = (byte) 0xFF;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,474 @@
+package cuenen.raymond.image;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parameters needed to scramble and de-scramble an image: the seed, the
+ * algorithm of the random number generator, the scramble mode and its
+ * settings. <br>
+ * A key is stored as PNG text entries with the scrambled image, so that the
+ * {@code ImageConstructor} can de-scramble the image without further input.
+ * Images that only hold a {@code seed} entry were scrambled in
+ * {@link Mode#SWAP} mode with the {@value RandomNumberGenerator#ALGORITHM}
+ * generator. <br>
+ * A key with a tile size permutes every tile of the image independently, with a
+ * seed derived from the seed of the key and the index of the tile, so tiles can
+ * be scrambled by separate processes. <br>
+ * The settings of a mode are only stored for that mode: the block size and
+ * transform for {@link Mode#BLOCK}, the number of rounds for
+ * {@link Mode#SEPARABLE}.
+ *
+ * @see ImageCreator
+ * @see ImageConstructor
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class ScrambleKey {
+
+    /**
+     * Enumeration type indicating how the pixels are permuted.
+     */
+    public enum Mode {
+
+        /**
+         * The shuffle-algorithm, swapping every pixel with a random other
+         * pixel. The permutation needs a table of all pixel indices.
+         */
+        SWAP("swap"),
+        /**
+         * A keyed bijection on the pixel indices, computed per index by the
+         * {@link IndexCipher} without any tables. The seed is the key of the
+         * cipher.
+         */
+        CIPHER("cipher"),
+        /**
+         * The shuffle-algorithm on square blocks of pixels, optionally with a
+         * flip or transpose per block, by the {@link BlockPermutation}. The
+         * scrambled image stays compressible.
+         */
+        BLOCK("block"),
+        /**
+         * Rounds of a permutation of the columns within every row and of the
+         * rows within bands of columns, by the {@link SeparablePermutation}.
+         * Every pass is sequential and the tables are small, so large images
+         * are scrambled fast, at the cost of a weaker scramble.
+         */
+        SEPARABLE("separable");
+
+        /**
+         * The identifier of the mode in the metadata.
+         */
+        private final String id;
+
+        private Mode(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Returns the identifier of this mode in the metadata.
+         *
+         * @return The identifier.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the mode for an identifier.
+         *
+         * @param id The identifier of the mode.
+         * @return The mode.
+         * @throws IllegalArgumentException If the mode is unknown.
+         */
+        public static Mode forId(String id) {
+            for (Mode mode : values()) {
+                if (mode.id.equals(id)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown mode: " + id);
+        }
+    }
+
+    /**
+     * The metadata keyword of the seed.
+     */
+    public static final String SEED = "seed";
+
+    /**
+     * The metadata keyword of the generator algorithm.
+     */
+    public static final String GENERATOR = "generator";
+
+    /**
+     * The metadata keyword of the mode.
+     */
+    public static final String MODE = "mode";
+
+    /**
+     * The metadata keyword of the block size.
+     */
+    public static final String BLOCK = "block";
+
+    /**
+     * The metadata keyword of the block transform.
+     */
+    public static final String TRANSFORM = "transform";
+
+    /**
+     * The metadata keyword of the tile size.
+     */
+    public static final String TILE = "tile";
+
+    /**
+     * The metadata keyword of the number of rounds.
+     */
+    public static final String ROUNDS = "rounds";
+
+    /**
+     * The default size of a block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    /**
+     * The default number of rounds.
+     */
+    public static final int DEFAULT_ROUNDS = 3;
+
+    /**
+     * The seed for the random generator.
+     */
+    private final long seed;
+
+    /**
+     * The algorithm of the random generator.
+     */
+    private final String generator;
+
+    /**
+     * The scramble mode.
+     */
+    private final Mode mode;
+
+    /**
+     * The size of a block in {@link Mode#BLOCK} mode.
+     */
+    private final int blockSize;
+
+    /**
+     * Flag indicating to flip or transpose blocks in {@link Mode#BLOCK} mode.
+     */
+    private final boolean blockTransform;
+
+    /**
+     * The size of a tile, or zero if the image is permuted as a whole.
+     */
+    private final int tileSize;
+
+    /**
+     * The number of rounds in {@link Mode#SEPARABLE} mode.
+     */
+    private final int rounds;
+
+    /**
+     * Creates a key with the default generator.
+     *
+     * @param seed The seed for the random generator.
+     */
+    public ScrambleKey(long seed) {
+        this(seed, RandomNumberGenerator.ALGORITHM);
+    }
+
+    /**
+     * Creates a key.
+     *
+     * @param seed The seed for the random generator.
+     * @param generator The algorithm of the random generator.
+     */
+    public ScrambleKey(long seed, String generator) {
+        this(seed, generator, Mode.SWAP);
+    }
+
+    /**
+     * Creates a key.
+     *
+     * @param seed The seed for the random generator.
+     * @param generator The algorithm of the random generator.
+     * @param mode The scramble mode.
+     */
+    public ScrambleKey(long seed, String generator, Mode mode) {
+        this(seed, generator, mode, DEFAULT_BLOCK_SIZE, false, 0, DEFAULT_ROUNDS);
+    }
+
+    private ScrambleKey(long seed, String generator, Mode mode, int blockSize,
+            boolean blockTransform, int tileSize, int rounds) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if (tileSize < 0) {
+            throw new IllegalArgumentException("Tile size must be positive");
+        }
+        if (rounds < 1) {
+            throw new IllegalArgumentException("Rounds must be positive");
+        }
+        this.seed = seed;
+        this.generator = generator;
+        this.mode = mode;
+        this.blockSize = blockSize;
+        this.blockTransform = blockTransform;
+        this.tileSize = tileSize;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Returns the seed for the random generator.
+     *
+     * @return The seed.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns the algorithm of the random generator.
+     *
+     * @return The algorithm name.
+     */
+    public String getGenerator() {
+        return generator;
+    }
+
+    /**
+     * Returns the scramble mode.
+     *
+     * @return The mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the size of a block in {@link Mode#BLOCK} mode.
+     *
+     * @return The width and height of a block, in pixels.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns whether blocks are flipped or transposed in {@link Mode#BLOCK}
+     * mode.
+     *
+     * @return {@code true} if blocks are transformed.
+     */
+    public boolean isBlockTransform() {
+        return blockTransform;
+    }
+
+    /**
+     * Returns the size of a tile that is permuted independently.
+     *
+     * @return The width and height of a tile, in pixels, or zero if the image
+     * is permuted as a whole.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of rounds in {@link Mode#SEPARABLE} mode.
+     *
+     * @return The number of times the rows and the columns are permuted.
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Returns the key that permutes a tile of the image. The seed is derived
+     * from the seed of this key and the index of the tile, and is kept below
+     * <code>2&sup3;&sup1;</code> like the seeds of the
+     * {@value RandomNumberGenerator#ALGORITHM} generator. The returned key
+     * permutes the tile as a whole.
+     *
+     * @param index The index of the tile, in row major order.
+     * @return The key of the tile.
+     */
+    public ScrambleKey forTile(int index) {
+        final long tileSeed = new CounterNumberGenerator(seed).randomLong(index) >>> 33;
+        return new ScrambleKey(tileSeed, generator, mode, blockSize, blockTransform, 0, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another seed.
+     *
+     * @param seed The seed for the random generator.
+     * @return The new key.
+     */
+    public ScrambleKey withSeed(long seed) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another generator.
+     *
+     * @param generator The algorithm of the random generator.
+     * @return The new key.
+     */
+    public ScrambleKey withGenerator(String generator) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another mode.
+     *
+     * @param mode The scramble mode.
+     * @return The new key.
+     */
+    public ScrambleKey withMode(Mode mode) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another block size.
+     *
+     * @param blockSize The size of a block in {@link Mode#BLOCK} mode.
+     * @return The new key.
+     */
+    public ScrambleKey withBlockSize(int blockSize) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with or without block transforms.
+     *
+     * @param blockTransform {@code true} to flip or transpose blocks in
+     * {@link Mode#BLOCK} mode.
+     * @return The new key.
+     */
+    public ScrambleKey withBlockTransform(boolean blockTransform) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another tile size.
+     *
+     * @param tileSize The size of a tile that is permuted independently, or
+     * zero to permute the image as a whole.
+     * @return The new key.
+     */
+    public ScrambleKey withTileSize(int tileSize) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Returns a copy of this key with another number of rounds.
+     *
+     * @param rounds The number of rounds in {@link Mode#SEPARABLE} mode.
+     * @return The new key.
+     */
+    public ScrambleKey withRounds(int rounds) {
+        return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+    }
+
+    /**
+     * Creates a new random generator for this key.
+     *
+     * @return The random generator, starting at the seed of this key.
+     */
+    public NumberGenerator newGenerator() {
+        return NumberGenerator.getInstance(generator, seed);
+    }
+
+    /**
+     * Returns the metadata entries describing this key.
+     *
+     * @return The keyword and value pairs to store with a scrambled image.
+     */
+    public Map<String, String> toMetadata() {
+        final Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put(SEED, String.valueOf(seed));
+        metadata.put(GENERATOR, generator);
+        metadata.put(MODE, mode.getId());
+        if (mode == Mode.BLOCK) {
+            metadata.put(BLOCK, String.valueOf(blockSize));
+            metadata.put(TRANSFORM, String.valueOf(blockTransform));
+        }
+        if (mode == Mode.SEPARABLE) {
+            metadata.put(ROUNDS, String.valueOf(rounds));
+        }
+        if (tileSize > 0) {
+            metadata.put(TILE, String.valueOf(tileSize));
+        }
+        return metadata;
+    }
+
+    /**
+     * Creates the key from the metadata entries of a scrambled image.
+     *
+     * @param metadata The keyword and value pairs stored with the image.
+     * @return The key.
+     * @throws IOException If the seed is not present, or the generator or mode
+     * is unknown.
+     */
+    public static ScrambleKey fromMetadata(Map<String, String> metadata) throws IOException {
+        final long seed;
+        try {
+            seed = Long.parseLong(metadata.get(SEED));
+        } catch (NumberFormatException ex) {
+            throw new IOException(ex);
+        }
+        final String generator = metadata.getOrDefault(GENERATOR, RandomNumberGenerator.ALGORITHM);
+        try {
+            NumberGenerator.getInstance(generator, seed);
+            final Mode mode = Mode.forId(metadata.getOrDefault(MODE, Mode.SWAP.getId()));
+            final int blockSize = Integer.parseInt(metadata.getOrDefault(BLOCK,
+                    String.valueOf(DEFAULT_BLOCK_SIZE)));
+            final boolean blockTransform = Boolean.parseBoolean(metadata.get(TRANSFORM));
+            final int tileSize = Integer.parseInt(metadata.getOrDefault(TILE, "0"));
+            final int rounds = Integer.parseInt(metadata.getOrDefault(ROUNDS,
+                    String.valueOf(DEFAULT_ROUNDS)));
+            return new ScrambleKey(seed, generator, mode, blockSize, blockTransform, tileSize, rounds);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return (((((Long.hashCode(seed) * 31 + generator.hashCode()) * 31
+                + mode.hashCode()) * 31 + blockSize) * 31 + Boolean.hashCode(blockTransform))
+                * 31 + tileSize) * 31 + rounds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ScrambleKey)) {
+            return false;
+        }
+
+        final ScrambleKey key = (ScrambleKey) obj;
+        return seed == key.seed && generator.equals(key.generator)
+                && mode == key.mode && blockSize == key.blockSize
+                && blockTransform == key.blockTransform && tileSize == key.tileSize
+                && rounds == key.rounds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return toMetadata().toString();
+    }
+}
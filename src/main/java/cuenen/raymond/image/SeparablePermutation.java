@@ -0,0 +1,295 @@
+package cuenen.raymond.image;
+
+import java.util.stream.IntStream;
+
+/**
+ * A permutation that is separable into passes over the rows and the columns of
+ * an image, for high volumes of images that need throughput more than
+ * strength. <br>
+ * Every round permutes the columns within every row, followed by the rows
+ * within every band of {@value #BAND} columns. All rows of a round share one
+ * shuffled table of columns, rotated by a keyed offset per row, and likewise
+ * all bands share one table of rows with an offset per band. The state is
+ * therefore {@code O(width + height)} per round instead of a table of all
+ * pixels. The rows are permuted per band rather than per column, so the
+ * column pass moves runs of pixels instead of single pixels a row apart;
+ * since the row pass of the next round splits the bands, every pixel can
+ * still reach every position. <br>
+ * The bulk {@link #apply apply} works in place on strips of rows and on
+ * bands, in parallel: every pass reads and writes the image sequentially, or
+ * a run of a band at a time, with buffers of the size of a strip or band.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class SeparablePermutation implements Permutation {
+
+    /**
+     * Seed modifier for the tables of the rounds.
+     */
+    private static final long ROUND_SEED = 0x2545F4914F6CDD1DL;
+
+    /**
+     * The number of rows that are permuted at once.
+     */
+    private static final int STRIP = 16;
+
+    /**
+     * The width of a band of columns whose rows are permuted together: a few
+     * cache lines of every row.
+     */
+    private static final int BAND = 64;
+
+    /**
+     * The size of the image.
+     */
+    private final int width, height;
+
+    /**
+     * The number of rounds.
+     */
+    private final int rounds;
+
+    /**
+     * The table of columns of every round, and its inverse.
+     */
+    private final int[][] columns, columnsInverse;
+
+    /**
+     * The offset of the table of columns for every row, per round.
+     */
+    private final int[][] rowShifts;
+
+    /**
+     * The table of rows of every round, and its inverse.
+     */
+    private final int[][] rows, rowsInverse;
+
+    /**
+     * The offset of the table of rows for every band of columns, per round.
+     */
+    private final int[][] columnShifts;
+
+    /**
+     * Creates a new {@code SeparablePermutation}.
+     *
+     * @param key The key holding the seed, the random generator and the number
+     * of rounds.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    public SeparablePermutation(ScrambleKey key, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rounds = key.getRounds();
+        this.columns = new int[rounds][];
+        this.columnsInverse = new int[rounds][];
+        this.rowShifts = new int[rounds][];
+        this.rows = new int[rounds][];
+        this.rowsInverse = new int[rounds][];
+        this.columnShifts = new int[rounds][];
+        final CounterNumberGenerator seeds = new CounterNumberGenerator(key.getSeed() ^ ROUND_SEED);
+        for (int r = 0; r < rounds; r++) {
+            /* Keep the seeds below 2^31, like the seeds of a tile */
+            columns[r] = RasterCreator.permutation(key.withSeed(seeds.randomLong(4L * r) >>> 33), width);
+            rows[r] = RasterCreator.permutation(key.withSeed(seeds.randomLong(4L * r + 1) >>> 33), height);
+            columnsInverse[r] = invert(columns[r]);
+            rowsInverse[r] = invert(rows[r]);
+            rowShifts[r] = shifts(new CounterNumberGenerator(seeds.randomLong(4L * r + 2)), height, width);
+            columnShifts[r] = shifts(new CounterNumberGenerator(seeds.randomLong(4L * r + 3)),
+                    (width + BAND - 1) / BAND, height);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return width * height;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int index) {
+        int x = index % width;
+        int y = index / width;
+        for (int r = rounds - 1; r >= 0; r--) {
+            y = rows[r][wrap(y + columnShifts[r][x / BAND], height)];
+            x = columns[r][wrap(x + rowShifts[r][y], width)];
+        }
+        return y * width + x;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int inverse(int index) {
+        int x = index % width;
+        int y = index / width;
+        for (int r = 0; r < rounds; r++) {
+            x = unwrap(columnsInverse[r][x] - rowShifts[r][y], width);
+            y = unwrap(rowsInverse[r][y] - columnShifts[r][x / BAND], height);
+        }
+        return y * width + x;
+    }
+
+    /**
+     * Applies this permutation to packed pixels. The source is copied to the
+     * destination, which is then permuted in place.
+     *
+     * @param forward {@code true} to scramble, {@code false} to de-scramble.
+     * @param src The source pixels.
+     * @param dst The destination pixels.
+     */
+    void apply(boolean forward, int[] src, int[] dst) {
+        System.arraycopy(src, 0, dst, 0, width * height);
+        applyInPlace(forward, dst);
+    }
+
+    /**
+     * Applies this permutation to packed pixels in place, pass by pass. A pass
+     * copies a strip of {@value #STRIP} rows, or a band of columns, at a time
+     * and gathers it back.
+     *
+     * @param forward {@code true} to scramble, {@code false} to de-scramble.
+     * @param pixels The pixels to permute.
+     */
+    void applyInPlace(boolean forward, int[] pixels) {
+        for (int i = 0; i < rounds; i++) {
+            if (forward) {
+                permuteRows(pixels, columns[i], rowShifts[i], false);
+                permuteColumns(pixels, rows[i], columnShifts[i], false);
+            } else {
+                final int r = rounds - 1 - i;
+                permuteColumns(pixels, rowsInverse[r], columnShifts[r], true);
+                permuteRows(pixels, columnsInverse[r], rowShifts[r], true);
+            }
+        }
+    }
+
+    /**
+     * Permutes the pixels within every row, in parallel over strips of rows.
+     *
+     * @param pixels The pixels to permute.
+     * @param table The table of columns, or its inverse.
+     * @param shifts The offset of the table for every row.
+     * @param inverse {@code true} if the table is the inverse.
+     */
+    private void permuteRows(int[] pixels, int[] table, int[] shifts, boolean inverse) {
+        IntStream.range(0, (height + STRIP - 1) / STRIP).parallel().forEach((strip) -> {
+            final int[] row = new int[width];
+            for (int y = strip * STRIP, end = Math.min(y + STRIP, height); y < end; y++) {
+                System.arraycopy(pixels, y * width, row, 0, width);
+                permute(row, 0, pixels, y * width, width, table, shifts[y], inverse);
+            }
+        });
+    }
+
+    /**
+     * Permutes the rows within every band of columns, in parallel over the
+     * bands. A band is copied to a buffer and its rows are copied back in the
+     * permuted order.
+     *
+     * @param pixels The pixels to permute.
+     * @param table The table of rows, or its inverse.
+     * @param shifts The offset of the table for every band.
+     * @param inverse {@code true} if the table is the inverse.
+     */
+    private void permuteColumns(int[] pixels, int[] table, int[] shifts, boolean inverse) {
+        IntStream.range(0, shifts.length).parallel().forEach((band) -> {
+            final int left = band * BAND;
+            final int count = Math.min(BAND, width - left);
+            final int shift = shifts[band];
+            final int[] read = new int[count * height];
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * width + left, read, y * count, count);
+            }
+            for (int y = 0; y < height; y++) {
+                final int row = inverse ? unwrap(table[y] - shift, height) : table[wrap(y + shift, height)];
+                System.arraycopy(read, row * count, pixels, y * width + left, count);
+            }
+        });
+    }
+
+    /**
+     * Permutes a run of pixels by a table rotated by an offset. Gathering, the
+     * pixel at {@code i} is taken from {@code table[(i + shift) % length]};
+     * with the inverse table it is taken from
+     * {@code (table[i] - shift) % length}, which undoes the gather.
+     *
+     * @param src The source pixels.
+     * @param srcOffset The start of the run in the source.
+     * @param dst The destination pixels.
+     * @param dstOffset The start of the run in the destination.
+     * @param length The length of the run.
+     * @param table The table, or its inverse.
+     * @param shift The offset of the table.
+     * @param inverse {@code true} if the table is the inverse.
+     */
+    private static void permute(int[] src, int srcOffset, int[] dst, int dstOffset, int length,
+            int[] table, int shift, boolean inverse) {
+        if (inverse) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = src[srcOffset + unwrap(table[i] - shift, length)];
+            }
+        } else {
+            /* Split the run where the rotated table wraps around */
+            final int split = length - shift;
+            for (int i = 0; i < split; i++) {
+                dst[dstOffset + i] = src[srcOffset + table[i + shift]];
+            }
+            for (int i = split; i < length; i++) {
+                dst[dstOffset + i] = src[srcOffset + table[i - split]];
+            }
+        }
+    }
+
+    /**
+     * Returns the inverse of a table.
+     *
+     * @param table The gather index of a permutation.
+     * @return The scatter index of the permutation.
+     */
+    private static int[] invert(int[] table) {
+        final int[] inverse = new int[table.length];
+        for (int i = 0; i < table.length; i++) {
+            inverse[table[i]] = i;
+        }
+        return inverse;
+    }
+
+    /**
+     * Returns random offsets.
+     *
+     * @param generator The generator of the offsets.
+     * @param count The number of offsets.
+     * @param bound The upper bound of an offset, exclusive.
+     * @return The offsets.
+     */
+    private static int[] shifts(CounterNumberGenerator generator, int count, int bound) {
+        final int[] shifts = new int[count];
+        for (int i = 0; i < count; i++) {
+            shifts[i] = (int) Long.remainderUnsigned(generator.randomLong(i), bound);
+        }
+        return shifts;
+    }
+
+    /**
+     * Returns a sum of two indices below {@code bound}, modulo {@code bound}.
+     */
+    private static int wrap(int index, int bound) {
+        return index >= bound ? index - bound : index;
+    }
+
+    /**
+     * Returns a difference of two indices below {@code bound}, modulo
+     * {@code bound}.
+     */
+    private static int unwrap(int index, int bound) {
+        return index < 0 ? index + bound : index;
+    }
+}
@@ -0,0 +1,113 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Executing class to de-scramble a frame sequence that was scrambled by the
+ * {@link SequenceCreator}. <br>
+ * The frames are read from a directory of numbered PNG images, de-scrambled by
+ * {@link ImageConstructor#readSequence} and written as a numbered PNG sequence
+ * again; the key is read from the first frame.
+ *
+ * @see SequenceCreator
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class SequenceConstructor {
+
+    /**
+     * The suffix of the directory the {@code SequenceCreator} writes to.
+     */
+    private static final String SCRAMBLED_SUFFIX = "-scrambled";
+
+    /**
+     * Perform a de-scramble action on the frame sequence in the given
+     * {@code input} directory.
+     *
+     * @param input The name of the directory holding the scrambled frames.
+     */
+    public SequenceConstructor(String input) {
+        try {
+            System.out.println("Reading scrambled frames");
+            final File source = new File(input);
+            final File[] files = source.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+            if (files == null) {
+                throw new IOException("Cannot list directory " + input);
+            }
+            if (files.length == 0) {
+                throw new IOException("No frames found in " + input);
+            }
+            Arrays.sort(files);
+            final List<URL> urls = new ArrayList<>();
+            for (File file : files) {
+                urls.add(file.toURI().toURL());
+            }
+            System.out.println("De-scramble " + files.length + " frames");
+            final long start = System.nanoTime();
+            final List<BufferedImage> frames = ImageConstructor.readSequence(urls);
+            saveFrames(source, frames);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Done: %d frames in %.2f s (%.1f fps)",
+                    frames.size(), seconds, frames.size() / seconds));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Save the de-scrambled frames to a numbered PNG sequence in the directory
+     * {@code <input>-descrambled}, without the {@code -scrambled} suffix of the
+     * input. The frames are written in parallel.
+     *
+     * @param source The directory of the scrambled sequence.
+     * @param frames The de-scrambled frames in memory.
+     * @throws IOException If a frame cannot be written.
+     */
+    private void saveFrames(File source, List<BufferedImage> frames) throws IOException {
+        String name = source.getPath();
+        if (name.endsWith(SCRAMBLED_SUFFIX)) {
+            name = name.substring(0, name.length() - SCRAMBLED_SUFFIX.length());
+        }
+        final File directory = new File(name + "-descrambled");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        System.out.println("Save frames in: " + directory);
+        final IOException[] error = new IOException[1];
+        IntStream.range(0, frames.size()).parallel().forEach((i) -> {
+            try {
+                ImageCreator.writeImage(new File(directory, String.format("frame-%04d.png", i)),
+                        frames.get(i), Collections.emptyMap());
+            } catch (IOException ex) {
+                error[0] = ex;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * De-scrambles a frame sequence from the given directory.
+     *
+     * @param args The string array containing the directory name.
+     */
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            SequenceConstructor sequenceConstructor = new SequenceConstructor(args[0]);
+        } else {
+            System.out.println("usage: java "
+                    + SequenceConstructor.class.getCanonicalName()
+                    + " <directory>");
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Executing class to create a scrambled frame sequence from an animated GIF or
+ * a directory of numbered images. <br>
+ * All frames share the same size, so the permutation of the shuffle-algorithm
+ * is computed once for the whole sequence and applied to every frame as a flat
+ * gather, with the frames processed in parallel. The frames are written as a
+ * numbered PNG sequence; the {@code seed} is only stored in the first frame.
+ *
+ * @see RasterCreator
+ * @see ImageConstructor#readSequence
+ * @see SequenceConstructor
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class SequenceCreator {
+
+    /**
+     * The keyword of the number of frames, stored in the first frame.
+     */
+    public static final String FRAMES = "frames";
+
+    private static final String GIF_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+    /**
+     * Perform a scramble action on the frame sequence indicated by the given
+     * {@code input} and use the given {@code seed} for the scramble algorithm.
+     *
+     * @param input The filename of an animated GIF, or the name of a directory
+     * holding the numbered frames.
+     * @param seed The seed for the random generator or
+     * {@link ImageCreator#RANDOMSEED}.
+     */
+    public SequenceCreator(String input, long seed) {
+        if (seed == ImageCreator.RANDOMSEED) {
+            seed = new Random(System.currentTimeMillis()).nextInt(Integer.MAX_VALUE);
+            System.out.println("Using random seed: " + seed);
+        }
+        try {
+            System.out.println("Reading source frames");
+            final File source = new File(input);
+            final List<BufferedImage> frames = source.isDirectory()
+                    ? readDirectory(source) : readGif(source);
+            if (frames.isEmpty()) {
+                throw new IOException("No frames found in " + input);
+            }
+            final int width = frames.get(0).getWidth();
+            final int height = frames.get(0).getHeight();
+            for (BufferedImage frame : frames) {
+                if (frame.getWidth() != width || frame.getHeight() != height) {
+                    throw new IOException("Frame size mismatch in " + input);
+                }
+            }
+            System.out.println("Scramble " + frames.size() + " frames");
+            final long start = System.nanoTime();
+            final ScrambleKey key = new ScrambleKey(seed);
+            final Permutation permutation = RasterCreator.permutation(key, width, height);
+            final List<BufferedImage> scrambled = apply(SwapDirection.FORWARD, permutation, frames);
+            final Map<String, String> metadata = key.toMetadata();
+            metadata.put(Fingerprint.FINGERPRINT, Fingerprint.of(key, frames.get(0).getRaster()));
+            saveFrames(input, metadata, scrambled);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Done: %d frames in %.2f s (%.1f fps)",
+                    frames.size(), seconds, frames.size() / seconds));
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Applies a permutation to every frame of a sequence, processing the frames
+     * in parallel.
+     *
+     * @see RasterCreator#apply
+     * @param type The direction of scrambling.
+     * @param permutation The permutation of the pixel indices.
+     * @param frames The source frames, all of the permutation's size.
+     * @return The resulting frames, in order.
+     */
+    static List<BufferedImage> apply(SwapDirection type, Permutation permutation,
+            List<BufferedImage> frames) {
+        final BufferedImage[] result = new BufferedImage[frames.size()];
+        IntStream.range(0, result.length).parallel().forEach((i) -> {
+            final BufferedImage src = frames.get(i);
+            result[i] = new BufferedImage(src.getWidth(), src.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            RasterCreator.apply(type, permutation, src.getRaster(), result[i].getRaster());
+        });
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Save the scrambled frames to a numbered PNG sequence in the directory
+     * {@code <input>-scrambled}. The first frame holds the key, the fingerprint
+     * of the first frame and the number of frames; the frames are written in
+     * parallel.
+     *
+     * @param input The name of the source sequence.
+     * @param metadata The key used for scrambling and the fingerprint, as
+     * keyword and value pairs.
+     * @param frames The scrambled frames in memory.
+     * @throws IOException If a frame cannot be written.
+     */
+    private void saveFrames(String input, Map<String, String> metadata, List<BufferedImage> frames)
+            throws IOException {
+        final File source = new File(input);
+        String name = source.getPath();
+        final int index = name.lastIndexOf('.');
+        if (!source.isDirectory() && index > name.lastIndexOf(File.separatorChar)) {
+            name = name.substring(0, index);
+        }
+        final File directory = new File(name + "-scrambled");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        System.out.println("Save frames in: " + directory);
+        final Map<String, String> first = new LinkedHashMap<>(metadata);
+        first.put(FRAMES, String.valueOf(frames.size()));
+        final IOException[] error = new IOException[1];
+        IntStream.range(0, frames.size()).parallel().forEach((i) -> {
+            try {
+                ImageCreator.writeImage(new File(directory, String.format("frame-%04d.png", i)),
+                        frames.get(i), i == 0 ? first : Collections.emptyMap());
+            } catch (IOException ex) {
+                error[0] = ex;
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * Read the frames of a directory, sorted by file name.
+     *
+     * @param directory The directory holding the frames.
+     * @return The frames in memory.
+     * @throws IOException If a frame cannot be read.
+     */
+    static List<BufferedImage> readDirectory(File directory) throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> {
+            final String lower = name.toLowerCase();
+            return lower.endsWith(".png") || lower.endsWith(".jpg")
+                    || lower.endsWith(".jpeg") || lower.endsWith(".gif")
+                    || lower.endsWith(".bmp");
+        });
+        if (files == null) {
+            throw new IOException("Cannot list directory " + directory);
+        }
+        Arrays.sort(files);
+        final List<BufferedImage> frames = new ArrayList<>();
+        for (File file : files) {
+            final BufferedImage frame = ImageIO.read(file);
+            if (frame == null) {
+                throw new IOException("Unsupported image " + file);
+            }
+            frames.add(GraphicsUtilities.toIntImage(frame));
+        }
+        return frames;
+    }
+
+    /**
+     * Read the frames of an animated GIF. Frames in a GIF may only cover part
+     * of the logical screen, so every frame is composed onto a canvas taking
+     * the frame position and disposal method into account.
+     *
+     * @param file The GIF file.
+     * @return The fully composed frames in memory.
+     * @throws IOException If the file cannot be read.
+     */
+    static List<BufferedImage> readGif(File file) throws IOException {
+        final ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        final ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException("Cannot read " + file);
+        }
+        final List<BufferedImage> frames = new ArrayList<>();
+        try {
+            reader.setInput(stream, false);
+            final int count = reader.getNumImages(true);
+            int width = 0, height = 0;
+            final IIOMetadata streamMeta = reader.getStreamMetadata();
+            if (streamMeta != null) {
+                final Node screen = findNode(streamMeta.getAsTree(
+                        streamMeta.getNativeMetadataFormatName()), "LogicalScreenDescriptor");
+                if (screen != null) {
+                    width = intAttribute(screen, "logicalScreenWidth");
+                    height = intAttribute(screen, "logicalScreenHeight");
+                }
+            }
+            if (width <= 0 || height <= 0) {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            }
+            final BufferedImage canvas = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < count; i++) {
+                final BufferedImage image = reader.read(i);
+                final Node tree = reader.getImageMetadata(i).getAsTree(GIF_METADATA_FORMAT);
+                final Node descriptor = findNode(tree, "ImageDescriptor");
+                final Node control = findNode(tree, "GraphicControlExtension");
+                final int x = descriptor == null ? 0 : intAttribute(descriptor, "imageLeftPosition");
+                final int y = descriptor == null ? 0 : intAttribute(descriptor, "imageTopPosition");
+                final String disposal = control == null ? "none"
+                        : control.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+                final BufferedImage previous = "restoreToPrevious".equals(disposal)
+                        ? GraphicsUtilities.toIntImage(canvas) : null;
+
+                final Graphics2D g = canvas.createGraphics();
+                g.drawImage(image, x, y, null);
+                frames.add(GraphicsUtilities.toIntImage(canvas));
+                if ("restoreToBackgroundColor".equals(disposal)) {
+                    g.setBackground(new Color(0, true));
+                    g.clearRect(x, y, image.getWidth(), image.getHeight());
+                } else if (previous != null) {
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(previous, 0, 0, null);
+                }
+                g.dispose();
+            }
+        } finally {
+            reader.dispose();
+            stream.close();
+        }
+        return frames;
+    }
+
+    private static Node findNode(Node root, String name) {
+        if (root.getNodeName().equals(name)) {
+            return root;
+        }
+        final NodeList children = root.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            final Node node = findNode(children.item(i), name);
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static int intAttribute(Node node, String name) {
+        final NamedNodeMap attributes = node.getAttributes();
+        final Node attribute = attributes.getNamedItem(name);
+        return attribute == null ? 0 : Integer.parseInt(attribute.getNodeValue());
+    }
+
+    /**
+     * Creates a scrambled frame sequence from the given GIF or directory.
+     *
+     * @param args The string array containing the input name and optionally
+     * the random seed.
+     */
+    public static void main(String[] args) {
+        long seed = ImageCreator.RANDOMSEED;
+        if (args.length > 1) {
+            try {
+                seed = Long.parseLong(args[1]);
+                if (seed < 0) {
+                    throw new NumberFormatException();
+                }
+                System.out.println("Seed from command line: " + seed);
+            } catch (NumberFormatException ex) {
+            }
+        }
+        if (args.length > 0) {
+            SequenceCreator sequenceCreator = new SequenceCreator(args[0], seed);
+        } else {
+            System.out.println("usage: java "
+                    + SequenceCreator.class.getCanonicalName()
+                    + " <animated gif | directory> [seed]");
+        }
+    }
+}
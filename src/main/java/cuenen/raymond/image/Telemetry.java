@@ -0,0 +1,181 @@
+package cuenen.raymond.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Ring buffer of timing samples, used to find out where the viewer spends its
+ * time. <br>
+ * Every sample holds the name of a phase (e.g. {@code paint} or
+ * {@code decode.read}), the time it ended and its duration. Only the most
+ * recent samples are kept, so recording is cheap enough to be always on. The
+ * samples can be dumped to a file for bug reports.
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class Telemetry {
+
+    /**
+     * The number of samples kept by the default telemetry.
+     */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The default telemetry.
+     */
+    private static final Telemetry DEFAULT = new Telemetry(DEFAULT_CAPACITY);
+
+    /**
+     * The phase of every sample.
+     */
+    private final String[] phases;
+
+    /**
+     * The end time, in nanoseconds, of every sample.
+     */
+    private final long[] times;
+
+    /**
+     * The duration, in nanoseconds, of every sample.
+     */
+    private final long[] durations;
+
+    /**
+     * The total number of samples recorded.
+     */
+    private long count = 0;
+
+    /**
+     * Returns the default telemetry, shared by the viewer and the image
+     * readers.
+     *
+     * @return The default telemetry.
+     */
+    public static Telemetry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new {@code Telemetry}.
+     *
+     * @param capacity The number of samples kept.
+     */
+    public Telemetry(int capacity) {
+        phases = new String[capacity];
+        times = new long[capacity];
+        durations = new long[capacity];
+    }
+
+    /**
+     * Records a sample of a phase that ends now.
+     *
+     * @param phase The name of the phase.
+     * @param start The start time of the phase, from {@link System#nanoTime()}.
+     */
+    public synchronized void record(String phase, long start) {
+        final long end = System.nanoTime();
+        final int index = (int) (count++ % phases.length);
+        phases[index] = phase;
+        times[index] = end;
+        durations[index] = end - start;
+    }
+
+    /**
+     * Returns the duration of the last sample of a phase.
+     *
+     * @param phase The name of the phase.
+     * @return The duration in milliseconds, or {@code NaN} if there is no
+     * sample.
+     */
+    public synchronized double last(String phase) {
+        for (long i = count - 1; i >= Math.max(0, count - phases.length); i--) {
+            final int index = (int) (i % phases.length);
+            if (phases[index].equals(phase)) {
+                return durations[index] / 1e6;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the mean duration of the most recent samples of a phase.
+     *
+     * @param phase The name of the phase.
+     * @param samples The maximum number of samples to average.
+     * @return The mean duration in milliseconds, or {@code NaN} if there is no
+     * sample.
+     */
+    public synchronized double average(String phase, int samples) {
+        long total = 0;
+        int found = 0;
+        for (long i = count - 1; i >= Math.max(0, count - phases.length) && found < samples; i--) {
+            final int index = (int) (i % phases.length);
+            if (phases[index].equals(phase)) {
+                total += durations[index];
+                found++;
+            }
+        }
+        return found == 0 ? Double.NaN : total / 1e6 / found;
+    }
+
+    /**
+     * Returns the number of samples of a phase that ended in the last second.
+     *
+     * @param phase The name of the phase.
+     * @return The rate of the phase, per second.
+     */
+    public synchronized int rate(String phase) {
+        final long since = System.nanoTime() - 1000000000L;
+        int found = 0;
+        for (long i = count - 1; i >= Math.max(0, count - phases.length); i--) {
+            final int index = (int) (i % phases.length);
+            if (times[index] - since < 0) {
+                break;
+            }
+            if (phases[index].equals(phase)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Write the samples to a file, oldest first, as comma separated values of
+     * the wall clock time in milliseconds, the phase and the duration in
+     * microseconds.
+     *
+     * @param file The file to write to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void dump(File file) throws IOException {
+        final String[] phaseCopy;
+        final long[] timeCopy;
+        final long[] durationCopy;
+        final long first;
+        final long last;
+        final long nanos;
+        synchronized (this) {
+            phaseCopy = phases.clone();
+            timeCopy = times.clone();
+            durationCopy = durations.clone();
+            first = Math.max(0, count - phases.length);
+            last = count;
+            nanos = System.nanoTime();
+        }
+        final long millis = System.currentTimeMillis();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8))) {
+            out.println("# " + PixelBufferPool.getDefault());
+            out.println("time,phase,duration");
+            for (long i = first; i < last; i++) {
+                final int index = (int) (i % phaseCopy.length);
+                out.println((millis - (nanos - timeCopy[index]) / 1000000L) + ","
+                        + phaseCopy[index] + "," + durationCopy[index] / 1000L);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package cuenen.raymond.image;
+
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+
+/**
+ * Cache of de-scrambled thumbnails, used by the {@code DisplayPanel} to show a
+ * contact sheet of dropped images. <br>
+ * Thumbnails are de-scrambled in the background on a bounded pool of worker
+ * threads and down-scaled immediately, so the full resolution image is only
+ * held for as long as a worker needs it. The cached thumbnails are kept under a
+ * memory budget; the least recently used thumbnails are evicted first and are
+ * recreated when requested again.
+ *
+ * @see DisplayPanel
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class ThumbnailCache {
+
+    /**
+     * The bounded pool of worker threads.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The maximum size, in pixels, of the largest side of a thumbnail.
+     */
+    private final int size;
+
+    /**
+     * The memory budget, in bytes, for the cached thumbnails.
+     */
+    private final long budget;
+
+    /**
+     * The cached thumbnails in least recently used order.
+     */
+    private final Map<URL, BufferedImage> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The images that are being de-scrambled or failed to de-scramble.
+     */
+    private final Set<URL> pending = new HashSet<>();
+
+    /**
+     * The number of bytes used by the cached thumbnails.
+     */
+    private long used;
+
+    /**
+     * Creates a new {@code ThumbnailCache}.
+     *
+     * @param size The maximum size, in pixels, of the largest side of a
+     * thumbnail.
+     * @param budget The memory budget, in bytes, for the cached thumbnails.
+     * @param threads The number of worker threads.
+     */
+    public ThumbnailCache(int size, long budget, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        this.size = size;
+        this.budget = budget;
+        this.workers = Executors.newFixedThreadPool(threads, (runnable) -> {
+            final Thread thread = new Thread(runnable, "Thumbnail-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the thumbnail for the given image. When the thumbnail is not
+     * cached it is created in the background and {@code onReady} is invoked on
+     * the event dispatch thread once it is available.
+     *
+     * @param imageFile The URL of the scrambled image.
+     * @param onReady The callback for when the thumbnail becomes available.
+     * @return The thumbnail, or {@code null} if it is not (yet) available.
+     */
+    public synchronized BufferedImage get(URL imageFile, Runnable onReady) {
+        final BufferedImage thumbnail = thumbnails.get(imageFile);
+        if (thumbnail == null && pending.add(imageFile)) {
+            workers.execute(() -> create(imageFile, onReady));
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Removes all thumbnails from the cache and forgets about failed images.
+     */
+    public synchronized void clear() {
+        thumbnails.clear();
+        pending.clear();
+        used = 0;
+    }
+
+    /**
+     * De-scramble an image and store its thumbnail in the cache.
+     *
+     * @param imageFile The URL of the scrambled image.
+     * @param onReady The callback for when the thumbnail becomes available.
+     */
+    private void create(URL imageFile, Runnable onReady) {
+        final BufferedImage thumbnail;
+        try {
+            /* Decode on this worker, the thumbnail needs no compatible copy */
+            final BufferedImage image = new DecodeHandle(imageFile, Runnable::run, null)
+                    .getImage().join();
+            final double scale = Math.min(1.0, (double) size
+                    / Math.max(image.getWidth(), image.getHeight()));
+            thumbnail = GraphicsUtilities.getAreaAveragedInstance(image,
+                    Math.max(1, (int) (image.getWidth() * scale)),
+                    Math.max(1, (int) (image.getHeight() * scale)));
+        } catch (CompletionException ex) {
+            /* Leave the image pending, so it is not retried */
+            System.err.println("Error: " + imageFile + ": " + ex.getCause().getMessage());
+            return;
+        } catch (RuntimeException ex) {
+            System.err.println("Error: " + imageFile + ": " + ex.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (!pending.remove(imageFile)) {
+                /* The cache was cleared in the meantime */
+                return;
+            }
+            thumbnails.put(imageFile, thumbnail);
+            used += bytes(thumbnail);
+            final Iterator<BufferedImage> eldest = thumbnails.values().iterator();
+            while (used > budget && eldest.hasNext()) {
+                final BufferedImage evicted = eldest.next();
+                if (evicted != thumbnail) {
+                    used -= bytes(evicted);
+                    eldest.remove();
+                }
+            }
+        }
+        SwingUtilities.invokeLater(onReady);
+    }
+
+    /**
+     * Returns the approximate memory used by an image.
+     *
+     * @param image The image.
+     * @return The number of bytes used by the pixels of the image.
+     */
+    private static long bytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+}
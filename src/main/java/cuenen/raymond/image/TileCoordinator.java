@@ -0,0 +1,309 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+
+/**
+ * Scrambles and de-scrambles images tile by tile on a number of worker
+ * processes, so the permutation tables of a very large image are spread over
+ * several heaps. <br>
+ * The image is divided in the tiles of the {@link ScrambleKey#getTileSize()
+ * tile size} of the key. The tiles are handed to the {@link TileWorker}
+ * processes over their standard input and output, permuted with the key
+ * {@link ScrambleKey#forTile(int) derived} for their index, and written back
+ * into the image. The result is the same as that of the {@code RasterCreator}
+ * with the same key, so a tiled image can be de-scrambled by the
+ * {@code ImageConstructor} as well.
+ * <p>
+ * When a worker fails, e.g. because it runs out of memory or is killed, it is
+ * replaced by a new process and its tile is retried, up to
+ * {@link #MAX_ATTEMPTS} times. A tile the worker reports as invalid fails the
+ * image at once.
+ *
+ * @see TiledPermutation
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public class TileCoordinator {
+
+    /**
+     * The default size of a tile.
+     */
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    /**
+     * The number of times a tile is handed to a worker before the image fails.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The command line that starts a worker.
+     */
+    private final List<String> command;
+
+    /**
+     * The number of worker processes.
+     */
+    private final int workers;
+
+    /**
+     * The running worker processes.
+     */
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of tiles that were retried.
+     */
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     * Creates a new {@code TileCoordinator} that starts the workers in the
+     * Java runtime and with the class path of this process.
+     *
+     * @param workers The number of worker processes.
+     */
+    public TileCoordinator(int workers) {
+        this(workers, Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Djava.awt.headless=true", "-cp", System.getProperty("java.class.path"),
+                TileWorker.class.getName()));
+    }
+
+    /**
+     * Creates a new {@code TileCoordinator}.
+     *
+     * @param workers The number of worker processes.
+     * @param command The command line that starts a {@link TileWorker}.
+     */
+    public TileCoordinator(int workers, List<String> command) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Number of workers must be positive");
+        }
+        this.workers = workers;
+        this.command = new ArrayList<>(command);
+    }
+
+    /**
+     * Returns the number of tiles that were retried after a worker failed.
+     *
+     * @return The number of retries.
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Scrambles or de-scrambles an image in place, tile by tile.
+     *
+     * @param type The direction of scrambling.
+     * @param key The key holding the tile size.
+     * @param image The image to permute.
+     * @throws IOException If a tile failed {@link #MAX_ATTEMPTS} times, or
+     * the thread is interrupted.
+     * @throws IllegalArgumentException If the key has no tile size.
+     */
+    public void apply(SwapDirection type, ScrambleKey key, BufferedImage image) throws IOException {
+        final int tileSize = key.getTileSize();
+        if (tileSize == 0) {
+            throw new IllegalArgumentException("Key has no tile size");
+        }
+        final int columns = (image.getWidth() + tileSize - 1) / tileSize;
+        final int rows = (image.getHeight() + tileSize - 1) / tileSize;
+        final Queue<Integer> tiles = new ConcurrentLinkedQueue<>();
+        for (int t = 0; t < columns * rows; t++) {
+            tiles.add(t);
+        }
+        final int[] attempts = new int[columns * rows];
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, attempts.length));
+        for (int i = 0; i < Math.min(workers, attempts.length); i++) {
+            executor.execute(() -> work(type, key, image, columns, tiles, attempts, failure));
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            failure.compareAndSet(null, new InterruptedIOException("Interrupted while permuting tiles"));
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+            Thread.currentThread().interrupt();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Hand tiles to one worker process until all tiles are taken. A failed
+     * worker is replaced and its tile is put back in the queue.
+     */
+    private void work(SwapDirection type, ScrambleKey key, BufferedImage image, int columns,
+            Queue<Integer> tiles, int[] attempts, AtomicReference<IOException> failure) {
+        final int tileSize = key.getTileSize();
+        Process process = null;
+        DataOutputStream out = null;
+        DataInputStream in = null;
+        Integer tile;
+        while (failure.get() == null && (tile = tiles.poll()) != null) {
+            final int x = tile % columns * tileSize;
+            final int y = tile / columns * tileSize;
+            final int width = Math.min(tileSize, image.getWidth() - x);
+            final int height = Math.min(tileSize, image.getHeight() - y);
+            final int[] pixels = new int[width * height];
+            image.getRGB(x, y, width, height, pixels, 0, width);
+            try {
+                if (process == null) {
+                    process = new ProcessBuilder(command)
+                            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                    processes.add(process);
+                    out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(),
+                            ImageCreator.STREAM_BUFFER_SIZE));
+                    in = new DataInputStream(new BufferedInputStream(process.getInputStream(),
+                            ImageCreator.STREAM_BUFFER_SIZE));
+                }
+                TileWorker.writeRequest(out, type, key.forTile(tile), width, height, pixels);
+                if (in.readUnsignedByte() != TileWorker.OK) {
+                    /* The worker is fine, but the tile would fail again */
+                    failure.compareAndSet(null, new IOException("Tile " + tile + ": " + in.readUTF()));
+                    break;
+                }
+                TileWorker.readPixels(in, pixels, pixels.length);
+            } catch (IOException ex) {
+                if (process != null) {
+                    process.destroyForcibly();
+                    processes.remove(process);
+                    process = null;
+                }
+                synchronized (attempts) {
+                    if (++attempts[tile] < MAX_ATTEMPTS) {
+                        System.err.println("Worker failed on tile " + tile + ", retrying: " + ex.getMessage());
+                        retries.incrementAndGet();
+                        tiles.add(tile);
+                    } else {
+                        failure.compareAndSet(null, new IOException("Tile " + tile + " failed "
+                                + MAX_ATTEMPTS + " times: " + ex.getMessage(), ex));
+                    }
+                }
+                continue;
+            }
+            /* Every tile is a disjoint rectangle, so workers copy without a lock */
+            image.setRGB(x, y, width, height, pixels, 0, width);
+        }
+        if (process != null) {
+            /* Closing the standard input stops the worker */
+            try {
+                out.close();
+                process.waitFor(1, TimeUnit.SECONDS);
+            } catch (IOException ex) {
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                process.destroy();
+                processes.remove(process);
+            }
+        }
+    }
+
+    /**
+     * Scrambles, or de-scrambles, an image file on a number of worker
+     * processes.
+     *
+     * @param args The string array containing the options, the input filename
+     * and the output filename.
+     */
+    public static void main(String[] args) {
+        final List<String> arguments = new ArrayList<>();
+        final UnaryOperator<ScrambleKey> options;
+        final long seed;
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        try {
+            options = ImageCreator.parseKeyOptions(args, arguments);
+            seed = ImageCreator.parseSeed(arguments);
+            final int index = arguments.indexOf("--workers");
+            if (index != -1 && index + 1 < arguments.size()) {
+                workers = Integer.parseInt(arguments.remove(index + 1));
+                arguments.remove(index);
+            }
+            if (workers < 1) {
+                throw new IllegalArgumentException("Invalid number of workers: " + workers);
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            return;
+        }
+        final boolean descramble = arguments.remove("--descramble");
+        if (arguments.size() != 2) {
+            System.out.println("usage: java "
+                    + TileCoordinator.class.getCanonicalName() + " "
+                    + ImageCreator.keyOptionsUsage() + " [--seed <seed>] [--workers <n>]"
+                    + " [--descramble] <input> <output>");
+            return;
+        }
+        final File input = new File(arguments.get(0));
+        final File output = new File(arguments.get(1));
+        final TileCoordinator coordinator = new TileCoordinator(workers);
+        try {
+            final BufferedImage source = ImageIO.read(input);
+            if (source == null) {
+                throw new IOException("Unsupported image: " + input);
+            }
+            final BufferedImage image = GraphicsUtilities.toIntImage(source);
+            final long start = System.nanoTime();
+            if (descramble) {
+                final Map<String, String> metadata = ImageConstructor.readMetadata(new FileInputStream(input));
+                final ScrambleKey key = seed == ImageCreator.RANDOMSEED
+                        ? ScrambleKey.fromMetadata(metadata) : options.apply(new ScrambleKey(seed));
+                if (key.getTileSize() == 0) {
+                    throw new IOException("The image is not tiled");
+                }
+                Fingerprint.verify(metadata, key, RasterCreator.permutation(key,
+                        image.getWidth(), image.getHeight()), image.getRaster());
+                coordinator.apply(SwapDirection.BACKWARD, key, image);
+                ImageCreator.writeImage(output, image, Collections.emptyMap());
+            } else {
+                ScrambleKey key = options.apply(new ScrambleKey(seed == ImageCreator.RANDOMSEED
+                        ? new Random(System.currentTimeMillis()).nextInt(Integer.MAX_VALUE) : seed));
+                if (key.getTileSize() == 0) {
+                    key = key.withTileSize(DEFAULT_TILE_SIZE);
+                }
+                System.out.println("Using seed: " + key.getSeed());
+                final Map<String, String> metadata = key.toMetadata();
+                metadata.put(Fingerprint.FINGERPRINT, Fingerprint.of(key, image.getRaster()));
+                coordinator.apply(SwapDirection.FORWARD, key, image);
+                ImageCreator.writeImage(output, image, metadata);
+            }
+            System.out.println(String.format("Done in %.1f s on %d workers, %d tiles retried",
+                    (System.nanoTime() - start) / 1e9, workers, coordinator.getRetries()));
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package cuenen.raymond.image;
+
+import cuenen.raymond.image.RasterCreator.SwapDirection;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Executing class that permutes tiles for the {@code TileCoordinator}, in a
+ * separate process. <br>
+ * The worker reads requests from the standard input and writes the replies to
+ * the standard output, until the standard input is closed. A request holds:
+ * <ul>
+ * <li>the number of metadata entries of the key of the tile, followed by the
+ * keyword and value pairs, as modified UTF-8;</li>
+ * <li>a byte with the ordinal of the {@link SwapDirection};</li>
+ * <li>the width and height of the tile and its {@code ARGB} pixels, as big
+ * endian integers.</li>
+ * </ul>
+ * The reply is a {@link #OK} byte followed by the permuted pixels, or an
+ * {@link #ERROR} byte followed by the error message. Messages of the worker
+ * itself are written to the standard error.
+ *
+ * @see TileCoordinator
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+public final class TileWorker {
+
+    /**
+     * The reply status of a permuted tile.
+     */
+    static final int OK = 0;
+
+    /**
+     * The reply status of a tile that could not be permuted.
+     */
+    static final int ERROR = 1;
+
+    /**
+     * Private constructor so it is not instantiated.
+     */
+    private TileWorker() {
+    }
+
+    /**
+     * Write a tile request.
+     *
+     * @param out The stream to the worker.
+     * @param type The direction of scrambling.
+     * @param key The key of the tile.
+     * @param width The width of the tile.
+     * @param height The height of the tile.
+     * @param pixels The {@code ARGB} pixels of the tile.
+     * @throws IOException If the request cannot be written.
+     */
+    static void writeRequest(DataOutputStream out, SwapDirection type, ScrambleKey key,
+            int width, int height, int[] pixels) throws IOException {
+        final Map<String, String> metadata = key.toMetadata();
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeByte(type.ordinal());
+        out.writeInt(width);
+        out.writeInt(height);
+        writePixels(out, pixels, width * height);
+        out.flush();
+    }
+
+    /**
+     * Write pixels as big endian integers, in one block.
+     *
+     * @param out The stream to write to.
+     * @param pixels The pixels.
+     * @param length The number of pixels to write.
+     * @throws IOException If the pixels cannot be written.
+     */
+    static void writePixels(DataOutputStream out, int[] pixels, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * length);
+        buffer.asIntBuffer().put(pixels, 0, length);
+        out.write(buffer.array());
+    }
+
+    /**
+     * Read pixels written by {@link #writePixels}.
+     *
+     * @param in The stream to read from.
+     * @param pixels The array to read the pixels into.
+     * @param length The number of pixels to read.
+     * @throws IOException If the pixels cannot be read.
+     */
+    static void readPixels(DataInputStream in, int[] pixels, int length) throws IOException {
+        final byte[] bytes = new byte[4 * length];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(pixels, 0, length);
+    }
+
+    /**
+     * Permute the tiles requested on the standard input.
+     *
+     * @param args Not used.
+     */
+    public static void main(String[] args) {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(FileDescriptor.in), ImageCreator.STREAM_BUFFER_SIZE));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), ImageCreator.STREAM_BUFFER_SIZE));
+        try {
+            while (true) {
+                final int entries;
+                try {
+                    entries = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                final Map<String, String> metadata = new HashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    metadata.put(in.readUTF(), in.readUTF());
+                }
+                final SwapDirection type = SwapDirection.values()[in.readByte()];
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                final int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                readPixels(in, pixels, pixels.length);
+                try {
+                    RasterCreator.applyInPlace(type, ScrambleKey.fromMetadata(metadata), tile.getRaster());
+                } catch (IOException | RuntimeException ex) {
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(ex.getMessage()));
+                    out.flush();
+                    continue;
+                }
+                out.writeByte(OK);
+                writePixels(out, pixels, pixels.length);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+        }
+    }
+}
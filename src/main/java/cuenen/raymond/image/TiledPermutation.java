@@ -0,0 +1,137 @@
+package cuenen.raymond.image;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@code Permutation} that permutes every tile of an image independently.
+ * <br>
+ * The image is divided in square tiles, in row major order; the tiles at the
+ * right and bottom edge may be smaller. Every tile is permuted by the key of
+ * {@link ScrambleKey#forTile(int) its index}, so pixels never leave their tile
+ * and every tile can be scrambled on its own, in the same way as a complete
+ * image of the size of the tile.
+ *
+ * @see TileCoordinator
+ *
+ * @version 1.00 Jan 21 2015
+ * @author Raymond Cuenen
+ */
+final class TiledPermutation implements Permutation {
+
+    /**
+     * The width of the image.
+     */
+    private final int width;
+
+    /**
+     * The height of the image.
+     */
+    private final int height;
+
+    /**
+     * The number of pixels in the image.
+     */
+    private final int size;
+
+    /**
+     * The size of a tile.
+     */
+    private final int tileSize;
+
+    /**
+     * The number of tiles in a row.
+     */
+    private final int columns;
+
+    /**
+     * The key holding the tile size.
+     */
+    private final ScrambleKey key;
+
+    /**
+     * The permutation of every tile, in row major order, created on first use
+     * so an update of a region only builds the tiles it touches.
+     */
+    private final AtomicReferenceArray<Permutation> tiles;
+
+    /**
+     * Creates a new {@code TiledPermutation}.
+     *
+     * @param key The key holding the tile size.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    TiledPermutation(ScrambleKey key, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.size = width * height;
+        this.tileSize = key.getTileSize();
+        this.columns = (width + tileSize - 1) / tileSize;
+        final int rows = (height + tileSize - 1) / tileSize;
+        this.key = key;
+        this.tiles = new AtomicReferenceArray<>(columns * rows);
+    }
+
+    /**
+     * Returns the permutation of a tile, created on first use.
+     *
+     * @param t The index of the tile.
+     * @return The permutation of the tile.
+     */
+    private Permutation tile(int t) {
+        Permutation tile = tiles.get(t);
+        if (tile == null) {
+            final int x = t % columns * tileSize;
+            final int y = t / columns * tileSize;
+            tile = RasterCreator.permutation(key.forTile(t),
+                    Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+            if (!tiles.compareAndSet(t, null, tile)) {
+                tile = tiles.get(t);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(int index) {
+        return map(index, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int inverse(int index) {
+        return map(index, true);
+    }
+
+    /**
+     * Maps an image index through the permutation of its tile.
+     *
+     * @param index The index in the image.
+     * @param inverse {@code true} for the inverse permutation.
+     * @return The mapped index in the image.
+     */
+    private int map(int index, boolean inverse) {
+        final int x = index % width;
+        final int y = index / width;
+        final int tx = x / tileSize * tileSize;
+        final int ty = y / tileSize * tileSize;
+        final int tileWidth = Math.min(tileSize, width - tx);
+        final Permutation tile = tile(ty / tileSize * columns + tx / tileSize);
+        final int local = (y - ty) * tileWidth + x - tx;
+        final int mapped = inverse ? tile.inverse(local) : tile.get(local);
+        return (ty + mapped / tileWidth) * width + tx + mapped % tileWidth;
+    }
+}